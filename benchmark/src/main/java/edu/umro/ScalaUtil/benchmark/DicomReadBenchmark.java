@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.benchmark;
+
+import com.pixelmed.dicom.AttributeList;
+import edu.umro.ScalaUtil.DicomUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading DICOM files, header only versus the whole file.  The files are small enough to stay in the operating
+ * system's cache, so this measures parsing rather than disk speed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DicomReadBenchmark {
+
+    @Param({"rtplan.dcm", "vessel_a.dcm", "MakeDict/distinct01.dcm", "TreatmentMachineType/CT_024.dcm", "TreatmentMachineType/Halcyon.dcm"})
+    public String fileName;
+
+    private File file;
+
+    @Setup
+    public void setup() {
+        file = TestFiles.get(fileName);
+    }
+
+    @Benchmark
+    public AttributeList readHeader() {
+        return DicomUtil.readHeader(file);
+    }
+
+    @Benchmark
+    public AttributeList readFull() throws Exception {
+        AttributeList al = new AttributeList();
+        al.read(file);
+        return al;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.benchmark;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.ValueRepresentation;
+import edu.umro.ScalaUtil.DicomUtil;
+import edu.umro.ScalaUtil.DicomUtil$;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.collection.Seq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations on attribute lists that are already in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DicomUtilBenchmark {
+
+    @Param({"rtplan.dcm", "vessel_a.dcm", "MakeDict/distinct01.dcm", "TreatmentMachineType/Halcyon.dcm"})
+    public String fileName;
+
+    private AttributeList attributeList;
+
+    @Setup
+    public void setup() throws Exception {
+        attributeList = new AttributeList();
+        attributeList.read(TestFiles.get(fileName));
+    }
+
+    @Benchmark
+    public String attributeListToString() {
+        return DicomUtil.attributeListToString(attributeList);
+    }
+
+    @Benchmark
+    public Seq<Attribute> findAllUids() {
+        return DicomUtil.findAll(attributeList, attr -> ValueRepresentation.isUniqueIdentifierVR(attr.getVR()));
+    }
+
+    /** Called through the module because a static method named clone is not made for Java. */
+    @Benchmark
+    public AttributeList cloneAttributeList() {
+        return DicomUtil$.MODULE$.clone(attributeList);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.benchmark;
+
+import edu.umro.ScalaUtil.FileUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Tuple2;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zipping a directory of DICOM files to memory and unzipping it again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileUtilBenchmark {
+
+    @Param({"TreatmentMachineType", "MakeDict"})
+    public String dirName;
+
+    private Seq<File> dirList;
+    private Seq<String> noPatterns;
+    private Seq<File> noFiles;
+    private byte[] zipped;
+
+    @Setup
+    public void setup() {
+        dirList = JavaConverters.asScalaBuffer(Collections.singletonList(TestFiles.get(dirName)));
+        noPatterns = JavaConverters.asScalaBuffer(Collections.<String>emptyList());
+        noFiles = JavaConverters.asScalaBuffer(Collections.<File>emptyList());
+        zipped = zip();
+    }
+
+    @Benchmark
+    public byte[] zip() {
+        return FileUtil.readFileTreeToZipByteArray(dirList, noPatterns, noFiles);
+    }
+
+    @Benchmark
+    public Seq<Tuple2<String, byte[]>> unzip() {
+        return FileUtil.writeZipToNamedByteArrays(new ByteArrayInputStream(zipped));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.benchmark;
+
+import edu.umro.ScalaUtil.IsDicom;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deciding whether content is DICOM, both from memory and from a file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IsDicomBenchmark {
+
+    @Param({"rtplan.dcm", "ThisIsNotDicom.txt"})
+    public String fileName;
+
+    private File file;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        file = TestFiles.get(fileName);
+        bytes = TestFiles.readBytes(fileName);
+    }
+
+    @Benchmark
+    public boolean fromBytes() {
+        return IsDicom.isDicomOrAcrNema(bytes);
+    }
+
+    @Benchmark
+    public boolean fromFile() throws IOException {
+        return IsDicom.isDicomOrAcrNema(new FileInputStream(file));
+    }
+}
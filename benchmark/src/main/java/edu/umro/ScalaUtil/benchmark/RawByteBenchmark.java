@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.benchmark;
+
+import edu.umro.ScalaUtil.RawByte;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Predef$;
+import scala.collection.Seq;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte reordering and conversion of raw pixel values, using the bytes at the end of a DICOM image file, which are
+ * pixel data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawByteBenchmark {
+
+    /** Number of bytes converted by each operation. */
+    @Param({"4096", "262144"})
+    public int size;
+
+    private byte[] bytes;
+    private byte[] out;
+    private Seq<Object> byteSeq;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] all = TestFiles.readBytes("vessel_a.dcm");
+        bytes = Arrays.copyOfRange(all, all.length - size, all.length);
+        out = new byte[size];
+        byteSeq = Predef$.MODULE$.wrapByteArray(bytes);
+    }
+
+    @Benchmark
+    public Seq<Object> swapBytePairs() {
+        return RawByte.swapBytePairs(byteSeq);
+    }
+
+    @Benchmark
+    public Object bytesToFloat() {
+        return RawByte.bytesToFloat(byteSeq);
+    }
+
+    @Benchmark
+    public byte[] swapBytePairsArray() {
+        RawByte.swapBytePairs(bytes, out);
+        return out;
+    }
+
+    @Benchmark
+    public float[] bytesToFloatArray() {
+        return RawByte.bytesToFloat(bytes, ByteOrder.BIG_ENDIAN);
+    }
+}
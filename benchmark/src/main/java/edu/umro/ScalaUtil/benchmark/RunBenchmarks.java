@@ -0,0 +1,43 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks, reporting throughput and, with the GC profiler, the allocation rate (gc.alloc.rate.norm is the
+ * number of bytes allocated per operation).
+ * <p>
+ * Each argument is a regular expression, and only benchmarks whose names match one of them are run.  With no
+ * arguments all benchmarks are run.  For more control use the standard JMH command line with
+ * <code>java -cp target/benchmarks.jar org.openjdk.jmh.Main -h</code>
+ */
+public class RunBenchmarks {
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder builder = new OptionsBuilder().addProfiler(GCProfiler.class);
+        if (args.length == 0)
+            builder = builder.include(RunBenchmarks.class.getPackage().getName() + ".*");
+        for (String pattern : args)
+            builder = builder.include(pattern);
+        new Runner(builder.build()).run();
+    }
+}
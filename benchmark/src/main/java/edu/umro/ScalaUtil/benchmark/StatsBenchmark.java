@@ -0,0 +1,90 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.benchmark;
+
+import edu.umro.ScalaUtil.QuantileSketch;
+import edu.umro.ScalaUtil.Stats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Predef$;
+import scala.collection.Seq;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Quartile calculations on random values, through the Seq and Array interfaces and the streaming sketch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatsBenchmark {
+
+    @Param({"1000", "1000000"})
+    public int size;
+
+    private double[] values;
+    private Seq<Object> valueSeq;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        values = new double[size];
+        for (int i = 0; i < size; i++)
+            values[i] = random.nextGaussian() * 100;
+        valueSeq = Predef$.MODULE$.wrapDoubleArray(values);
+    }
+
+    @Benchmark
+    public double medianSeq() {
+        return Stats.median(valueSeq);
+    }
+
+    @Benchmark
+    public double iqrSeq() {
+        return Stats.iqr(valueSeq);
+    }
+
+    @Benchmark
+    public double medianArray() {
+        return Stats.median(values);
+    }
+
+    @Benchmark
+    public Object quartilesArray() {
+        return Stats.quartiles(values);
+    }
+
+    @Benchmark
+    public Object quantileSketch() {
+        QuantileSketch sketch = new QuantileSketch(100, 1000);
+        sketch.add(values);
+        return sketch.quartiles();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Locate the test files that the benchmarks use, which are the ones in ScalaUtil's src/test/resources.
+ */
+class TestFiles {
+
+    /**
+     * Directory containing the test files.  Set with -Dbenchmark.resources=dir, otherwise look relative to the
+     * current directory, which is usually either this module or the one above it.
+     */
+    static final File dir = findDir();
+
+    private static File findDir() {
+        String property = System.getProperty("benchmark.resources");
+        if (property != null)
+            return new File(property);
+        File up = new File("../src/test/resources");
+        if (up.isDirectory())
+            return up;
+        return new File("src/test/resources");
+    }
+
+    /**
+     * Get a test file by its name relative to the resource directory, such as "MakeDict/distinct01.dcm".
+     */
+    static File get(String name) {
+        File file = new File(dir, name);
+        if (!file.canRead())
+            throw new RuntimeException("Can not read benchmark file " + file.getAbsolutePath() + " .  Use -Dbenchmark.resources=dir to specify the directory.");
+        return file;
+    }
+
+    static byte[] readBytes(String name) throws IOException {
+        return Files.readAllBytes(get(name).toPath());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2024 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+import com.pixelmed.network.Association
+
+/**
+  * Idle DICOM associations that can be reused, so that a series of DICOM operations against the same PACS does not
+  * pay for opening a new association each time.  Associations are keyed by the remote PACS, the local AE title, and
+  * the SOP class they were negotiated for.
+  *
+  * An association must only be used by one thread at a time.  Take it from the pool, use it, and then either give it
+  * back if it worked or discard it if it failed.
+  *
+  * @param maxIdle Maximum number of idle associations kept for each key.  Extras are released.
+  */
+class AssociationPool(maxIdle: Int) extends Logging {
+
+  private val pool = scala.collection.mutable.HashMap[String, List[Association]]()
+
+  def makeKey(remotePacs: PACS, callingAETitle: String, sopClass: String): String =
+    Seq(remotePacs.host, remotePacs.aeTitle, remotePacs.port.toString, callingAETitle, sopClass).mkString("  ||||  ")
+
+  /**
+    * Get an idle association from the pool, or make a new one if there are none.
+    *
+    * @param key  Identifies the kind of association.  Use <code>makeKey</code>.
+    * @param make Makes a new association.
+    */
+  def take(key: String, make: => Association): Association = {
+    val pooled = pool.synchronized {
+      pool.get(key) match {
+        case Some(head :: tail) =>
+          pool.put(key, tail)
+          Some(head)
+        case _ => None
+      }
+    }
+    pooled.getOrElse(make)
+  }
+
+  /**
+    * Put an association that worked back into the pool so that it can be reused.  If the pool is full then release it.
+    */
+  def give(key: String, association: Association): Unit = {
+    val pooled = pool.synchronized {
+      val list = pool.getOrElse(key, List[Association]())
+      if (list.size < maxIdle) {
+        pool.put(key, association :: list)
+        true
+      } else
+        false
+    }
+    if (!pooled) release(association)
+  }
+
+  /**
+    * Abort an association that is no longer wanted, as when it has failed.
+    */
+  def discard(association: Association): Unit = {
+    try {
+      association.abort()
+    } catch {
+      case t: Throwable => logger.warn(s"Unexpected exception aborting association: ${fmtEx(t)}")
+    }
+  }
+
+  private def release(association: Association): Unit = {
+    try {
+      association.release()
+    } catch {
+      case _: Throwable => discard(association)
+    }
+  }
+
+  /**
+    * Release all idle associations.
+    */
+  def releaseAll(): Unit = {
+    val all = pool.synchronized {
+      val list = pool.values.flatten.toList
+      pool.clear()
+      list
+    }
+    all.foreach(release)
+  }
+}
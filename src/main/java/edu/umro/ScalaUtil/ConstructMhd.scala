@@ -31,8 +31,13 @@ import edu.umro.util.UMROGUID
 import edu.umro.util.Utility
 
 import java.io.File
-import java.io.FileInputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
 import java.util.Date
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
 import scala.util.Random
 
 /**
@@ -52,7 +57,7 @@ object ConstructMhd {
 
   private val defaultOffset = Seq(0.0, 0.0, 0.0)
 
-  private val expectedElementTypeList = Seq("MET_SHORT", "MET_FLOAT")
+  private val expectedElementTypeList = Seq("MET_SHORT", "MET_FLOAT", "MET_USHORT", "MET_UCHAR")
 
   private case class Mhd(file: File) {
     val lineList = Utility.readFile(file).split("\n").toList.filter(line => line.contains("=")).filterNot(line => line.contains("%"))
@@ -85,13 +90,77 @@ object ConstructMhd {
       }
     }
 
-    val pixSize = if (ElementType.equals("MET_SHORT")) 2 else 4
+    /** Number of bytes per voxel in the image file. */
+    val pixSize: Int = ElementType match {
+      case "MET_FLOAT" => 4
+      case "MET_UCHAR" => 1
+      case _           => 2
+    }
+
+    /** Signed types are written as signed DICOM pixels. */
+    val PixelRepresentation: Int = if (ElementType.equals("MET_USHORT") || ElementType.equals("MET_UCHAR")) 0 else 1
 
     override def toString = {
       kvMap.keys.toSeq.map(k => k + " : " + kvMap(k).mkString(", ")).mkString("\n    ", "\n    ", "")
     }
   }
 
+  /**
+   * Convert the voxels of one slice to 16 bit little endian DICOM pixels.  This is done with primitive loops over
+   * the buffer so that no voxel is boxed.
+   *
+   * Floats are rounded to 16 bits and written high byte first, which is what this tool has always produced.
+   */
+  private def toPixelBytes(mhd: Mhd, raw: ByteBuffer): Array[Byte] = {
+    raw.order(ByteOrder.LITTLE_ENDIAN)
+    mhd.ElementType match {
+      case "MET_FLOAT" =>
+        val floatBuffer = raw.asFloatBuffer
+        val size = floatBuffer.remaining
+        val pix = new Array[Byte](size * 2)
+        var i = 0
+        while (i < size) {
+          val shrt = java.lang.Math.round(floatBuffer.get(i)) & 0xffff
+          pix(i * 2) = ((shrt >> 8) & 0xff).toByte
+          pix(i * 2 + 1) = (shrt & 0xff).toByte
+          i = i + 1
+        }
+        pix
+      case "MET_UCHAR" =>
+        val size = raw.remaining
+        val pix = new Array[Byte](size * 2)
+        var i = 0
+        while (i < size) {
+          pix(i * 2) = raw.get(raw.position() + i)
+          i = i + 1
+        }
+        pix
+      case _ =>
+        // MET_SHORT and MET_USHORT are already little endian 16 bit values
+        val pix = new Array[Byte](raw.remaining)
+        raw.get(pix)
+        pix
+    }
+  }
+
+  /**
+   * Memory map the image file.  If it is too big to map as a single buffer then each slice is mapped as it is needed.
+   *
+   * @return Function that gets the bytes of a given slice.
+   */
+  private def mapImageFile(channel: FileChannel, sliceSize: Int): Int => ByteBuffer = {
+    if (channel.size <= Int.MaxValue) {
+      val whole = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size)
+      (sliceIndex: Int) => {
+        val buffer = whole.duplicate
+        buffer.position(sliceIndex * sliceSize)
+        buffer.limit(sliceIndex * sliceSize + sliceSize)
+        buffer.slice
+      }
+    } else
+      (sliceIndex: Int) => channel.map(FileChannel.MapMode.READ_ONLY, sliceIndex.toLong * sliceSize, sliceSize)
+  }
+
   private def makeSeries(mhd: Mhd, imageFile: File, outDir: File, options: AttributeList) = {
     val transferSyntax = TransferSyntax.ImplicitVRLittleEndian
     val StudyInstanceUID = UMROGUID.getUID
@@ -101,16 +170,17 @@ object ConstructMhd {
     val date = UMROGUID.dicomDate(now)
     val time = UMROGUID.dicomTime(now)
     val dateTime = date + time + ".000"
-    val imageStream = new FileInputStream(imageFile)
     val imageSize = mhd.DimSize(0) * mhd.DimSize(1) * mhd.pixSize
-    val imageBytes = new Array[Byte](imageSize)
+    val channel = FileChannel.open(imageFile.toPath, StandardOpenOption.READ)
+    val sliceBuffer = mapImageFile(channel, imageSize)
+
+    // make UIDs in slice order before writing slices in parallel
+    val SOPInstanceUIDList = (0 until mhd.DimSize(2)).map(_ => UMROGUID.getUID)
 
     val seriesNumber = options.get(TagFromName.SeriesNumber).getIntegerValues()(0)
 
     def makeSlice(sliceIndex: Int) = {
-      Runtime.getRuntime.gc
-      Thread.sleep(17)
-      val SOPInstanceUID = UMROGUID.getUID
+      val SOPInstanceUID = SOPInstanceUIDList(sliceIndex)
       val al = new AttributeList
       val file = new File(outDir, (sliceIndex + 1).formatted("CT_" + seriesNumber + "_%03d.dcm"))
       if (file.exists) throw new RuntimeException("Was going to write to file " + file.getAbsolutePath + " but it already exists.")
@@ -141,33 +211,12 @@ object ConstructMhd {
 
       def makeDbl(tag: AttributeTag, dbl: Double): Unit = makeDblM(tag, Seq(dbl))
 
-      val zero = Array[Byte](0, 0)
-
       def makePixels: Unit = {
-        val bytesRead = imageStream.read(imageBytes)
-        if (bytesRead != imageSize) usage("Was able to read only " + bytesRead + " when there were " + imageSize + " required")
-
-        val pix: Array[Byte] = {
-          if (mhd.ElementType.equals("MET_SHORT")) {
-            imageBytes
-          } else {
-            // convert float to ints
-            def float2Short(i: Int): Array[Byte] = {
-              val fInt = ((imageBytes(i + 3) & 0xff) << 24) | ((imageBytes(i + 2) & 0xff) << 16) | ((imageBytes(i + 1) & 0xff) << 8) | ((imageBytes(i + 0) & 0xff))
-              val f = java.lang.Float.intBitsToFloat(fInt)
-              if ((f > -1) || (f < 100)) {
-                val shrt = java.lang.Float.intBitsToFloat(fInt).round.toInt & 0xffff
-                Array(((shrt >> 8) & 0xff).toByte, (shrt & 0xff).toByte)
-              } else
-                zero
-            }
-            val pix = (0 until imageSize by 4).map(i => float2Short(i)).flatten.toArray
-            pix
-          }
-        }
+        val raw = sliceBuffer(sliceIndex)
+        if (raw.remaining != imageSize) usage("Was able to read only " + raw.remaining + " when there were " + imageSize + " required")
 
         val a = new OtherByteAttribute(TagFromName.PixelData)
-        a.setValues(pix)
+        a.setValues(toPixelBytes(mhd, raw))
 
         al.put(a)
 
@@ -238,7 +287,7 @@ object ConstructMhd {
       makeInt(TagFromName.BitsAllocated, 16)
       makeInt(TagFromName.BitsStored, 16)
       makeInt(TagFromName.HighBit, 15)
-      makeInt(TagFromName.PixelRepresentation, 1)
+      makeInt(TagFromName.PixelRepresentation, mhd.PixelRepresentation)
       makeInt(TagFromName.AcquisitionNumber, 1)
       makeDbl(TagFromName.RescaleIntercept, 0)
       makeDbl(TagFromName.RescaleSlope, 1)
@@ -260,8 +309,16 @@ object ConstructMhd {
       println("Created " + file.getAbsolutePath)
     }
 
-    for (sliceIndex <- (0 until mhd.DimSize(2))) {
-      makeSlice(sliceIndex)
+    val executor = Executors.newFixedThreadPool(Runtime.getRuntime.availableProcessors)
+    try {
+      val futureList = (0 until mhd.DimSize(2)).map(sliceIndex =>
+        executor.submit(new Callable[Unit] {
+          override def call(): Unit = makeSlice(sliceIndex)
+        }))
+      futureList.foreach(_.get)
+    } finally {
+      executor.shutdown()
+      channel.close()
     }
   }
 
@@ -443,9 +500,8 @@ FOR RESEARCH ONLY.  NOT FOR CLINICAL USE.
       val mhd = new Mhd(mhdFile)
       println("mhd: " + mhd)
       val expectedImageSize = mhd.DimSize.map(i => i.toLong).product * mhd.pixSize
-      val imageBytes = Utility.readBinFile(imageFile)
       if (imageFile.length != expectedImageSize) {
-        usage("The MHD file says that the image should contain " + expectedImageSize + " bytes, but actually has " + imageBytes.size +
+        usage("The MHD file says that the image should contain " + expectedImageSize + " bytes, but actually has " + imageFile.length +
           "\nDo you have the right MHD paired with the right image file?")
       }
       makeSeries(mhd, imageFile, outDir, options)
@@ -16,13 +16,8 @@
 
 package edu.umro.ScalaUtil
 
-import com.pixelmed.dicom.AttributeList
-import com.pixelmed.dicom.OtherByteAttribute
-import com.pixelmed.dicom.OtherLongAttribute
-import com.pixelmed.dicom.OtherWordAttribute
-import edu.umro.DicomDict.TagByName
-
 import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
   * Create a hash of the image pixels for all given DICOM files.
@@ -30,73 +25,31 @@ import java.io.File
   * A simple 64 bit CRC algorithm is used, where the accumulating value is
   * bitwise shifted left one bit, and then XOR with the new byte.
   *
-  * The caret operator in Scala (upper case) is XOR.
+  * The work is done by <code>DicomPixelDigest</code>, which reads files in parallel and streams the pixel data.
   */
 object DicomImageCrc {
 
-  private var count = 0
-
-  /**
-    * If the given files is DICOM image file, then print the file name and a CRC of its image bytes.
-    *
-    * @param file DICOM file being input.
-    * @param al   Attribute list of DICOM file.
-    */
-  private def alToCrc(file: File, al: AttributeList): Unit = {
-    val pixelData = al.get(TagByName.PixelData)
-    if (pixelData != null) {
-
-      var crc: Long = 0
-
-      if (pixelData.isInstanceOf[OtherByteAttribute]) {
-        val byteArray = pixelData.getByteValues
-        byteArray.foreach(b => { crc = (crc << 1) ^ (b.toInt & 0xff) })
-      }
-
-      if (pixelData.isInstanceOf[OtherWordAttribute]) {
-        val shortArray = pixelData.getShortValues
-        shortArray.foreach(b => { crc = (crc << 1) ^ (b.toInt & 0xffff) })
-      }
-
-      if (pixelData.isInstanceOf[OtherLongAttribute]) {
-        val intArray = pixelData.getIntegerValues
-        intArray.foreach(b => { crc = (crc << 1) ^ (b & 0xffffffff) })
-      }
-
-      val crcText = "%016x".format(crc)
-      val filePath = file.getAbsolutePath
-      println(s"$crcText : $filePath")
-
-      count = count + 1
-    }
-  }
+  private val count = new AtomicInteger(0)
 
   /**
-    * If a file is DICOM, then make text file for it.
+    * Print the file name and a CRC of its image bytes.
     *
-    * @param dicomFile DICOM file being input.
+    * @param file    DICOM file being input.
+    * @param crcText CRC of image formatted as hex.
     */
-  private def readFile(dicomFile: File): Unit = {
-    try {
-      val al = new AttributeList
-      al.read(dicomFile)
-      alToCrc(dicomFile, al)
-    } catch {
-      case _: Throwable =>
-      // System.err.println("Unable to read file as DICOM.  Ignoring: " + dicomFile.getAbsolutePath)
-    }
+  private def show(file: File, crcText: String): Unit = {
+    val filePath = file.getAbsolutePath
+    println(s"$crcText : $filePath")
+    count.incrementAndGet()
   }
 
   /**
-    * Recursively search a file tree for DICOM files.  For each, write a text file in the same directory.
+    * Recursively search a file tree for DICOM files.  For each, print the CRC of its image.
     *
     * @param file Top level file.  May be a file or directory.
     */
   private def processFilesInTree(file: File): Unit = {
-    if (file.isDirectory)
-      file.listFiles.foreach(f => processFilesInTree(f))
-    else
-      readFile(file)
+    DicomPixelDigest.digestTree(Seq(file), DicomPixelDigest.Algorithm.CRC, Runtime.getRuntime.availableProcessors)((f, crcText) => show(f, crcText))
   }
 
   def main(args: Array[String]): Unit = {
@@ -16,56 +16,33 @@
 
 package edu.umro.ScalaUtil
 
-import com.pixelmed.dicom.AttributeList
-
 import java.io.File
 
 /**
   * Create an MD5 hash of the image pixels for all given DICOM files and, recursively, the directories.
+  *
+  * The work is done by <code>DicomPixelDigest</code>, which reads files in parallel and streams the pixel data.
   */
 object DicomImageHash {
 
   /**
-    * If the given files is DICOM image file, then print the file name and a hash of its image bytes.
+    * Print the file name and a hash of its image bytes.
     *
     * @param file DICOM file being input.
-    * @param al   Attribute list of DICOM file.
+    * @param hashText Hash of image bytes formatted as hex.
     */
-  private def alToHash(file: File, al: AttributeList): Unit = {
-    val byteArray = DicomUtil.PixelDataToByteArray(al)
-    val hash = Crypto.hash(byteArray)
-
-    val hashText = RawByte.formatByteArray(hash)
+  private def show(file: File, hashText: String): Unit = {
     val filePath = file.getAbsolutePath
     println(s"$hashText : $filePath")
   }
 
   /**
-    * If a file is DICOM, then make text file for it.
-    *
-    * @param dicomFile DICOM file being input.
-    */
-  private def readFile(dicomFile: File): Unit = {
-    try {
-      val al = new AttributeList
-      al.read(dicomFile)
-      alToHash(dicomFile, al)
-    } catch {
-      case _: Throwable =>
-      // System.err.println("Unable to read file as DICOM.  Ignoring: " + dicomFile.getAbsolutePath)
-    }
-  }
-
-  /**
-    * Recursively search a file tree for DICOM files.  For each, write a text file in the same directory.
+    * Recursively search a file tree for DICOM files.  For each, print the hash of its image.
     *
     * @param file Top level file.  May be a file or directory.
     */
   private def processFilesInTree(file: File): Unit = {
-    if (file.isDirectory)
-      file.listFiles.foreach(f => processFilesInTree(f))
-    else
-      readFile(file)
+    DicomPixelDigest.digestTree(Seq(file), DicomPixelDigest.Algorithm.MD5, Runtime.getRuntime.availableProcessors)((f, hashText) => show(f, hashText))
   }
 
   def main(args: Array[String]): Unit = {
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+import com.pixelmed.dicom.Attribute
+import com.pixelmed.dicom.AttributeList
+import com.pixelmed.dicom.AttributeTag
+import com.pixelmed.dicom.DicomInputStream
+import com.pixelmed.dicom.DicomOutputStream
+import com.pixelmed.dicom.SequenceAttribute
+import com.pixelmed.dicom.TransferSyntax
+import edu.umro.DicomDict.TagByName
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import scala.collection.JavaConverters._
+
+/**
+  * Persistent index of DICOM file headers so that tools that are run repeatedly over the same
+  * file tree do not have to re-read files that have not changed.
+  *
+  * Each file is keyed by its path, and is considered unchanged if both its size and last modified
+  * time are the same as when it was indexed.  Only the attributes whose tags are in
+  * <code>DicomIndex.tagSet</code> are kept, along with any sequences that contain them, so the
+  * attribute lists returned can be used by existing code that calls <code>get</code>,
+  * <code>findAllTag</code>, or <code>flattenAttributeList</code>.  Files that are not DICOM are
+  * also recorded so that they are not tried again.
+  *
+  * The index is safe to use from multiple threads.  Changes are only written to disk when
+  * <code>save</code> is called.
+  *
+  * @param indexFile File where index is kept.  If it does not exist it will be created by <code>save</code>.
+  */
+class DicomIndex(val indexFile: File) extends Logging {
+
+  /** Indexed files: [absolute path, entry] */
+  private val entryMap = new ConcurrentHashMap[String, DicomIndex.Entry]()
+
+  /** True if there are changes that have not been saved. */
+  private val modified = new AtomicBoolean(false)
+
+  private def load(): Unit = {
+    if (indexFile.canRead) {
+      try {
+        val in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))
+        try {
+          if (in.readInt != DicomIndex.formatVersion)
+            logger.warn("Ignoring DICOM index with unsupported format: " + indexFile.getAbsolutePath)
+          else {
+            val size = in.readInt
+            (0 until size).foreach(_ => {
+              val path = in.readUTF
+              val fileSize = in.readLong
+              val lastModified = in.readLong
+              val headerSize = in.readInt
+              val header =
+                if (headerSize < 0) None
+                else {
+                  val bytes = new Array[Byte](headerSize)
+                  in.readFully(bytes)
+                  Some(bytes)
+                }
+              entryMap.put(path, DicomIndex.Entry(fileSize, lastModified, header))
+            })
+            logger.info("Loaded " + entryMap.size + " entries from DICOM index " + indexFile.getAbsolutePath)
+          }
+        } finally {
+          in.close()
+        }
+      } catch {
+        case t: Throwable =>
+          logger.warn("Unable to read DICOM index " + indexFile.getAbsolutePath + " .  Starting with an empty index: " + fmtEx(t))
+          entryMap.clear()
+      }
+    }
+  }
+
+  load()
+
+  /** Number of files in the index. */
+  def size: Int = entryMap.size
+
+  /**
+    * Get the indexed attributes of a file.  If the file is not in the index or has changed since it was
+    * indexed, then read it and put it in the index.
+    *
+    * @param file DICOM file.
+    * @return Indexed attributes, or nothing if the file is not DICOM.
+    */
+  def get(file: File): Option[AttributeList] = {
+    val path = file.getAbsolutePath
+    val fileSize = file.length
+    val lastModified = file.lastModified
+    val cached = entryMap.get(path)
+
+    val header =
+      if ((cached != null) && (cached.size == fileSize) && (cached.lastModified == lastModified))
+        cached.header
+      else {
+        val bytes = DicomIndex.readHeader(file).map(al => DicomIndex.toBytes(DicomIndex.prune(al)))
+        entryMap.put(path, DicomIndex.Entry(fileSize, lastModified, bytes))
+        modified.set(true)
+        bytes
+      }
+    header.map(DicomIndex.fromBytes)
+  }
+
+  /**
+    * Record that a file has been renamed so that the index entry follows it.  The file's size and
+    * modification time are not changed by a rename, so the entry is still valid.
+    *
+    * @param oldFile Original name of file.
+    * @param newFile New name of file.
+    */
+  def rename(oldFile: File, newFile: File): Unit = {
+    val entry = entryMap.remove(oldFile.getAbsolutePath)
+    if (entry != null) {
+      entryMap.put(newFile.getAbsolutePath, entry)
+      modified.set(true)
+    }
+  }
+
+  /**
+    * Write the index to disk if it has changed.  It is first written to a temporary file so that a
+    * failure part way through does not lose the previous version.
+    */
+  def save(): Unit =
+    entryMap.synchronized {
+      if (modified.getAndSet(false)) {
+        val tmpFile = new File(indexFile.getAbsolutePath + ".tmp")
+        val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))
+        try {
+          val list = entryMap.asScala.toIndexedSeq
+          out.writeInt(DicomIndex.formatVersion)
+          out.writeInt(list.size)
+          list.foreach(pathEntry => {
+            val entry = pathEntry._2
+            out.writeUTF(pathEntry._1)
+            out.writeLong(entry.size)
+            out.writeLong(entry.lastModified)
+            entry.header match {
+              case Some(bytes) =>
+                out.writeInt(bytes.length)
+                out.write(bytes)
+              case _ =>
+                out.writeInt(-1)
+            }
+          })
+        } finally {
+          out.close()
+        }
+        indexFile.delete
+        if (!tmpFile.renameTo(indexFile))
+          logger.warn("Unable to rename " + tmpFile.getAbsolutePath + " to " + indexFile.getAbsolutePath)
+        logger.info("Saved " + entryMap.size + " entries to DICOM index " + indexFile.getAbsolutePath)
+      }
+    }
+}
+
+object DicomIndex extends Logging {
+
+  /** Incremented when the format of the index file or the set of indexed attributes changes. */
+  private val formatVersion = 2
+
+  /**
+    * Name of the system property that specifies the shared index file, as in:
+    *
+    * -DDicomIndex=D:\tmp\dicomIndex.bin
+    */
+  val indexFilePropertyName = "DicomIndex"
+
+  /**
+    * Cached information about a single file.
+    *
+    * @param size         Size of file in bytes when it was indexed.
+    * @param lastModified Modification time of file when it was indexed.
+    * @param header       Indexed attributes encoded as DICOM, or nothing if the file is not DICOM.
+    */
+  private case class Entry(size: Long, lastModified: Long, header: Option[Array[Byte]])
+
+  /**
+    * Attributes that are kept in the index.  This is the union of the attributes used by the tools that
+    * use the index for routing and naming files, so adding a tool that needs others means adding them here, and
+    * incrementing <code>formatVersion</code> so that files indexed without them are read again.
+    *
+    * ReferencedSOPInstanceUID is kept so that the plan referenced by an RTDOSE or RTIMAGE can be found through its
+    * ReferencedRTPlanSequence.
+    */
+  val tagSet: Set[AttributeTag] = Set(
+    TagByName.SpecificCharacterSet,
+    TagByName.SOPClassUID,
+    TagByName.SOPInstanceUID,
+    TagByName.PatientID,
+    TagByName.StudyInstanceUID,
+    TagByName.SeriesInstanceUID,
+    TagByName.FrameOfReferenceUID,
+    TagByName.Modality,
+    TagByName.ManufacturerModelName,
+    TagByName.StudyDescription,
+    TagByName.SeriesDescription,
+    TagByName.RTImageDescription,
+    TagByName.RTPlanLabel,
+    TagByName.RTPlanName,
+    TagByName.ReferencedSOPInstanceUID,
+    TagByName.ImagePositionPatient,
+    TagByName.SliceLocation,
+    TagByName.InstanceNumber,
+    TagByName.Rows,
+    TagByName.Columns,
+    TagByName.GantryAngle,
+    TagByName.BeamLimitingDeviceAngle,
+    TagByName.ContentDate,
+    TagByName.ContentTime,
+    TagByName.AcquisitionDate,
+    TagByName.AcquisitionTime,
+    TagByName.TreatmentDate,
+    TagByName.TreatmentTime,
+    TagByName.TreatmentControlPointDate,
+    TagByName.TreatmentControlPointTime,
+    TagByName.SeriesDate,
+    TagByName.SeriesTime,
+    TagByName.StudyDate,
+    TagByName.StudyTime,
+    TagByName.RTPlanDate,
+    TagByName.RTPlanTime,
+    TagByName.StructureSetDate,
+    TagByName.StructureSetTime,
+    TagByName.InstanceCreationDate,
+    TagByName.InstanceCreationTime,
+    TagByName.CreationDate,
+    TagByName.CreationTime
+  )
+
+  private def readHeader(file: File): Option[AttributeList] = {
+    try {
+      val al = DicomUtil.readHeader(file)
+      if (al.isEmpty) None else Some(al)
+    } catch {
+      case _: Throwable => None
+    }
+  }
+
+  /**
+    * Make a copy of the attribute list that contains only the indexed attributes and the sequences that contain them.
+    */
+  private def prune(al: AttributeList): AttributeList = {
+    val pruned = new AttributeList
+
+    def add(attr: Attribute): Unit = {
+      attr match {
+        case seq: SequenceAttribute =>
+          val itemList = DicomUtil.alOfSeq(seq).map(prune)
+          if (itemList.exists(item => !item.isEmpty)) {
+            val prunedSeq = new SequenceAttribute(seq.getTag)
+            itemList.foreach(item => prunedSeq.addItem(item))
+            pruned.put(prunedSeq)
+          }
+        case _ if tagSet.contains(attr.getTag) => pruned.put(attr)
+        case _                                 =>
+      }
+    }
+
+    al.values.asScala.foreach(add)
+    pruned
+  }
+
+  private def toBytes(al: AttributeList): Array[Byte] = {
+    val byteArrayOutputStream = new ByteArrayOutputStream
+    val dicomOutputStream = new DicomOutputStream(byteArrayOutputStream, null, TransferSyntax.ExplicitVRLittleEndian)
+    al.write(dicomOutputStream)
+    dicomOutputStream.close()
+    byteArrayOutputStream.toByteArray
+  }
+
+  private def fromBytes(bytes: Array[Byte]): AttributeList = {
+    val al = new AttributeList
+    al.read(new DicomInputStream(new ByteArrayInputStream(bytes), TransferSyntax.ExplicitVRLittleEndian, false))
+    al
+  }
+
+  /**
+    * The shared index named by the <code>DicomIndex</code> system property, or nothing if the property is not set,
+    * in which case tools read their files directly as they always have.
+    */
+  lazy val shared: Option[DicomIndex] = {
+    val name = System.getProperty(indexFilePropertyName)
+    if ((name == null) || name.trim.isEmpty) None
+    else Some(new DicomIndex(new File(name.trim)))
+  }
+
+  /**
+    * Save the shared index if there is one.
+    */
+  def saveShared(): Unit = {
+    try {
+      shared.foreach(_.save())
+    } catch {
+      case t: Throwable => logger.warn("Unable to save DICOM index: " + fmtEx(t))
+    }
+  }
+}
@@ -18,12 +18,12 @@
 package edu.umro.ScalaUtil
 
 import java.io.File
-import com.pixelmed.dicom.DicomFileUtilities
 import com.pixelmed.dicom.AttributeList
 import com.pixelmed.dicom.TagFromName
 import com.pixelmed.dicom.SOPClass
 import com.pixelmed.dicom.AttributeTag
 import edu.umro.DicomDict.TagByName
+import scala.collection.JavaConverters._
 
 /**
  * Given a struct, plan, and optionally dose file, create new versions of them that connect them as a set.
@@ -75,14 +75,12 @@ object DicomLinker extends Logging {
 
     def readFiles(file: File): Seq[File] = {
       try {
-        if (DicomFileUtilities.isDicomOrAcrNemaFile(file))
+        if (file.isDirectory)
+          IsDicom.classifyTree(file, Runtime.getRuntime.availableProcessors).asScala.filter(_.isDicom).map(_.file)
+        else if (IsDicom.classify(file).isDicom)
           Seq(file)
-        else {
-          if (file.isDirectory) {
-            FileUtil.listFiles(file).map(f => readFiles(f)).flatten
-          } else
-            emptyList
-        }
+        else
+          emptyList
       } catch {
         case t: Throwable => {
           println("Unexpected exception: " + t)
@@ -109,8 +107,8 @@ object DicomLinker extends Logging {
   }
 
   private case class DicomFile(file: File) {
-    val attributeList = new AttributeList
-    attributeList.read(file)
+    private val lazyDicom = DicomUtil.readLazy(file)
+    val attributeList: AttributeList = lazyDicom.attributeList
 
     val Modality = attributeList.get(TagFromName.Modality).getSingleStringValueOrEmptyString
     val MediaStorageSOPClassUID = attributeList.get(TagFromName.MediaStorageSOPClassUID).getSingleStringValueOrEmptyString
@@ -148,7 +146,7 @@ object DicomLinker extends Logging {
       val outFile = new File(outputDir, file.getName)
       outFile.delete
       println("Writing DICOM file " + outFile.getAbsolutePath)
-      DicomUtil.writeAttributeListToFile(attributeList, outFile, "MROQC Linker")
+      DicomUtil.writeAttributeListToFile(lazyDicom.loadPixelData(), outFile, "MROQC Linker")
     }
   }
 
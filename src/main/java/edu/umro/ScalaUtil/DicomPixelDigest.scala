@@ -0,0 +1,294 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+import com.pixelmed.dicom.AttributeList
+import com.pixelmed.dicom.OtherByteAttribute
+import com.pixelmed.dicom.OtherLongAttribute
+import com.pixelmed.dicom.OtherWordAttribute
+import edu.umro.DicomDict.TagByName
+import gnu.crypto.hash.HashFactory
+import gnu.crypto.hash.IMessageDigest
+
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+  * Compute a digest of the image pixels of DICOM files.  Both the MD5 hash used by <code>DicomImageHash</code> and the
+  * CRC used by <code>DicomImageCrc</code> are supported, and give the same values as those tools.
+  *
+  * When possible the pixel data is streamed directly from the file through a reusable per-thread buffer instead of
+  * reading the whole attribute list.  Files with compressed or otherwise unusual encodings are read the conventional way.
+  *
+  * Results are written one per line as comma separated values:
+  *
+  *     algorithm,digest,file
+  *
+  * Usage:
+  *
+  *     DicomPixelDigest [-crc] [-threads=N] file-or-folder ...
+  */
+object DicomPixelDigest extends Logging {
+
+  object Algorithm extends Enumeration {
+    val MD5, CRC = Value
+  }
+
+  private val bufferSize = 1024 * 1024
+
+  /** Reusable buffer for each thread. */
+  private val threadBuffer = new ThreadLocal[ByteBuffer] {
+    override def initialValue(): ByteBuffer = ByteBuffer.allocate(bufferSize)
+  }
+
+  /** Reusable buffer for each thread for finding the pixel data. */
+  private val threadHeaderBuffer = new ThreadLocal[ByteBuffer] {
+    override def initialValue(): ByteBuffer = ByteBuffer.allocate(64 * 1024)
+  }
+
+  /** Reusable array for the low bytes of 16 bit values for each thread. */
+  private val threadLowBytes = new ThreadLocal[Array[Byte]] {
+    override def initialValue(): Array[Byte] = new Array[Byte](bufferSize / 2)
+  }
+
+  /**
+    * Accumulates a digest one buffer at a time.
+    */
+  private trait Accumulator {
+
+    /** Consume the given number of bytes from the buffer, which is a multiple of the value size. */
+    def add(buffer: ByteBuffer, size: Int): Unit
+
+    def text: String
+  }
+
+  /**
+    * The 64 bit CRC used by DicomImageCrc.  The accumulating value is shifted left one bit and XOR'ed with each value.
+    */
+  private class CrcAccumulator(vr: String) extends Accumulator {
+    private var crc: Long = 0
+
+    override def add(buffer: ByteBuffer, size: Int): Unit = {
+      val end = buffer.position() + size
+      vr match {
+        case "OB" => while (buffer.position() < end) crc = (crc << 1) ^ (buffer.get & 0xff)
+        case "OW" => while (buffer.position() < end) crc = (crc << 1) ^ (buffer.getShort & 0xffff)
+        case "OL" => while (buffer.position() < end) crc = (crc << 1) ^ buffer.getInt
+        case _    => buffer.position(end) // DicomImageCrc does not include other types of pixel data
+      }
+    }
+
+    override def text: String = "%016x".format(crc)
+  }
+
+  /**
+    * The MD5 hash used by DicomImageHash.  Note that for 16 bit pixels this only uses the low order byte of each value
+    * so as to give the same value as <code>DicomUtil.PixelDataToByteArray</code>.
+    */
+  private class Md5Accumulator(vr: String) extends Accumulator {
+    if (!(vr.equals("OB") || vr.equals("OW"))) throw new IOException("Hash not supported for pixel data of type " + vr)
+
+    private val md: IMessageDigest = HashFactory.getInstance(Crypto.defaultHash)
+
+    override def add(buffer: ByteBuffer, size: Int): Unit = {
+      if (vr.equals("OB")) {
+        md.update(buffer.array, buffer.arrayOffset + buffer.position(), size)
+        buffer.position(buffer.position() + size)
+      } else {
+        val lowBytes = threadLowBytes.get
+        var remaining = size / 2
+        while (remaining > 0) {
+          val count = Math.min(remaining, lowBytes.length)
+          (0 until count).foreach(i => lowBytes(i) = buffer.getShort.toByte)
+          md.update(lowBytes, 0, count)
+          remaining = remaining - count
+        }
+      }
+    }
+
+    override def text: String = RawByte.formatByteArray(md.digest)
+  }
+
+  private def makeAccumulator(algorithm: Algorithm.Value, vr: String): Accumulator = {
+    algorithm match {
+      case Algorithm.CRC => new CrcAccumulator(vr)
+      case Algorithm.MD5 => new Md5Accumulator(vr)
+    }
+  }
+
+  /**
+    * Stream the pixel data from the file into the accumulator.
+    */
+  private def digestOfLocation(location: PixelDataLocation, algorithm: Algorithm.Value): String = {
+    val accumulator = makeAccumulator(algorithm, location.vr)
+    val buffer = threadBuffer.get
+    buffer.clear()
+    buffer.order(location.byteOrder)
+    val valueSize = location.valueSize
+
+    val channel = FileChannel.open(location.file.toPath, StandardOpenOption.READ)
+    try {
+      channel.position(location.offset)
+      var remaining = location.length
+      while (remaining >= valueSize) {
+        buffer.limit(Math.min(buffer.capacity.toLong, buffer.position() + remaining).toInt)
+        val count = channel.read(buffer)
+        if (count < 0) throw new IOException("Unexpected end of pixel data in " + location.file.getAbsolutePath)
+        remaining = remaining - count
+        buffer.flip()
+        // only consume whole values, leaving any partial one for the next read
+        accumulator.add(buffer, buffer.remaining - (buffer.remaining % valueSize))
+        buffer.compact()
+      }
+    } finally {
+      channel.close()
+    }
+    accumulator.text
+  }
+
+  /**
+    * Get the digest of an attribute list that has already been read.
+    *
+    * @param al        Contains pixel data.
+    * @param algorithm Digest algorithm.
+    * @return Digest as hex text, or nothing if there is no pixel data or it is not supported.
+    */
+  def digestOfAttributeList(al: AttributeList, algorithm: Algorithm.Value): Option[String] = {
+    val pixelData = al.get(TagByName.PixelData)
+    if (pixelData == null) None
+    else {
+      val vr = pixelData match {
+        case _: OtherByteAttribute => "OB"
+        case _: OtherWordAttribute => "OW"
+        case _: OtherLongAttribute => "OL"
+        case _                     => new String(pixelData.getVR)
+      }
+      try {
+        val accumulator = makeAccumulator(algorithm, vr)
+        val buffer = vr match {
+          case "OB" => ByteBuffer.wrap(pixelData.getByteValues)
+          case "OW" =>
+            val shortValues = pixelData.getShortValues
+            val bb = ByteBuffer.allocate(shortValues.length * 2)
+            bb.asShortBuffer.put(shortValues)
+            bb
+          case "OL" =>
+            val intValues = pixelData.getIntegerValues
+            val bb = ByteBuffer.allocate(intValues.length * 4)
+            bb.asIntBuffer.put(intValues)
+            bb
+          case _ => ByteBuffer.allocate(0)
+        }
+        accumulator.add(buffer, buffer.remaining)
+        Some(accumulator.text)
+      } catch {
+        case _: IOException => None
+      }
+    }
+  }
+
+  /**
+    * Get the digest of the pixel data in a file.
+    *
+    * @param file      DICOM file.
+    * @param algorithm Digest algorithm.
+    * @return Digest as hex text, or nothing if the file is not DICOM or has no supported pixel data.
+    */
+  def digest(file: File, algorithm: Algorithm.Value): Option[String] = {
+    try {
+      PixelDataLocation.find(file, threadHeaderBuffer.get) match {
+        case Right(Some(location)) => Some(digestOfLocation(location, algorithm))
+        case Right(None)           => None
+        case Left(_) =>
+          val al = new AttributeList
+          al.read(file)
+          digestOfAttributeList(al, algorithm)
+      }
+    } catch {
+      case _: Throwable => None
+    }
+  }
+
+  /**
+    * Get the digest of every file in the given trees using multiple threads.  Files are processed in no
+    * particular order.  The number of files waiting to be processed is bounded, so memory use does not
+    * depend on the size of the tree.
+    *
+    * @param fileList    Files and directories to process.
+    * @param algorithm   Digest algorithm.
+    * @param threadCount Number of threads to use.
+    * @param handler     Called with each file and its digest.  Files without supported pixel data are not reported.  Must be thread safe.
+    */
+  def digestTree(fileList: Seq[File], algorithm: Algorithm.Value, threadCount: Int)(handler: (File, String) => Unit): Unit = {
+    val count = Math.max(1, threadCount)
+    val pool = new ThreadPoolExecutor(count, count, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue[Runnable](count * 4), new ThreadPoolExecutor.CallerRunsPolicy)
+
+    def process(file: File): Unit = {
+      if (file.isDirectory)
+        FileUtil.listFiles(file).foreach(process)
+      else
+        pool.execute(new Runnable {
+          override def run(): Unit = digest(file, algorithm).foreach(d => handler(file, d))
+        })
+    }
+
+    try {
+      fileList.foreach(process)
+    } finally {
+      pool.shutdown()
+      pool.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  /**
+    * Quote a field for CSV output if it needs it.
+    */
+  private def csv(text: String): String = {
+    if (text.exists(c => (c == ',') || (c == '"') || (c == '\n'))) "\"" + text.replace("\"", "\"\"") + "\""
+    else text
+  }
+
+  def main(args: Array[String]): Unit = {
+    try {
+      val start = System.currentTimeMillis
+      val algorithm = if (args.exists(_.equalsIgnoreCase("-crc"))) Algorithm.CRC else Algorithm.MD5
+      val threadCount = args.find(_.startsWith("-threads=")).map(_.replace("-threads=", "").toInt).getOrElse(Runtime.getRuntime.availableProcessors)
+      val fileList = args.filterNot(_.startsWith("-")).map(a => new File(a)).toSeq
+      if (fileList.isEmpty)
+        println("Compute digests of DICOM pixel data.\nUsage: DicomPixelDigest [-crc] [-threads=N] myFolder myFile.dcm ...")
+
+      val lock = new Object
+      var count = 0
+      digestTree(fileList, algorithm, threadCount)((file, digest) =>
+        lock.synchronized {
+          println(algorithm + "," + digest + "," + csv(file.getAbsolutePath))
+          count = count + 1
+        }
+      )
+      logger.info("Done.  Elapsed ms: " + (System.currentTimeMillis - start) + "    number of DICOM image files: " + count)
+    } catch {
+      case t: Throwable =>
+        t.printStackTrace()
+    }
+  }
+}
@@ -150,7 +150,7 @@ object DicomReceiver extends Logging {
   class DefaultReceivedObjectHandler extends ReceivedObjectHandler {
     override def sendReceivedObjectIndication(fileName: String, transferSyntax: String, callingAETitle: String): Unit = {
       logger.info("Received DICOM from " + callingAETitle + " file " + " DICOM file " + fileName)
-      count = count + 1
+      DicomReceiver.synchronized { count = count + 1 }
     }
   }
 
@@ -26,14 +26,16 @@ import java.util.Date
   * Represent a single DICOM file.
   *
   * While it would be simpler to include the attribute list in the class parameters, that would require too much
-  * memory to store them all, so this is constructed with the <code>DicomFile.getSortingText</code> function
-  * which allows the attribute lists to be garbage collected.
+  * memory to store them all, so this is constructed with the values needed for sorting, which allows the
+  * attribute lists to be garbage collected.
   *
-  * @param forInInst  List of frame of reference indexes.
-  * @param sourceFile Source file.
-  * @param date       Date associated with file.
+  * @param forInInst    List of frame of reference indexes.
+  * @param sourceFile   Source file.
+  * @param date         Date associated with file.
+  * @param sortPosition ImagePositionPatient scaled to integers for sorting.  Empty if not present.
+  * @param sortInstance InstanceNumber values for sorting.  Empty if not present.
   */
-case class DicomFile(forInInst: Seq[Int], sourceFile: File, date: Date, sortingText: String, specialName: Option[String], series: Series) {
+case class DicomFile(forInInst: Seq[Int], sourceFile: File, date: Date, sortPosition: IndexedSeq[Long], sortInstance: IndexedSeq[Int], specialName: Option[String], series: Series) {
 
   val uniqueId: Int = series.makeUniqueId()
 
@@ -43,31 +45,92 @@ case class DicomFile(forInInst: Seq[Int], sourceFile: File, date: Date, sortingT
 object DicomFile {
 
   /**
-    * Get a string that when compared to others, with sort files in the way that the user wants.  The attributes
-    * used reflect physical position and slice instance number.  If these are both absent then the file's time
-    * may be used.
+    * Get the values to sort by.  The attributes used reflect physical position and slice instance number.  If these
+    * are both absent then the file's time may be used.
     *
     * @param al Use values from here.
-    * @return
+    * @return Scaled position and instance numbers.
     */
-  private def getSortingText(al: AttributeList): String = {
+  private def getSortValues(al: AttributeList): (IndexedSeq[Long], IndexedSeq[Int]) = {
     val position = al.get(TagByName.ImagePositionPatient)
-    val positionText =
-      if (position == null) ""
+    val sortPosition =
+      if (position == null) IndexedSeq[Long]()
       else
-        position.getDoubleValues.map(d => ((d + 10000.0) * 1000).toLong.formatted("%020d")).mkString(" ")
+        position.getDoubleValues.map(d => ((d + 10000.0) * 1000).toLong).toIndexedSeq
 
     val instanceNumber = al.get(TagByName.InstanceNumber)
-    val instanceText =
+    val sortInstance =
       if ((instanceNumber == null) || (instanceNumber.getIntegerValues == null) || instanceNumber.getIntegerValues.isEmpty)
-        ""
-      else {
-        instanceNumber.getIntegerValues.map(i => i.formatted("%010d")).mkString(" ")
-      }
+        IndexedSeq[Int]()
+      else
+        instanceNumber.getIntegerValues.toIndexedSeq
+
+    (sortPosition, sortInstance)
+  }
 
+  /**
+    * Get a string that when compared to others, with sort files in the way that the user wants.  This is only used
+    * for files whose sorting values can not be compared as numbers.
+    *
+    * @param sortPosition Scaled position values.
+    * @param sortInstance Instance numbers.
+    * @return Fixed width text of the values.
+    */
+  private def getSortingText(sortPosition: Seq[Long], sortInstance: Seq[Int]): String = {
+    val positionText = sortPosition.map(p => p.formatted("%020d")).mkString(" ")
+    val instanceText = sortInstance.map(i => i.formatted("%010d")).mkString(" ")
     positionText + instanceText
   }
 
+  /**
+    * Key computed once per file for sorting.  Files are sorted by the text of their sorting values followed by their
+    * formatted date.  When both files have three non-negative position values and the same number (zero or one) of
+    * non-negative instance numbers, comparing the numbers gives the same result as comparing the fixed width text, so
+    * the text is only made for unusual files.
+    */
+  private class SortKey(val dicomFile: DicomFile, val dateText: String) {
+    private val position = dicomFile.sortPosition
+    private val instance = dicomFile.sortInstance
+
+    val isRegular: Boolean = (position.length == 3) && position.forall(_ >= 0) && (instance.length <= 1) && instance.forall(_ >= 0)
+
+    lazy val text: String = getSortingText(position, instance) + dateText
+
+    def compare(other: SortKey): Int = {
+      if (isRegular && other.isRegular && (instance.length == other.instance.length)) {
+        val c0 = java.lang.Long.compare(position(0), other.position(0))
+        val c1 = if (c0 != 0) c0 else java.lang.Long.compare(position(1), other.position(1))
+        val c2 = if (c1 != 0) c1 else java.lang.Long.compare(position(2), other.position(2))
+        val c3 = if ((c2 != 0) || instance.isEmpty) c2 else java.lang.Integer.compare(instance(0), other.instance(0))
+        if (c3 != 0) c3 else dateText.compareTo(other.dateText)
+      } else
+        text.compareTo(other.text)
+    }
+  }
+
+  private val sortKeyOrdering = new Ordering[SortKey] {
+    override def compare(a: SortKey, b: SortKey): Int = a.compare(b)
+  }
+
+  /** Series with at least this many files are sorted in parallel. */
+  private val parallelSortSize = 10 * 1000
+
+  /**
+    * Sort files by their position, instance number, and date.  The key of each file is computed once instead of
+    * for every comparison.  The sort is stable, so files that are the same by all of these keep their order.
+    *
+    * @param dicomFileList Files to sort.
+    * @return Sorted files.
+    */
+  def sort(dicomFileList: Seq[DicomFile]): Seq[DicomFile] = {
+    val keyArray = dicomFileList.map(df => new SortKey(df, TreeUtil.standardDateFormat.format(df.date))).toArray
+    if (keyArray.length >= parallelSortSize)
+      java.util.Arrays.parallelSort(keyArray, sortKeyOrdering)
+    else
+      java.util.Arrays.sort(keyArray, sortKeyOrdering)
+    keyArray.map(_.dicomFile).toIndexedSeq
+  }
+
   def constructDicomFile(al: AttributeList, sourceFile: File, series: Series): DicomFile = {
     val specialName: Option[String] = {
       if (al.get(TagByName.Modality).getSingleStringValueOrEmptyString.equals("RTIMAGE")) {
@@ -84,7 +147,8 @@ object DicomFile {
 
       } else None
     }
-    val df = DicomFile(FORMap.getForList(al), sourceFile, TreeUtil.getDateTime(al), getSortingText(al), specialName, series)
+    val sortValues = getSortValues(al)
+    val df = DicomFile(FORMap.getForList(al), sourceFile, TreeUtil.getDateTime(al), sortValues._1, sortValues._2, specialName, series)
     df
   }
 }
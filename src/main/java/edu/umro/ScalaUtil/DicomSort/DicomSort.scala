@@ -16,10 +16,16 @@
 
 package edu.umro.ScalaUtil.DicomSort
 
+import com.pixelmed.dicom.AttributeList
 import edu.umro.DicomDict.TagByName
+import edu.umro.ScalaUtil.DicomIndex
 import edu.umro.ScalaUtil.FileUtil
+import edu.umro.ScalaUtil.Metrics
 
 import java.io.File
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 
 object DicomSort {
 
@@ -38,20 +44,38 @@ object DicomSort {
 
   var fileCount = 0
 
+  /**
+    * Number of threads used to read DICOM files.  Defaults to the number of processors, and may be
+    * overridden on the command line with, for example: -DDicomSort.threadCount=4
+    */
+  private val threadCount: Int = {
+    try {
+      Math.max(1, System.getProperty("DicomSort.threadCount", Runtime.getRuntime.availableProcessors.toString).trim.toInt)
+    } catch {
+      case _: Throwable => Runtime.getRuntime.availableProcessors
+    }
+  }
+
+  /**
+    * Maximum number of files that may be read ahead of the one being added to the data structures.  This
+    * bounds the number of attribute lists held in memory regardless of how many files are in the tree.
+    */
+  private val readAheadLimit = threadCount * 4
+
   /**
     * Add the references of the given file to the data structures.
     *
-    * @param file Read this file.
+    * @param file File that was read.
+    * @param attributeList Contents of file, or nothing if it was not DICOM.
     */
-  private def addFile(file: File): Unit = {
+  private def addFile(file: File, attributeList: Option[AttributeList]): Unit = {
     try {
-      TreeUtil.readFile(file) match {
+      attributeList match {
         case Some(al) =>
           print(".")
           fileCount = fileCount + 1
           val PatientID = TreeUtil.getAttr(al, TagByName.PatientID)
-          if (!PatientMap.contains(PatientID)) PatientMap.put(PatientID, Patient(PatientID))
-          PatientMap.get(PatientID).add(file, al)
+          PatientMap.getOrPut(PatientID).add(file, al)
         case _ =>
       }
     } catch {
@@ -62,13 +86,52 @@ object DicomSort {
   /**
     * Crawl the file tree, adding any DICOM files to the data structures.
     *
-    * @param file File in input tree.
+    * Files are read in parallel, but are added to the data structures in the same order that they
+    * are found in the tree.  This matters because frame of reference indexes and unique IDs are
+    * assigned in the order that they are encountered, and they are used in the output file names.
+    * Keeping the order means that the output tree is the same as if the files were read one at a time.
+    *
+    * @param inDir Top of input tree.
     */
-  private def addFilesInTree(file: File): Unit = {
-    if (file.isDirectory)
-      TreeUtil.listFilesSafely(file).foreach(f => addFilesInTree(f))
-    else
-      addFile(file)
+  private def addFilesInTree(inDir: File): Unit = {
+    val pool = Executors.newFixedThreadPool(threadCount)
+
+    /** Files that are being read, in the order they were found. */
+    val pending = new java.util.ArrayDeque[(File, Future[Option[AttributeList]])]()
+
+    def addNext(): Unit = {
+      val (file, future) = pending.removeFirst()
+      val al =
+        try {
+          future.get
+        } catch {
+          case _: Throwable => None
+        }
+      addFile(file, al)
+    }
+
+    def read(file: File): Unit = {
+      // wait for the oldest file if too many are already being read
+      if (pending.size >= readAheadLimit) addNext()
+      val future = pool.submit(new Callable[Option[AttributeList]] {
+        override def call(): Option[AttributeList] = TreeUtil.readFile(file)
+      })
+      pending.addLast((file, future))
+    }
+
+    def crawl(file: File): Unit = {
+      if (file.isDirectory)
+        TreeUtil.listFilesSafely(file).foreach(f => crawl(f))
+      else
+        read(file)
+    }
+
+    try {
+      crawl(inDir)
+      while (!pending.isEmpty) addNext()
+    } finally {
+      pool.shutdownNow()
+    }
   }
 
   /**
@@ -122,18 +185,23 @@ object DicomSort {
         }
       }
 
-      addFilesInTree(inDir)
+      Metrics.timer("DicomSort.readTree").time(addFilesInTree(inDir))
 
       showStats()
 
-      if (PatientMap.size < 2)
-        PatientMap.values.foreach(patient => patient.move(outDir))
-      else
-        PatientMap.values.foreach(patient => patient.move(new File(outDir, FileUtil.replaceInvalidFileNameCharacters(patient.PatientID, replacement = '_'))))
+      Metrics.timer("DicomSort.move").time {
+        if (PatientMap.size < 2)
+          PatientMap.values.foreach(patient => patient.move(outDir))
+        else
+          PatientMap.values.foreach(patient => patient.move(new File(outDir, FileUtil.replaceInvalidFileNameCharacters(patient.PatientID, replacement = '_'))))
+      }
 
       println("\nDeleting empty directories...")
       deleteFilesInTree(inDir)
 
+      DicomIndex.saveShared()
+
+      println("\n" + Metrics.report)
       println("\nDone.  Elapsed ms: " + (System.currentTimeMillis - start))
     } catch {
       case t: Throwable =>
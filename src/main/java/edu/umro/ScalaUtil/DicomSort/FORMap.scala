@@ -47,7 +47,7 @@ object FORMap {
       forList(forUID)
     }
 
-    list.map(forUID => addToList(forUID))
+    forList.synchronized(list.map(forUID => addToList(forUID)))
   }
 
 }
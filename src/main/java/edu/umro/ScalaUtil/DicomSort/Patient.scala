@@ -24,7 +24,7 @@ import java.io.File
 case class Patient(PatientID: String) {
   private val studyList = scala.collection.mutable.Map[String, Study]()
 
-  def getStudyList: Map[String, Study] = studyList.toMap
+  def getStudyList: Map[String, Study] = studyList.synchronized(studyList.toMap)
 
   /**
     * Add a file by putting the related information into the data structures.
@@ -34,8 +34,8 @@ case class Patient(PatientID: String) {
     */
   def add(file: File, al: AttributeList): Unit = {
     val StudyInstanceUID = TreeUtil.getAttr(al, TagByName.StudyInstanceUID)
-    if (!studyList.contains(StudyInstanceUID)) studyList.put(StudyInstanceUID, Study(StudyInstanceUID))
-    studyList(StudyInstanceUID).add(file, al)
+    val study = studyList.synchronized(studyList.getOrElseUpdate(StudyInstanceUID, Study(StudyInstanceUID)))
+    study.add(file, al)
   }
 
   /**
@@ -24,7 +24,7 @@ object PatientMap {
   /** Map of all patients found: [PatientID, Patient] */
   private val patientList = scala.collection.mutable.Map[String, Patient]()
 
-  def contains(PatientID: String): Boolean = patientList.contains(PatientID)
+  def contains(PatientID: String): Boolean = patientList.synchronized(patientList.contains(PatientID))
 
   /**
     * Put into the map.  Wrap it in a synchronized in case this is ever done in parallel.
@@ -36,9 +36,18 @@ object PatientMap {
     patientList.synchronized(patientList.put(PatientID, patient))
   }
 
-  def get(PatientID: String): Patient = patientList(PatientID)
+  def get(PatientID: String): Patient = patientList.synchronized(patientList(PatientID))
 
-  def size: Int = patientList.size
+  /**
+    * Get the patient with the given ID, creating and adding it if it is not already in the map.  Checking and
+    * adding are done atomically so that files from the same patient may be added from different threads.
+    *
+    * @param PatientID Patient ID.
+    * @return Patient with the given ID.
+    */
+  def getOrPut(PatientID: String): Patient = patientList.synchronized(patientList.getOrElseUpdate(PatientID, Patient(PatientID)))
+
+  def size: Int = patientList.synchronized(patientList.size)
 
-  def values: Seq[Patient] = patientList.values.toIndexedSeq
+  def values: Seq[Patient] = patientList.synchronized(patientList.values.toIndexedSeq)
 }
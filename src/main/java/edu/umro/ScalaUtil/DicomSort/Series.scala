@@ -23,6 +23,7 @@ import edu.umro.DicomDict.TagByName
 import java.io.File
 import java.text.SimpleDateFormat
 import java.util.Date
+import java.util.concurrent.atomic.AtomicInteger
 
 case class Series(SeriesInstanceUID: String, Modality: String) {
   private val dicomFileList = scala.collection.mutable.Map[String, DicomFile]()
@@ -31,19 +32,15 @@ case class Series(SeriesInstanceUID: String, Modality: String) {
 
   val uniqueId: Int = TreeUtil.uniqueInt()
 
-  private var uniqueInteger = 0
+  private val uniqueInteger = new AtomicInteger(0)
 
-  def makeUniqueId(): Int =
-    uniqueInteger.synchronized {
-      uniqueInteger = uniqueInteger + 1
-      uniqueInteger
-    }
+  def makeUniqueId(): Int = uniqueInteger.incrementAndGet()
 
   def getDescription: Option[String] = seriesDescription
 
-  def size(): Int = dicomFileList.size
+  def size(): Int = dicomFileList.synchronized(dicomFileList.size)
 
-  def forList(): Seq[Int] = dicomFileList.values.toIndexedSeq.flatMap(df => df.forInInst).distinct.sorted
+  def forList(): Seq[Int] = dicomFileList.synchronized(dicomFileList.values.toIndexedSeq).flatMap(df => df.forInInst).distinct.sorted
 
   /**
     * If there is a series description, then save it.
@@ -75,13 +72,14 @@ case class Series(SeriesInstanceUID: String, Modality: String) {
     * @param sourceFile File to add
     * @param al         Attribute list reflecting contents of file.
     */
-  def add(sourceFile: File, al: AttributeList): Unit = {
-    setDescription(al)
-    val SOPInstanceUID = TreeUtil.getAttr(al, TagByName.SOPInstanceUID)
-    if (dicomFileList.contains(SOPInstanceUID)) {
-      println("\nFile with duplicate SOPInstanceUID ignored: " + sourceFile.getAbsolutePath + "  Previous file: " + dicomFileList(SOPInstanceUID).sourceFile.getAbsolutePath)
-    } else dicomFileList.put(SOPInstanceUID, DicomFile.constructDicomFile(al, sourceFile, this))
-  }
+  def add(sourceFile: File, al: AttributeList): Unit =
+    dicomFileList.synchronized {
+      setDescription(al)
+      val SOPInstanceUID = TreeUtil.getAttr(al, TagByName.SOPInstanceUID)
+      if (dicomFileList.contains(SOPInstanceUID)) {
+        println("\nFile with duplicate SOPInstanceUID ignored: " + sourceFile.getAbsolutePath + "  Previous file: " + dicomFileList(SOPInstanceUID).sourceFile.getAbsolutePath)
+      } else dicomFileList.put(SOPInstanceUID, DicomFile.constructDicomFile(al, sourceFile, this))
+    }
 
   /**
     * Get date of series, which is the minimum date of all of the files in the series.
@@ -162,7 +160,7 @@ case class Series(SeriesInstanceUID: String, Modality: String) {
         TreeUtil.renameFile(df.sourceFile, newFile)
       }
 
-      val sortedList = dicomFileList.values.toIndexedSeq.sortBy(df => df.sortingText + TreeUtil.standardDateFormat.format(df.date))
+      val sortedList = DicomFile.sort(dicomFileList.values.toIndexedSeq)
       sortedList.zipWithIndex.foreach(dfIndex => moveFile(dfIndex._1, dfIndex._2))
     }
   }
@@ -24,7 +24,7 @@ import java.util.Date
 
 case class Study(StudyInstanceUID: String) {
   private val seriesList = scala.collection.mutable.Map[String, Series]()
-  def getSeriesList: Map[String, Series] = seriesList.toMap
+  def getSeriesList: Map[String, Series] = seriesList.synchronized(seriesList.toMap)
 
   val uniqueId: Int = TreeUtil.uniqueInt()
 
@@ -54,10 +54,12 @@ case class Study(StudyInstanceUID: String) {
     * @param al   Attribute list reflecting contents of file.
     */
   def add(file: File, al: AttributeList): Unit = {
-    setDescription(al)
-    val SeriesInstanceUID = TreeUtil.getAttr(al, TagByName.SeriesInstanceUID)
-    if (!seriesList.contains(SeriesInstanceUID)) seriesList.put(SeriesInstanceUID, Series(SeriesInstanceUID, TreeUtil.getAttr(al, TagByName.Modality)))
-    seriesList(SeriesInstanceUID).add(file, al)
+    val series = seriesList.synchronized {
+      setDescription(al)
+      val SeriesInstanceUID = TreeUtil.getAttr(al, TagByName.SeriesInstanceUID)
+      seriesList.getOrElseUpdate(SeriesInstanceUID, Series(SeriesInstanceUID, TreeUtil.getAttr(al, TagByName.Modality)))
+    }
+    series.add(file, al)
   }
 
   /**
@@ -17,19 +17,26 @@
 package edu.umro.ScalaUtil.DicomSort
 
 import com.pixelmed.dicom.AttributeList
-import com.pixelmed.dicom.AttributeList.ReadTerminationStrategy
 import com.pixelmed.dicom.AttributeTag
 import edu.umro.DicomDict.TagByName
+import edu.umro.ScalaUtil.DicomIndex
 import edu.umro.ScalaUtil.DicomUtil
 import edu.umro.ScalaUtil.FileUtil
+import edu.umro.ScalaUtil.Metrics
 
 import java.io.File
 import java.text.SimpleDateFormat
 import java.util.Date
+import java.util.concurrent.atomic.AtomicInteger
 import scala.annotation.tailrec
 
 object TreeUtil {
 
+  private val readTimer = Metrics.timer("DicomSort.read")
+  private val fileCounter = Metrics.counter("DicomSort.filesRead")
+  private val byteCounter = Metrics.counter("DicomSort.bytesRead")
+  private val failedCounter = Metrics.counter("DicomSort.filesNotDicom")
+
   /**
     * Given a list of FOR (frame of reference UID) indexes, format it as text with a leading _.  Example
     *
@@ -152,17 +159,6 @@ object TreeUtil {
     formatted
   }
 
-  /**
-    * Stop reading DICOM before the pixel data.
-    */
-  private class DicomReadStrategy extends ReadTerminationStrategy {
-    override def terminate(attributeList: AttributeList, tag: AttributeTag, byteOffset: Long): Boolean = {
-      tag.getGroup >= 0x6000
-    }
-  }
-
-  private val dicomReadStrategy = new DicomReadStrategy
-
   /**
     * Read a DICOM file.  If it contains DICOM, then return the corresponding attribute list.
     *
@@ -171,12 +167,19 @@ object TreeUtil {
     */
   def readFile(dicomFile: File): Option[AttributeList] = {
     try {
-      val al = new AttributeList
-      al.read(dicomFile, dicomReadStrategy)
+      val al = readTimer.time {
+        DicomIndex.shared match {
+          case Some(index) => index.get(dicomFile).get
+          case _           => DicomUtil.readHeader(dicomFile)
+        }
+      }
+      fileCounter.increment()
+      byteCounter.add(dicomFile.length)
       print(".") // show read progress to user
       Some(al)
     } catch {
       case _: Throwable =>
+        failedCounter.increment()
         println("Unable to read file as DICOM.  Ignoring: " + dicomFile.getAbsolutePath)
         None
     }
@@ -217,15 +220,13 @@ object TreeUtil {
             false
         }
       }
-      doRename(oldFile.renameTo(newFile))
+      val renamed = doRename(oldFile.renameTo(newFile))
+      if (renamed) DicomIndex.shared.foreach(_.rename(oldFile, newFile))
+      renamed
     }
   }
 
-  private var uniqueInteger = 0
-  def uniqueInt(): Int =
-    uniqueInteger.synchronized {
-      uniqueInteger = uniqueInteger + 1
-      uniqueInteger
-    }
+  private val uniqueInteger = new AtomicInteger(0)
+  def uniqueInt(): Int = uniqueInteger.incrementAndGet()
 
 }
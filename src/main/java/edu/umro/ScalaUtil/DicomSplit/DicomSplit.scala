@@ -3,12 +3,20 @@ package edu.umro.ScalaUtil.DicomSplit
 import com.pixelmed.dicom.AttributeList
 import com.pixelmed.dicom.AttributeTag
 import edu.umro.DicomDict.TagByName
+import edu.umro.ScalaUtil.DicomUidPatch
 import edu.umro.ScalaUtil.DicomUtil
 import edu.umro.ScalaUtil.FileUtil
 import edu.umro.ScalaUtil.Logging
 import edu.umro.util.UMROGUID
 
 import java.io.File
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import scala.collection.JavaConverters._
 
 /**
   * Split a 4D DICOM image series into several 3D image series.
@@ -35,10 +43,22 @@ object DicomSplit extends Logging {
     tag
   }
 
+  /**
+    * Read only as much of the file as needed to get the SliceLocation and differentiating tag.  If the tag is not at
+    * the top level, then it may be in a sequence, so read the rest of the header.
+    */
+  private def readGroupingHeader(file: File, diffTag: AttributeTag): AttributeList = {
+    val last = Seq(TagByName.SliceLocation, diffTag).maxBy(t => (t.getGroup.toLong << 16) + t.getElement)
+    val al = DicomUtil.readHeaderThrough(file, last)
+    if (DicomUtil.findAllTag(al, diffTag).isEmpty)
+      DicomUtil.readHeader(file)
+    else
+      al
+  }
+
   private def makeDicomFile(file: File, diffTag: AttributeTag): Option[DicomFile] = {
     try {
-      val al = new AttributeList
-      al.read(file)
+      val al = readGroupingHeader(file, diffTag)
       val SliceLocation = al.get(TagByName.SliceLocation).getDoubleValues.head + zero
       val diffAttr = DicomUtil.findAllTag(al, diffTag).head.getSingleStringValueOrNull
       val diffText = new String(diffAttr)
@@ -73,6 +93,112 @@ object DicomSplit extends Logging {
     println(df.diff + " : " + df.SliceLocation.formatted("%12.6f") + " new file " + file.getAbsolutePath)
   }
 
+  /**
+    * Make a pool of threads with a bounded queue.  When the queue is full the submitting thread does the work itself.
+    */
+  private def makePool(threadCount: Int): ThreadPoolExecutor =
+    new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue[Runnable](threadCount * 4), new ThreadPoolExecutor.CallerRunsPolicy)
+
+  private def awaitPool(pool: ThreadPoolExecutor): Unit = {
+    pool.shutdown()
+    pool.awaitTermination(Long.MaxValue, TimeUnit.DAYS)
+  }
+
+  /**
+    * Read the headers of all files in parallel.  Files that can not be used are ignored.
+    */
+  private def readAll(fileList: Seq[File], diffTag: AttributeTag, threadCount: Int): Seq[DicomFile] = {
+    val queue = new ConcurrentLinkedQueue[DicomFile]()
+    val pool = makePool(threadCount)
+    fileList.foreach(file =>
+      pool.execute(new Runnable {
+        override def run(): Unit = makeDicomFile(file, diffTag).foreach(df => queue.add(df))
+      })
+    )
+    awaitPool(pool)
+    queue.asScala.toSeq
+  }
+
+  /** Buffer for each thread to use for patching files. */
+  private val patchBuffer = new ThreadLocal[ByteBuffer] {
+    override def initialValue(): ByteBuffer = ByteBuffer.allocate(16 * 1024)
+  }
+
+  /**
+    * Write a new version of the file with the given UIDs by patching them into a copy of the file, which does not
+    * parse the rest of the file.  If the file can not be patched, then read and rewrite the whole file.
+    *
+    * @return True if the file was patched.
+    */
+  private def patchNew(df: DicomFile, dir: File, seriesUid: String, sopUid: String): Boolean = {
+    val file = new File(dir, df.file.getName)
+    val uidMap = Map(TagByName.SeriesInstanceUID -> seriesUid, TagByName.SOPInstanceUID -> sopUid)
+    if (DicomUidPatch.patch(df.file, file, uidMap, patchBuffer.get))
+      true
+    else {
+      val al = new AttributeList
+      al.read(df.file)
+      uidMap.foreach(tu => {
+        val attr = al.get(tu._1)
+        attr.removeValues()
+        attr.addValue(tu._2)
+      })
+      DicomUtil.writeAttributeListToFile(al, file, "DicomSplit")
+      false
+    }
+  }
+
+  /**
+    * Write all groups, reading and writing each file once, with multiple files being written at the same time.
+    * Progress is reported as each group is finished.
+    *
+    * @param groupList   Directory name and files for each group.
+    * @param threadCount Number of files written at the same time.
+    */
+  private def writeAllGroups(groupList: Seq[(String, Seq[DicomFile])], threadCount: Int): Unit = {
+    val start = System.currentTimeMillis
+    val pool = makePool(threadCount)
+    val failedCount = new AtomicInteger(0)
+
+    groupList.foreach(group => {
+      val (dirName, list) = group
+      val dir = new File(list.head.file.getParentFile, dirName)
+      FileUtil.deleteFileTree(dir)
+      dir.mkdirs()
+      val seriesUid = UMROGUID.getUID
+      val doneCount = new AtomicInteger(0)
+      val rewrittenCount = new AtomicInteger(0)
+
+      def finish(): Unit = {
+        if (doneCount.incrementAndGet() == list.size) {
+          val rewritten = if (rewrittenCount.get == 0) "" else "   rewritten instead of patched: " + rewrittenCount.get
+          println("Finished group " + dirName + " : " + list.size + " files in " + dir.getAbsolutePath + "   elapsed ms: " + (System.currentTimeMillis - start) + rewritten)
+        }
+      }
+
+      // assign UIDs in slice order, as writeGroup does, because files are read in no particular order
+      list.sortBy(_.SliceLocation).foreach(df => {
+        val sopUid = UMROGUID.getUID
+        pool.execute(new Runnable {
+          override def run(): Unit = {
+            try {
+              if (!patchNew(df, dir, seriesUid, sopUid)) rewrittenCount.incrementAndGet()
+            } catch {
+              case t: Throwable =>
+                failedCount.incrementAndGet()
+                println("Unable to write new version of " + df.file.getAbsolutePath + " : " + fmtEx(t))
+            } finally {
+              finish()
+            }
+          }
+        })
+      })
+    })
+
+    awaitPool(pool)
+    println("Wrote " + groupList.map(_._2.size).sum + " files in " + groupList.size + " groups.  Failures: " + failedCount.get + "   elapsed ms: " + (System.currentTimeMillis - start))
+  }
+
   private def writeGroup(dirName: String, list: Seq[DicomFile]): Unit = {
     val dir = new File(list.head.file.getParentFile, dirName)
     FileUtil.deleteFileTree(dir)
@@ -85,7 +211,7 @@ object DicomSplit extends Logging {
     println("""
         |Split a 4D DICOM image series into multiple 3D series.
         |
-        |Usage: dir tag [split]
+        |Usage: dir tag [split|stream] [-threads=N]
         |
         |   dir: source directory containing all the files for a single series.
         |
@@ -96,6 +222,14 @@ object DicomSplit extends Logging {
         |       will only look at files and print information on how they
         |       would be split up.
         |
+        |   [stream]: Like split, but reads only the headers of files to group
+        |       them, and then writes each new file once by copying the
+        |       original and replacing its UIDs, using multiple threads.
+        |       Progress is shown as each group is finished.
+        |
+        |   [-threads=N]: Number of files read or written at the same time
+        |       when streaming.  Default is the number of processors.
+        |
         |   Examples:
         |       Read the files in mydir and list the groups that they would
         |       be split into, along with their slice locations.  Use 0018,0022
@@ -110,11 +244,18 @@ object DicomSplit extends Logging {
         |
         |           dicomsplit somedir 0020,9241 split
         |
+        |       Do the same, but faster for large series.
+        |
+        |           dicomsplit somedir 0020,9241 stream
+        |
         |""".stripMargin)
     System.exit(status)
   }
 
-  def main(args: Array[String]): Unit = {
+  def main(commandLine: Array[String]): Unit = {
+
+    val threadCount = commandLine.find(_.startsWith("-threads=")).map(_.replace("-threads=", "").toInt).getOrElse(Runtime.getRuntime.availableProcessors)
+    val args = commandLine.filterNot(_.startsWith("-threads="))
 
     if ((args.length < 2) || (args.length > 3))
       usage(0)
@@ -123,7 +264,12 @@ object DicomSplit extends Logging {
       val dir = new File(args(0))
       println("Using directory: " + dir.getAbsolutePath)
       val tag = makeTag(args(1))
-      val list = FileUtil.listFiles(dir).flatMap(file => makeDicomFile(file, tag))
+      val stream = (args.length == 3) && args(2).equalsIgnoreCase("stream")
+      val list =
+        if (stream)
+          readAll(FileUtil.listFiles(dir), tag, Math.max(1, threadCount))
+        else
+          FileUtil.listFiles(dir).flatMap(file => makeDicomFile(file, tag))
       val groups = list.groupBy(_.diff)
 
       def show(grp: String): String = {
@@ -131,11 +277,15 @@ object DicomSplit extends Logging {
       }
       println("Number of groups: " + groups.size + "   Groups:\n    " + groups.keys.toSeq.sorted.map(show).mkString("\n    "))
 
+      def fmt(i: Int): String = {
+        i.formatted(s"%0${groups.size.toString.length}d")
+      }
+
       if ((args.length == 3) && args(2).equalsIgnoreCase("split")) {
-        def fmt(i: Int): String = {
-          i.formatted(s"%0${groups.size.toString.length}d")
-        }
         groups.keys.toSeq.sorted.map(groups).zipWithIndex.foreach(ig => writeGroup(fmt(ig._2 + 1), ig._1))
+      } else if (stream) {
+        val groupList = groups.keys.toSeq.sorted.map(groups).zipWithIndex.map(ig => (fmt(ig._2 + 1), ig._1))
+        writeAllGroups(groupList, Math.max(1, threadCount))
       } else
         println("No files created.")
     } catch {
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+import com.pixelmed.dicom.Attribute
+import com.pixelmed.dicom.AttributeList
+import com.pixelmed.dicom.AttributeTag
+import com.pixelmed.dicom.SequenceAttribute
+
+/**
+  * Index of all of the attributes in an attribute list tree by tag, built in a single walk of the tree.  This is for
+  * callers that look up many different tags in the same large list, such as an RTPLAN with thousands of control
+  * points, which would otherwise walk the whole tree once per tag.
+  *
+  * The index reflects the tree when it was built.  Changing attribute values is fine, but if attributes or sequence
+  * items are added or removed then a new index must be built.
+  *
+  * @param attributeList Top of tree.
+  */
+class DicomTagIndex(val attributeList: AttributeList) {
+
+  private val tagMap = scala.collection.mutable.HashMap[AttributeTag, scala.collection.mutable.ArrayBuffer[Attribute]]()
+
+  private val alList = scala.collection.mutable.ArrayBuffer[AttributeList](attributeList)
+
+  DicomUtil.visitAll(attributeList)(attr => {
+    tagMap.getOrElseUpdate(attr.getTag, scala.collection.mutable.ArrayBuffer[Attribute]()) += attr
+    attr match {
+      case seq: SequenceAttribute => alList ++= DicomUtil.alOfSeq(seq)
+      case _                      =>
+    }
+  })
+
+  /**
+    * Get all attributes with the given tag, in the same order as <code>DicomUtil.findAllTag</code>.
+    *
+    * @param tag Look for attributes with this tag.
+    * @return All attributes with the given tag, or an empty list if there are none.
+    */
+  def apply(tag: AttributeTag): IndexedSeq[Attribute] = tagMap.getOrElse(tag, IndexedSeq[Attribute]())
+
+  /**
+    * Get the first attribute with the given tag.
+    */
+  def first(tag: AttributeTag): Option[Attribute] = apply(tag).headOption
+
+  /** Tags of all attributes in the tree. */
+  def tagSet: Set[AttributeTag] = tagMap.keySet.toSet
+
+  /** All of the attribute lists in the tree, in the same order as <code>DicomUtil.flattenAttributeList</code>. */
+  def flatten: Seq[AttributeList] = alList
+}
@@ -16,7 +16,6 @@
 
 package edu.umro.ScalaUtil
 
-import com.pixelmed.dicom.AttributeList
 import com.pixelmed.dicom.DicomFileUtilities
 
 import java.io.File
@@ -48,15 +47,15 @@ object DicomToText {
   /**
    * Convert an attribute list to text and write it to a file.
    *
-   * @param file DICOM file being input.
-   * @param al   Attribute list of DICOM file.
+   * @param file      DICOM file being input.
+   * @param lazyDicom DICOM file contents.  Pixel data is only read if the text file is written.
    */
-  private def alToTextFile(file: File, al: AttributeList): Unit = {
+  private def alToTextFile(file: File, lazyDicom: LazyDicom): Unit = {
     val textFileName = makeName(file)
     val textFile = new File(file.getParentFile, textFileName)
     if (!textFile.exists) {
       try {
-        FileUtil.writeFile(textFile, DicomUtil.attributeListToString(al))
+        FileUtil.writeFile(textFile, DicomUtil.attributeListToString(lazyDicom.loadPixelData()))
         println("Wrote file: " + textFile.getAbsolutePath)
         count = count + 1
       }
@@ -76,9 +75,8 @@ object DicomToText {
   private def readFile(dicomFile: File): Unit = {
     try {
       if (DicomFileUtilities.isDicomOrAcrNemaFile(dicomFile)) {
-        val al = new AttributeList
-        al.read(dicomFile)
-        alToTextFile(dicomFile, al)
+        val lazyDicom = DicomUtil.readLazy(dicomFile)
+        alToTextFile(dicomFile, lazyDicom)
       }
     } catch {
       case _: Throwable =>
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+import edu.umro.util.UMROGUID
+
+import java.io.File
+import java.io.PrintWriter
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import scala.collection.JavaConverters._
+
+/**
+  * Map of old UIDs to new UIDs, so that every occurrence of a UID in a data set is replaced with the same new UID.
+  * It is safe to use from multiple threads.
+  *
+  * The map can be saved to a file and loaded again, so that a later batch of files gets the same new UIDs as an
+  * earlier one.  The file is text with one <code>old,new</code> pair per line.
+  *
+  * @param makeUid Makes new UIDs.
+  */
+class DicomUidMap(makeUid: () => String = DicomUidMap.defaultMakeUid) extends Logging {
+
+  private val uidMap = new ConcurrentHashMap[String, String]()
+
+  private val modified = new AtomicBoolean(false)
+
+  /**
+    * Get the new UID for the given old one, making a new one if this is the first time it has been seen.
+    */
+  def get(oldUid: String): String = {
+    val existing = uidMap.get(oldUid)
+    if (existing != null) existing
+    else
+      uidMap.computeIfAbsent(oldUid, _ => {
+        modified.set(true)
+        makeUid()
+      })
+  }
+
+  /**
+    * Get the new UID for the given old one if there is one.
+    */
+  def getExisting(oldUid: String): Option[String] = Option(uidMap.get(oldUid))
+
+  /** Number of UIDs in the map. */
+  def size: Int = uidMap.size
+
+  /**
+    * Add the pairs in the given file to the map.  Pairs already in the map are kept.
+    *
+    * @param file Saved map.
+    */
+  def load(file: File): Unit = {
+    Files.readAllLines(file.toPath).asScala.map(_.trim).filter(_.nonEmpty).foreach(line => {
+      val pair = line.split(",")
+      if (pair.length == 2) uidMap.putIfAbsent(pair(0).trim, pair(1).trim)
+      else logger.warn("Ignoring badly formatted line in UID map " + file.getAbsolutePath + " : " + line)
+    })
+  }
+
+  /**
+    * Save the map to a file if it has changed.  It is written to a temporary file that is then renamed so that an
+    * interruption does not leave a partial map.
+    *
+    * @param file Save to this file.
+    */
+  def save(file: File): Unit =
+    uidMap.synchronized {
+      if (modified.getAndSet(false) || !file.exists) {
+        val tmpFile = new File(file.getAbsolutePath + ".tmp")
+        val out = new PrintWriter(tmpFile)
+        try {
+          uidMap.asScala.foreach(pair => out.println(pair._1 + "," + pair._2))
+        } finally {
+          out.close()
+        }
+        file.delete
+        if (!tmpFile.renameTo(file))
+          logger.warn("Unable to rename " + tmpFile.getAbsolutePath + " to " + file.getAbsolutePath)
+        logger.info("Saved " + uidMap.size + " UIDs to " + file.getAbsolutePath)
+      }
+    }
+}
+
+object DicomUidMap {
+
+  /** Lock for making UIDs.  UMROGUID is a Java class, so its class object can not be used directly. */
+  private val uidLock = new Object
+
+  /** UMROGUID is not documented as thread safe, so new UIDs are made one at a time. */
+  private val defaultMakeUid: () => String = () => uidLock.synchronized(UMROGUID.getUID)
+
+  /**
+    * Make a map, loading it from the given file if the file exists.
+    *
+    * @param file Previously saved map.
+    */
+  def apply(file: File): DicomUidMap = {
+    val map = new DicomUidMap
+    if (file.exists) map.load(file)
+    map
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+import com.pixelmed.dicom.AttributeTag
+import com.pixelmed.dicom.TransferSyntax
+import edu.umro.DicomDict.TagByName
+import edu.umro.ScalaUtil.PixelDataLocation.ChannelReader
+import edu.umro.ScalaUtil.PixelDataLocation.UnsupportedEncoding
+
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+/**
+  * Copy a DICOM file while replacing the values of some of its top level UID attributes, such as SeriesInstanceUID
+  * and SOPInstanceUID, without parsing or re-encoding the rest of the file.
+  *
+  * The file is scanned only as far as the last attribute to be replaced.  The new elements are written in place of
+  * the old ones, and everything else, including the pixel data, is copied from the input file unchanged.  If
+  * SOPInstanceUID is replaced, then MediaStorageSOPInstanceUID in the file meta information is replaced to match,
+  * and the meta information group length is adjusted.  Data set group length elements (gggg,0000), found in some
+  * older files, are adjusted for the groups that contain replaced attributes.
+  *
+  * Only files with a DICOM preamble and a non-deflated transfer syntax are handled, and all of the attributes to be
+  * replaced must be present at the top level.  For other files <code>patch</code> returns false, and the caller
+  * should read and write the file the conventional way.
+  */
+object DicomUidPatch {
+
+  /**
+    * Replace the given number of bytes at the given offset in the input file with new bytes.
+    */
+  private case class Patch(offset: Long, oldLength: Long, bytes: Array[Byte]) {}
+
+  private def tagAsLong(group: Int, element: Int): Long = (group.toLong << 16) + element
+
+  private def tagAsLong(tag: AttributeTag): Long = tagAsLong(tag.getGroup, tag.getElement)
+
+  /**
+    * Make a complete UI element with the given value, padded with a null to an even length.
+    */
+  private def uidElement(group: Int, element: Int, uid: String, explicitVr: Boolean, byteOrder: ByteOrder): Array[Byte] = {
+    val value = {
+      val text = uid.trim.getBytes("US-ASCII")
+      if ((text.length % 2) == 0) text else text :+ 0.toByte
+    }
+    val buffer = ByteBuffer.allocate(value.length + 8).order(byteOrder)
+    buffer.putShort(group.toShort)
+    buffer.putShort(element.toShort)
+    if (explicitVr) {
+      if (value.length > 0xffff) throw new UnsupportedEncoding("UID too long: " + uid)
+      buffer.put("UI".getBytes("US-ASCII"))
+      buffer.putShort(value.length.toShort)
+    } else
+      buffer.putInt(value.length)
+    buffer.put(value)
+    buffer.array
+  }
+
+  /**
+    * Read the file meta information, making patches for MediaStorageSOPInstanceUID and the group length if needed,
+    * and leave the reader at the start of the data set.
+    *
+    * @return Transfer syntax and patches.
+    */
+  private def scanMeta(reader: ChannelReader, sopInstanceUid: Option[String]): (String, Seq[Patch]) = {
+    reader.ensure(132)
+    reader.skip(128)
+    if (!reader.text(4).equals("DICM")) throw new UnsupportedEncoding("No DICOM preamble")
+    reader.setOrder(ByteOrder.LITTLE_ENDIAN)
+
+    var transferSyntax: Option[String] = None
+    var groupLength: Option[(Long, Long)] = None // position and value
+    var uidPatch: Option[Patch] = None
+    var done = false
+    while (!done) {
+      val group = reader.u16
+      reader.unread(2)
+      if (group != 2)
+        done = true
+      else {
+        val start = reader.position
+        val elem = PixelDataLocation.readElement(reader, explicitVr = true)
+        elem match {
+          case _ if elem.is(2, 0) && (elem.length == 4) =>
+            val position = reader.position
+            groupLength = Some((position, reader.u32))
+          case _ if elem.is(2, 0x10) =>
+            transferSyntax = Some(reader.text(elem.length.toInt).replace('\u0000', ' ').trim)
+          case _ if elem.is(2, 3) && sopInstanceUid.isDefined =>
+            val bytes = uidElement(2, 3, sopInstanceUid.get, explicitVr = true, ByteOrder.LITTLE_ENDIAN)
+            val oldLength = reader.position - start + elem.length
+            uidPatch = Some(Patch(start, oldLength, bytes))
+            reader.skip(elem.length)
+          case _ =>
+            reader.skip(elem.length)
+        }
+      }
+    }
+
+    val lengthPatch = uidPatch match {
+      case Some(p) if p.bytes.length != p.oldLength =>
+        groupLength match {
+          case Some((position, value)) =>
+            val newValue = value + p.bytes.length - p.oldLength
+            Some(Patch(position, 4, ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(newValue.toInt).array))
+          case _ => throw new UnsupportedEncoding("No FileMetaInformationGroupLength")
+        }
+      case _ => None
+    }
+
+    transferSyntax match {
+      case Some(ts) => (ts, lengthPatch.toSeq ++ uidPatch.toSeq)
+      case _        => throw new UnsupportedEncoding("No TransferSyntaxUID")
+    }
+  }
+
+  /**
+    * Make the patches for the file, or throw an exception if it can not be patched.
+    */
+  private def scan(reader: ChannelReader, uidMap: Map[AttributeTag, String]): Seq[Patch] = {
+    val (transferSyntax, metaPatchList) = scanMeta(reader, uidMap.get(TagByName.SOPInstanceUID))
+
+    val (explicitVr, byteOrder) = transferSyntax match {
+      case TransferSyntax.ImplicitVRLittleEndian => (false, ByteOrder.LITTLE_ENDIAN)
+      case TransferSyntax.ExplicitVRBigEndian    => (true, ByteOrder.BIG_ENDIAN)
+      case TransferSyntax.DeflatedExplicitVRLittleEndian =>
+        throw new UnsupportedEncoding("Deflated transfer syntax")
+      case _ => (true, ByteOrder.LITTLE_ENDIAN)
+    }
+    reader.setOrder(byteOrder)
+
+    val remaining = scala.collection.mutable.Map(uidMap.toSeq.map(tu => (tagAsLong(tu._1), tu._2)): _*)
+    val last = remaining.keys.max
+    val patchList = scala.collection.mutable.ArrayBuffer[Patch]()
+
+    // group length elements (gggg,0000) found so far: [group, (position of value, value)]
+    val groupLengthMap = scala.collection.mutable.Map[Int, (Long, Long)]()
+    // change in the length of each group due to patches: [group, change]
+    val groupDeltaMap = scala.collection.mutable.Map[Int, Long]().withDefaultValue(0L)
+
+    while (remaining.nonEmpty && reader.hasMore) {
+      val start = reader.position
+      val elem = PixelDataLocation.readElement(reader, explicitVr)
+      val tag = tagAsLong(elem.group, elem.element)
+      if (tag > last)
+        throw new UnsupportedEncoding("Attribute not found at top level: " + remaining.keys.map(t => "%08x".format(t)).mkString(" "))
+      remaining.remove(tag) match {
+        case Some(uid) =>
+          if (explicitVr && (!elem.vr.equals("UI"))) throw new UnsupportedEncoding("Attribute is not a UID: " + elem)
+          if (elem.length == PixelDataLocation.undefinedLength) throw new UnsupportedEncoding("Undefined length UID: " + elem)
+          val oldLength = reader.position - start + elem.length
+          val bytes = uidElement(elem.group, elem.element, uid, explicitVr, byteOrder)
+          patchList += Patch(start, oldLength, bytes)
+          groupDeltaMap(elem.group) = groupDeltaMap(elem.group) + bytes.length - oldLength
+          reader.skip(elem.length)
+        case _ if (elem.element == 0) && (elem.length == 4) =>
+          val position = reader.position
+          groupLengthMap(elem.group) = (position, reader.u32)
+        case _ =>
+          PixelDataLocation.skipValue(reader, explicitVr, elem)
+      }
+    }
+    if (remaining.nonEmpty) throw new UnsupportedEncoding("Attribute not found at top level")
+
+    // older files may have data set group lengths, which must be changed to match the patched elements
+    val lengthPatchList = groupDeltaMap.toSeq.filter(_._2 != 0).flatMap(groupDelta =>
+      groupLengthMap.get(groupDelta._1).map(positionValue => {
+        val newValue = positionValue._2 + groupDelta._2
+        Patch(positionValue._1, 4, ByteBuffer.allocate(4).order(byteOrder).putInt(newValue.toInt).array)
+      })
+    )
+
+    (metaPatchList ++ patchList ++ lengthPatchList).sortBy(_.offset)
+  }
+
+  /**
+    * Copy the given range of the input channel to the output channel.
+    */
+  private def transfer(in: FileChannel, position: Long, count: Long, out: FileChannel): Unit = {
+    var done = 0L
+    while (done < count) {
+      val size = in.transferTo(position + done, count - done, out)
+      if (size <= 0) throw new IOException("Unexpected end of file")
+      done = done + size
+    }
+  }
+
+  /**
+    * Copy a DICOM file, replacing the values of the given top level UID attributes.
+    *
+    * @param inFile  DICOM file.
+    * @param outFile New file.  Must not be the same as the input file.  Replaced if it exists.
+    * @param uidMap  Attributes to change and their new values.  Must not be empty.
+    * @param buffer  Buffer to use for reading the header.  Its contents and byte order are changed.
+    * @return True if the file was written, false if it could not be patched, in which case the output file is not
+    *         written.  Throw an exception if there is an error writing.
+    */
+  def patch(inFile: File, outFile: File, uidMap: Map[AttributeTag, String], buffer: ByteBuffer): Boolean = {
+    val in = FileChannel.open(inFile.toPath, StandardOpenOption.READ)
+    try {
+      val patchList =
+        try {
+          Some(scan(new ChannelReader(in, buffer), uidMap))
+        } catch {
+          case _: Throwable => None
+        }
+
+      patchList match {
+        case Some(list) =>
+          val out = FileChannel.open(outFile.toPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+          try {
+            var position = 0L
+            list.foreach(p => {
+              transfer(in, position, p.offset - position, out)
+              val bytes = ByteBuffer.wrap(p.bytes)
+              while (bytes.hasRemaining) out.write(bytes)
+              position = p.offset + p.oldLength
+            })
+            transfer(in, position, in.size - position, out)
+          } finally {
+            out.close()
+          }
+          true
+        case _ => false
+      }
+    } finally {
+      in.close()
+    }
+  }
+
+  /**
+    * Copy a DICOM file, replacing the values of the given top level UID attributes, using a temporary buffer.
+    */
+  def patch(inFile: File, outFile: File, uidMap: Map[AttributeTag, String]): Boolean = patch(inFile, outFile, uidMap, ByteBuffer.allocate(16 * 1024))
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+import com.pixelmed.dicom.AttributeList
+import com.pixelmed.dicom.AttributeTag
+import com.pixelmed.dicom.ValueRepresentation
+import edu.umro.DicomDict.TagByName
+
+import java.io.File
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+  * Replace the UIDs in DICOM files with new ones, consistently across a whole data set.  Every UID (VR of UI) in
+  * every file, including those in sequences, is looked up in a shared <code>DicomUidMap</code>, so references such
+  * as FrameOfReferenceUID, ReferencedSOPInstanceUID, and ReferencedSeriesInstanceUID stay consistent with the
+  * instances they refer to.
+  *
+  * Attributes in the exclude list are never changed.  By default these are the attributes that name a SOP class,
+  * transfer syntax, implementation, or coding scheme, which identify kinds of things instead of instances, and
+  * may be private (such as <code>1.2.246.352.70.1.x</code>) as well as defined by the DICOM standard.  As a
+  * backstop, UIDs defined by the standard (those starting with <code>1.2.840.10008.</code>) are never changed
+  * wherever they appear.
+  *
+  * @param uidMap        Old to new UIDs.  Use the same map, or a saved and reloaded one, for all files that refer
+  *                      to each other.
+  * @param excludeTagSet Attributes that are not changed.
+  */
+class DicomUidRemapper(val uidMap: DicomUidMap, excludeTagSet: Set[AttributeTag] = DicomUidRemapper.defaultExcludeTagSet) extends Logging {
+
+  /**
+    * Replace the UIDs in the given attribute list.
+    *
+    * @param attributeList Changed in place.
+    * @return Number of attributes changed.
+    */
+  def remap(attributeList: AttributeList): Int = {
+    var count = 0
+    DicomUtil.visitAll(attributeList)(attr => {
+      if (ValueRepresentation.isUniqueIdentifierVR(attr.getVR) && (!excludeTagSet.contains(attr.getTag)) && (attr.getVM > 0)) {
+        val oldList = attr.getStringValues
+        val newList = oldList.map(uid => if (uid.trim.isEmpty || DicomUidRemapper.isStandardUid(uid)) uid else uidMap.get(uid.trim))
+        if (!oldList.sameElements(newList)) {
+          attr.removeValues()
+          newList.foreach(uid => attr.addValue(uid))
+          count = count + 1
+        }
+      }
+    })
+    count
+  }
+
+  /**
+    * Read a DICOM file, replace its UIDs, and write it.
+    *
+    * @param inFile  DICOM file.
+    * @param outFile New file.  May be the same as the input file.
+    * @return True on success, false if the file is not DICOM.
+    */
+  def remapFile(inFile: File, outFile: File): Boolean = {
+    val al = new AttributeList
+    try {
+      al.read(inFile)
+    } catch {
+      case _: Throwable => return false
+    }
+    remap(al)
+    outFile.getParentFile.mkdirs
+    DicomUtil.writeAttributeListToFile(al, outFile, "DicomUidRemapper")
+    true
+  }
+
+  /**
+    * Replace the UIDs in all of the DICOM files in a tree using multiple threads.  The output tree has the same
+    * structure as the input tree.  Files that are not DICOM are not copied.
+    *
+    * The number of files waiting to be processed is bounded, so memory use does not depend on the size of the tree.
+    * If the output tree is inside the input tree, then it is not read as input.
+    *
+    * @param inDir       Top of input tree.
+    * @param outDir      Top of output tree.  May be the same as the input tree to change files in place.
+    * @param threadCount Number of files processed at the same time.
+    * @return Number of files remapped, number of files that were not DICOM, and number that failed.
+    */
+  def remapTree(inDir: File, outDir: File, threadCount: Int = Runtime.getRuntime.availableProcessors): DicomUidRemapper.Result = {
+    val remappedCount = new AtomicInteger(0)
+    val ignoredCount = new AtomicInteger(0)
+    val failedCount = new AtomicInteger(0)
+
+    val count = Math.max(1, threadCount)
+    val pool = new ThreadPoolExecutor(count, count, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue[Runnable](count * 4), new ThreadPoolExecutor.CallerRunsPolicy)
+
+    def processFile(inFile: File, outFile: File): Unit = {
+      try {
+        if (remapFile(inFile, outFile)) remappedCount.incrementAndGet() else ignoredCount.incrementAndGet()
+      } catch {
+        case t: Throwable =>
+          failedCount.incrementAndGet()
+          logger.warn("Unable to remap UIDs in " + inFile.getAbsolutePath + " : " + fmtEx(t))
+      }
+    }
+
+    // skip the output tree if it is inside the input tree, as it is when a later batch is written to the same place
+    val outPath = outDir.getCanonicalPath
+
+    def process(inFile: File, outFile: File): Unit = {
+      if (inFile.isDirectory)
+        FileUtil.listFiles(inFile).filterNot(f => f.isDirectory && f.getCanonicalPath.equals(outPath)).foreach(f => process(f, new File(outFile, f.getName)))
+      else
+        pool.execute(new Runnable {
+          override def run(): Unit = processFile(inFile, outFile)
+        })
+    }
+
+    try {
+      process(inDir, outDir)
+    } finally {
+      pool.shutdown()
+      pool.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
+    DicomUidRemapper.Result(remappedCount.get, ignoredCount.get, failedCount.get)
+  }
+}
+
+object DicomUidRemapper extends Logging {
+
+  /**
+    * Counts of files processed by <code>remapTree</code>.
+    */
+  case class Result(remapped: Int, ignored: Int, failed: Int) {}
+
+  /**
+    * Attributes that are not changed by default.  They identify the type of an object, its encoding, the software
+    * that wrote it, or a coding scheme, not the data.  Many of their values are not defined by the DICOM standard,
+    * such as private SOP classes and the SNOMED coding scheme.
+    */
+  val defaultExcludeTagSet: Set[AttributeTag] = Set(
+    TagByName.SOPClassUID,
+    TagByName.MediaStorageSOPClassUID,
+    TagByName.ReferencedSOPClassUID,
+    TagByName.ReferencedSOPClassUIDInFile,
+    TagByName.RelatedGeneralSOPClassUID,
+    TagByName.OriginalSpecializedSOPClassUID,
+    TagByName.AffectedSOPClassUID,
+    TagByName.RequestedSOPClassUID,
+    TagByName.SOPClassesSupported,
+    TagByName.TransferSyntaxUID,
+    TagByName.ReferencedTransferSyntaxUIDInFile,
+    TagByName.ImplementationClassUID,
+    TagByName.PrivateInformationCreatorUID,
+    TagByName.CodingSchemeUID
+  )
+
+  /**
+    * True if the UID is defined by the DICOM standard, as for SOP classes and transfer syntaxes.  Such UIDs are not
+    * changed even in attributes that are not excluded.
+    */
+  def isStandardUid(uid: String): Boolean = uid.trim.startsWith("1.2.840.10008.")
+
+  /**
+    * Usage:
+    *
+    *     DicomUidRemapper [-threads=N] [-map=uidMapFile] inputDir outputDir
+    *
+    * If the map file exists then it is loaded first, and it is saved when done, so a later batch gets the same
+    * new UIDs for the same old ones.
+    */
+  def main(args: Array[String]): Unit = {
+    try {
+      val start = System.currentTimeMillis
+      val threadCount = args.find(_.startsWith("-threads=")).map(_.replace("-threads=", "").toInt).getOrElse(Runtime.getRuntime.availableProcessors)
+      val mapFile = args.find(_.startsWith("-map=")).map(a => new File(a.replace("-map=", "")))
+      val fileList = args.filterNot(_.startsWith("-")).map(a => new File(a))
+      if (fileList.length != 2)
+        println("Replace UIDs in a tree of DICOM files.\nUsage: DicomUidRemapper [-threads=N] [-map=uidMapFile] inputDir outputDir")
+      else {
+        val uidMap = mapFile.map(f => DicomUidMap(f)).getOrElse(new DicomUidMap)
+        val result = new DicomUidRemapper(uidMap).remapTree(fileList(0), fileList(1), threadCount)
+        mapFile.foreach(f => uidMap.save(f))
+        logger.info("Done.  Elapsed ms: " + (System.currentTimeMillis - start) + "    " + result + "    UIDs: " + uidMap.size)
+      }
+    } catch {
+      case t: Throwable =>
+        t.printStackTrace()
+    }
+  }
+}
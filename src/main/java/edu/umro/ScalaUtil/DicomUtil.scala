@@ -17,21 +17,38 @@
 package edu.umro.ScalaUtil
 
 import com.pixelmed.dicom.Attribute
+import com.pixelmed.dicom.AttributeFactory
 import com.pixelmed.dicom.AttributeList
+import com.pixelmed.dicom.AttributeList.ReadTerminationStrategy
 import com.pixelmed.dicom.AttributeTag
 import com.pixelmed.dicom.AttributeTagAttribute
 import com.pixelmed.dicom.DicomFileUtilities
 import com.pixelmed.dicom.DicomInputStream
 import com.pixelmed.dicom.DicomOutputStream
 import com.pixelmed.dicom.FileMetaInformation
+import com.pixelmed.dicom.FloatDoubleAttribute
+import com.pixelmed.dicom.FloatSingleAttribute
 import com.pixelmed.dicom.OtherByteAttribute
+import com.pixelmed.dicom.OtherByteAttributeCompressedSeparateFramesOnDisk
+import com.pixelmed.dicom.OtherByteAttributeMultipleCompressedFrames
+import com.pixelmed.dicom.OtherByteAttributeOnDisk
+import com.pixelmed.dicom.OtherDoubleAttribute
 import com.pixelmed.dicom.OtherFloatAttribute
+import com.pixelmed.dicom.OtherLongAttribute
 import com.pixelmed.dicom.OtherWordAttribute
+import com.pixelmed.dicom.OtherWordAttributeOnDisk
 import com.pixelmed.dicom.SOPClass
 import com.pixelmed.dicom.SOPClassDescriptions
 import com.pixelmed.dicom.SequenceAttribute
+import com.pixelmed.dicom.SignedLongAttribute
+import com.pixelmed.dicom.SignedShortAttribute
+import com.pixelmed.dicom.SpecificCharacterSet
+import com.pixelmed.dicom.StringAttribute
 import com.pixelmed.dicom.TagFromName
 import com.pixelmed.dicom.TransferSyntax
+import com.pixelmed.dicom.UnknownAttribute
+import com.pixelmed.dicom.UnsignedLongAttribute
+import com.pixelmed.dicom.UnsignedShortAttribute
 import com.pixelmed.dicom.ValueRepresentation
 import edu.umro.DicomDict.ExtendedDictionary
 import edu.umro.DicomDict.TagByName
@@ -42,10 +59,14 @@ import java.io.ByteArrayOutputStream
 import java.io.DataOutputStream
 import java.io.File
 import java.io.FileOutputStream
+import java.io.InputStream
 import java.io.OutputStream
 import java.text.SimpleDateFormat
 import java.util
 import java.util.Date
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
 import scala.annotation.tailrec
@@ -327,89 +348,162 @@ object DicomUtil {
     DicomPersonName(getPn(0), getPn(1), getPn(2), getPn(3), getPn(4))
   }
 
+  /** Attributes compared as numbers when sorting, with the index of the value used, in order of precedence. */
+  private val sortDoubleFieldList: IndexedSeq[(AttributeTag, Int)] = IndexedSeq(
+    (TagFromName.SliceLocation, 0),
+    (TagFromName.ImagePositionPatient, 0),
+    (TagFromName.ImagePositionPatient, 1),
+    (TagFromName.ImagePositionPatient, 2),
+    (TagFromName.InstanceNumber, 0)
+  )
+
+  /** Attributes compared as text when sorting, in order of precedence.  These are compared after the numbers. */
+  private val sortStringTagList: IndexedSeq[AttributeTag] = IndexedSeq(
+    TagFromName.InstanceCreationDate,
+    TagFromName.InstanceCreationTime,
+    TagFromName.AcquisitionDate,
+    TagFromName.AcquisitionTime,
+    TagFromName.ContentDate,
+    TagFromName.ContentTime,
+    TagFromName.RTPlanDate,
+    TagFromName.RTPlanTime,
+    TagFromName.StructureSetDate,
+    TagFromName.StructureSetTime,
+    TagFromName.SOPInstanceUID
+  )
+
   /**
-    * Compare two DICOM files for the purpose of sorting them in the order that humans expect.
+    * Values of an attribute list used for sorting, fetched once instead of on every comparison.  Text values are
+    * fetched when the key is made.  Numeric values are parsed the first time they are compared, so that an attribute
+    * that can not be parsed causes an error only if the old comparison would have parsed it.
     */
-  //noinspection ScalaUnusedSymbol,ScalaWeakerAccess
-  def compareDicom(a: AttributeList, b: AttributeList): Int = {
+  private class DicomSortKey(val attributeList: AttributeList) {
 
-    def nullAttrCheck(tag: AttributeTag): Either[Int, (Attribute, Attribute)] = {
+    private val doubleAttr: Array[Attribute] = sortDoubleFieldList.map(tagIndex => attributeList.get(tagIndex._1)).toArray
 
-      (a.get(tag), b.get(tag)) match {
-        case (null, null)   => Left(0)
-        case (null, _)      => Left(-1)
-        case (_, null)      => Left(1)
-        case (aAttr, bAttr) => Right(aAttr, bAttr)
-      }
-    }
+    /** 0: not yet parsed, 1: no values, 2: not enough values, 3: has value. */
+    private val doubleState = new Array[Byte](sortDoubleFieldList.size)
+    private val doubleValue = new Array[Double](sortDoubleFieldList.size)
 
-    def compareString(tag: AttributeTag)(dummy: Any): Int = {
+    val hasString: Array[Boolean] = new Array[Boolean](sortStringTagList.size)
+    val stringValue: Array[String] = new Array[String](sortStringTagList.size)
 
-      def compareVal(aAttr: Attribute, bAttr: Attribute): Int = {
-        (aAttr.getSingleStringValueOrNull, bAttr.getSingleStringValueOrNull) match {
-          case (null, null) => 0
-          case (null, _)    => -1
-          case (_, null)    => 1
-          case (aVal, bVal) => aVal.compareTo(bVal)
-        }
-      }
+    sortStringTagList.indices.foreach(i => {
+      val attr = attributeList.get(sortStringTagList(i))
+      hasString(i) = attr != null
+      if (attr != null) stringValue(i) = attr.getSingleStringValueOrNull
+    })
 
-      nullAttrCheck(tag) match {
-        case Left(c)               => c
-        case Right((aAttr, bAttr)) => compareVal(aAttr, bAttr)
+    def hasDouble(i: Int): Boolean = doubleAttr(i) != null
+
+    def doubleStateOf(i: Int): Int = {
+      if (doubleState(i) == 0) {
+        val values = doubleAttr(i).getDoubleValues
+        val index = sortDoubleFieldList(i)._2
+        val state =
+          if (values == null) 1
+          else if (values.length <= index) 2
+          else {
+            doubleValue(i) = values(index)
+            3
+          }
+        doubleState(i) = state.toByte
       }
-
+      doubleState(i)
     }
 
-    def compareDouble(tag: AttributeTag, index: Int)(dummy: Any): Int = {
+    def doubleOf(i: Int): Double = doubleValue(i)
 
-      def comprVal(aAttr: Attribute, bAttr: Attribute): Int = {
-        (aAttr.getDoubleValues, bAttr.getDoubleValues) match {
-          case (null, null)                    => 0
-          case (null, _)                       => -1
-          case (_, null)                       => 1
-          case (aVal, _) if aVal.size <= index => -1
-          case (_, bVal) if bVal.size <= index => 1
-          case (aVal, bVal)                    => aVal(index).compareTo(bVal(index))
-        }
-      }
+    /** Parse all values, so that the key may be shared by threads. */
+    def parseAll(): DicomSortKey = {
+      sortDoubleFieldList.indices.filter(hasDouble).foreach(doubleStateOf)
+      this
+    }
+  }
 
-      nullAttrCheck(tag) match {
-        case Left(c)               => c
-        case Right((aAttr, bAttr)) => comprVal(aAttr, bAttr)
+  /**
+    * Compare two sort keys.  This gives the same result as <code>compareDicom</code> always has, including a
+    * value with too few elements being less than anything.
+    */
+  private def compareSortKeys(a: DicomSortKey, b: DicomSortKey): Int = {
+
+    def compareDouble(i: Int): Int = {
+      (a.hasDouble(i), b.hasDouble(i)) match {
+        case (false, false) => 0
+        case (false, _)     => -1
+        case (_, false)     => 1
+        case _ =>
+          (a.doubleStateOf(i), b.doubleStateOf(i)) match {
+            case (1, 1) => 0
+            case (1, _) => -1
+            case (_, 1) => 1
+            case (2, _) => -1
+            case (_, 2) => 1
+            case _      => java.lang.Double.compare(a.doubleOf(i), b.doubleOf(i))
+          }
       }
-
     }
 
-    lazy val seq: Seq[Any => Int] = Seq(
-      compareDouble(TagFromName.SliceLocation, 0),
-      compareDouble(TagFromName.ImagePositionPatient, 0),
-      compareDouble(TagFromName.ImagePositionPatient, 1),
-      compareDouble(TagFromName.ImagePositionPatient, 2),
-      compareDouble(TagFromName.InstanceNumber, 0),
-      compareString(TagFromName.InstanceCreationDate),
-      compareString(TagFromName.InstanceCreationTime),
-      compareString(TagFromName.AcquisitionDate),
-      compareString(TagFromName.AcquisitionTime),
-      compareString(TagFromName.ContentDate),
-      compareString(TagFromName.ContentTime),
-      compareString(TagFromName.RTPlanDate),
-      compareString(TagFromName.RTPlanTime),
-      compareString(TagFromName.StructureSetDate),
-      compareString(TagFromName.StructureSetTime),
-      compareString(TagFromName.SOPInstanceUID)
-    )
-
-    val result = seq.view.map(func => func(0)).find(v => v != 0)
+    def compareString(i: Int): Int = {
+      (a.hasString(i), b.hasString(i)) match {
+        case (false, false) => 0
+        case (false, _)     => -1
+        case (_, false)     => 1
+        case _ =>
+          (a.stringValue(i), b.stringValue(i)) match {
+            case (null, null) => 0
+            case (null, _)    => -1
+            case (_, null)    => 1
+            case (aVal, bVal) => aVal.compareTo(bVal)
+          }
+      }
+    }
 
-    if (result.isDefined) result.get else 0
+    var result = 0
+    var i = 0
+    while ((result == 0) && (i < sortDoubleFieldList.size)) {
+      result = compareDouble(i)
+      i = i + 1
+    }
+    i = 0
+    while ((result == 0) && (i < sortStringTagList.size)) {
+      result = compareString(i)
+      i = i + 1
+    }
+    result
   }
 
   /**
-    * Sort a list of DICOM attribute lists.
+    * Compare two DICOM files for the purpose of sorting them in the order that humans expect.
+    */
+  //noinspection ScalaUnusedSymbol,ScalaWeakerAccess
+  def compareDicom(a: AttributeList, b: AttributeList): Int = compareSortKeys(new DicomSortKey(a), new DicomSortKey(b))
+
+  /**
+    * Sort a list of DICOM attribute lists.  The values to sort by are fetched once per list instead of for every
+    * comparison.
+    *
+    * @param attributeListList Lists to sort.
+    * @param parallel          If true, prepare and sort with multiple threads, which is faster for large series.
+    * @return Sorted lists.
     */
   //noinspection ScalaUnusedSymbol
-  def sortDicom(attributeListList: Seq[AttributeList]): Seq[AttributeList] = attributeListList.sortWith((a, b) => compareDicom(a, b) <= 0)
+  def sortDicom(attributeListList: Seq[AttributeList], parallel: Boolean = false): Seq[AttributeList] = {
+    if (parallel) {
+      val list = attributeListList.toIndexedSeq
+      val keyArray = new Array[DicomSortKey](list.size)
+      java.util.Arrays.parallelSetAll(keyArray, new java.util.function.IntFunction[DicomSortKey] {
+        override def apply(i: Int): DicomSortKey = new DicomSortKey(list(i)).parseAll()
+      })
+      // a consistent comparator, which keeps lists that are the same by all sorting attributes in their original order
+      val ordering = new Ordering[DicomSortKey] {
+        override def compare(a: DicomSortKey, b: DicomSortKey): Int = compareSortKeys(a, b)
+      }
+      java.util.Arrays.parallelSort(keyArray, ordering)
+      keyArray.map(_.attributeList).toIndexedSeq
+    } else
+      attributeListList.map(al => new DicomSortKey(al)).sortWith((a, b) => compareSortKeys(a, b) <= 0).map(_.attributeList)
+  }
 
   /**
     * Return true if the DICOM is an image modality.
@@ -420,15 +514,129 @@ object DicomUtil {
   }
 
   /**
-    * Make a new copy of an attribute list, not sharing any data with the original.
+    * How <code>deepCopy</code> handles the values of OB, OW, and OF attributes, which are usually pixel data.
     *
-    * @param source * List to copy.
-    * @return Copy of list.
+    * Copy: Make a copy of the values.
     *
+    * Share: Use the same value array in the copy.  This is copy-on-write: the copy and the original may each be given
+    * new values with <code>setValues</code> without affecting the other, but the elements of the shared array must not
+    * be changed in place.
+    */
+  object BulkDataMode extends Enumeration {
+    val Copy, Share = Value
+  }
+
+  /**
+    * Make a copy of a single attribute whose values can be copied directly, or nothing if it is of a type that
+    * can not be.
+    */
+  private def copyAttribute(attr: Attribute, bulkDataMode: BulkDataMode.Value, specificCharacterSet: SpecificCharacterSet): Option[Attribute] = {
+    val share = bulkDataMode == BulkDataMode.Share
+    val tag = attr.getTag
+    attr match {
+      case a: OtherByteAttribute =>
+        val copy = new OtherByteAttribute(tag)
+        val values = a.getByteValues
+        if (values != null) copy.setValues(if (share) values else values.clone)
+        Some(copy)
+      case a: OtherWordAttribute =>
+        val copy = new OtherWordAttribute(tag)
+        val values = a.getShortValues
+        if (values != null) copy.setValues(if (share) values else values.clone)
+        Some(copy)
+      case a: OtherFloatAttribute =>
+        val copy = new OtherFloatAttribute(tag)
+        val values = a.getFloatValues
+        if (values != null) copy.setValues(if (share) values else values.clone)
+        Some(copy)
+      case a: OtherDoubleAttribute =>
+        val copy = new OtherDoubleAttribute(tag)
+        val values = a.getDoubleValues
+        if (values != null) copy.setValues(if (share) values else values.clone)
+        Some(copy)
+      case a: OtherLongAttribute =>
+        val copy = new OtherLongAttribute(tag)
+        val values = a.getIntegerValues
+        if (values != null) copy.setValues(if (share) values else values.clone)
+        Some(copy)
+      case a: UnknownAttribute =>
+        // UN values, including private bulk data, are kept as the bytes they were read as
+        val copy = new UnknownAttribute(tag)
+        val values = a.getByteValues
+        if (values != null) copy.setValues(if (share) values else values.clone)
+        Some(copy)
+      case a: OtherByteAttributeMultipleCompressedFrames =>
+        // compressed (encapsulated) pixel data is kept compressed, one array per frame
+        val frames = a.getFrames
+        if (frames != null) Some(new OtherByteAttributeMultipleCompressedFrames(tag, if (share) frames else frames.map(_.clone)))
+        else Some(new OtherByteAttributeMultipleCompressedFrames(tag, a.getFiles))
+      // values left on disk are only read when used, so sharing the attribute shares the file, not memory
+      case _: OtherByteAttributeOnDisk if share                         => Some(attr)
+      case _: OtherWordAttributeOnDisk if share                         => Some(attr)
+      case _: OtherByteAttributeCompressedSeparateFramesOnDisk if share => Some(attr)
+      case a: OtherByteAttributeOnDisk =>
+        val copy = new OtherByteAttribute(tag)
+        copy.setValues(a.getByteValues)
+        Some(copy)
+      case a: OtherWordAttributeOnDisk =>
+        val copy = new OtherWordAttribute(tag)
+        copy.setValues(a.getShortValues)
+        Some(copy)
+      case a: UnsignedShortAttribute =>
+        val copy = new UnsignedShortAttribute(tag)
+        if (a.getVM > 0) a.getIntegerValues.foreach(v => copy.addValue(v))
+        Some(copy)
+      case a: SignedShortAttribute =>
+        val copy = new SignedShortAttribute(tag)
+        if (a.getVM > 0) a.getShortValues.foreach(v => copy.addValue(v))
+        Some(copy)
+      case a: UnsignedLongAttribute =>
+        val copy = new UnsignedLongAttribute(tag)
+        if (a.getVM > 0) a.getLongValues.foreach(v => copy.addValue(v))
+        Some(copy)
+      case a: SignedLongAttribute =>
+        val copy = new SignedLongAttribute(tag)
+        if (a.getVM > 0) a.getIntegerValues.foreach(v => copy.addValue(v))
+        Some(copy)
+      case a: FloatSingleAttribute =>
+        val copy = new FloatSingleAttribute(tag)
+        if (a.getVM > 0) a.getFloatValues.foreach(v => copy.addValue(v))
+        Some(copy)
+      case a: FloatDoubleAttribute =>
+        val copy = new FloatDoubleAttribute(tag)
+        if (a.getVM > 0) a.getDoubleValues.foreach(v => copy.addValue(v))
+        Some(copy)
+      case a: StringAttribute =>
+        // original values so that numeric strings are not reformatted
+        val copy = AttributeFactory.newAttribute(tag, a.getVR, specificCharacterSet)
+        if (a.getVM > 0) a.getOriginalStringValues.foreach(v => copy.addValue(v))
+        Some(copy)
+      case _ => None
+    }
+  }
+
+  /**
+    * Copy AT attributes by writing them as DICOM and reading them back.  Their values are a few tags, so this is
+    * small, and they are the same in any transfer syntax.
     */
-  def clone(source: AttributeList): AttributeList = {
+  private def copyByEncoding(attrList: Seq[AttributeTagAttribute]): Seq[Attribute] = {
+    val source = new AttributeList
+    attrList.foreach(attr => source.put(attr))
+    val byteArrayOutputStream = new ByteArrayOutputStream
+    val dicomOutputStream = new DicomOutputStream(byteArrayOutputStream, null, TransferSyntax.ExplicitVRLittleEndian)
+    source.write(dicomOutputStream)
+    dicomOutputStream.close()
     val dest = new AttributeList
+    dest.read(new DicomInputStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray), TransferSyntax.ExplicitVRLittleEndian, false))
+    dest.values.toArray.map(_.asInstanceOf[Attribute])
+  }
 
+  /**
+    * Copy a whole attribute list by writing it as DICOM with its own transfer syntax and reading it back, which is
+    * how <code>clone</code> used to work.  This is used for lists that contain attributes of types that can not be
+    * copied directly, so that they are handled exactly as before.  Values are always copied.
+    */
+  private def copyListByEncoding(source: AttributeList, skipPixelData: Boolean): AttributeList = {
     val transferSyntax = {
       val ts = source.get(TagFromName.TransferSyntaxUID)
       if ((ts != null) && ts.getStringValues.nonEmpty)
@@ -436,16 +644,103 @@ object DicomUtil {
       else
         TransferSyntax.ExplicitVRLittleEndian; // DEFAULT_TRANSFER_SYNTAX;
     }
+
+    // leave out the pixel data without changing the source
+    val toWrite =
+      if (skipPixelData && (source.get(TagByName.PixelData) != null)) {
+        val shallow = new AttributeList
+        shallow.putAll(source)
+        shallow.remove(TagByName.PixelData)
+        shallow
+      } else source
+
     val byteArrayOutputStream = new ByteArrayOutputStream
     val dicomOutputStream = new DicomOutputStream(byteArrayOutputStream, transferSyntax, transferSyntax)
-    source.write(dicomOutputStream)
-
-    val byteArrayInputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray)
-    dest.read(new DicomInputStream(byteArrayInputStream))
+    toWrite.write(dicomOutputStream)
+    dicomOutputStream.close()
 
+    val dest = new AttributeList
+    dest.read(new DicomInputStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray)))
     dest
   }
 
+  /**
+    * Make a new copy of an attribute list by walking its attributes and sequences and copying their values
+    * directly.  This is much faster than <code>clone</code> used to be, and does not make an encoded copy of
+    * the whole list, so large images take only the memory of the copy, or none at all for pixel data that is
+    * shared or skipped.
+    *
+    * Bulk data of every common form is copied directly: OB, OW, OF, OD, OL, and UN values, compressed pixel data
+    * (kept compressed), and values left on disk by the reader (read into memory when copied, or left on disk and
+    * shared).  AT attributes are copied by encoding only them.  If the list contains any other type of attribute,
+    * then the whole list is instead encoded with its own transfer syntax and read back, as <code>clone</code> used
+    * to do, in which case values are always copied.
+    *
+    * @param source        List to copy.
+    * @param bulkDataMode  Whether to copy or share the values of bulk data attributes.
+    * @param skipPixelData If true, leave the top level PixelData out of the copy, as when only the header is being changed.
+    * @return Copy of list.
+    */
+  def deepCopy(source: AttributeList, bulkDataMode: BulkDataMode.Value = BulkDataMode.Copy, skipPixelData: Boolean = false): AttributeList = {
+
+    // character set of the top level list applies to all nested lists unless they give their own
+    def characterSetOf(al: AttributeList, parent: SpecificCharacterSet): SpecificCharacterSet = {
+      val attr = al.get(TagFromName.SpecificCharacterSet)
+      if ((attr != null) && (attr.getVM > 0)) new SpecificCharacterSet(attr.getStringValues) else parent
+    }
+
+    // nothing if the list contains an attribute that can not be copied directly
+    def copyList(al: AttributeList, parentCharacterSet: SpecificCharacterSet, topLevel: Boolean): Option[AttributeList] = {
+      val specificCharacterSet = characterSetOf(al, parentCharacterSet)
+      val dest = new AttributeList
+      val tagAttrList = scala.collection.mutable.ArrayBuffer[AttributeTagAttribute]()
+      var copyable = true
+
+      al.values.toArray.map(_.asInstanceOf[Attribute]).foreach {
+        case _ if !copyable =>
+        case attr: Attribute if skipPixelData && topLevel && attr.getTag.equals(TagByName.PixelData) =>
+        case seq: SequenceAttribute =>
+          val copy = new SequenceAttribute(seq.getTag)
+          alOfSeq(seq).foreach(item =>
+            copyList(item, specificCharacterSet, topLevel = false) match {
+              case Some(itemCopy) => copy.addItem(itemCopy)
+              case _              => copyable = false
+            }
+          )
+          dest.put(copy)
+        case attr: Attribute =>
+          copyAttribute(attr, bulkDataMode, specificCharacterSet) match {
+            case Some(copy) => dest.put(copy)
+            case _ =>
+              attr match {
+                case at: AttributeTagAttribute => tagAttrList += at
+                case _                         => copyable = false
+              }
+          }
+      }
+
+      if (copyable) {
+        if (tagAttrList.nonEmpty) copyByEncoding(tagAttrList).foreach(attr => dest.put(attr))
+        Some(dest)
+      } else
+        None
+    }
+
+    copyList(source, null, topLevel = true) match {
+      case Some(copy) => copy
+      case _          => copyListByEncoding(source, skipPixelData)
+    }
+  }
+
+  /**
+    * Make a new copy of an attribute list, not sharing any data with the original.
+    *
+    * @param source * List to copy.
+    * @return Copy of list.
+    *
+    */
+  def clone(source: AttributeList): AttributeList = deepCopy(source)
+
   /**
     * Get the attribute lists of a sequence attribute.
     */
@@ -461,6 +756,70 @@ object DicomUtil {
     (0 until al.getNumberOfItems).map(i => al.getItem(i).getAttributeList)
   }
 
+  private def tagAsLong(tag: AttributeTag): Long = (tag.getGroup.toLong << 16) + tag.getElement
+
+  /**
+    * Stop reading DICOM at the first top level attribute for which <code>stop</code> is true.  Attributes
+    * in sequence items are not considered.
+    */
+  private class TagReadTerminationStrategy(topLevel: AttributeList, stop: AttributeTag => Boolean) extends ReadTerminationStrategy {
+    override def terminate(attributeList: AttributeList, tag: AttributeTag, byteOffset: Long): Boolean = {
+      (attributeList eq topLevel) && stop(tag)
+    }
+  }
+
+  private def readUntil(file: File, stop: AttributeTag => Boolean): AttributeList = {
+    val al = new AttributeList
+    al.read(file, new TagReadTerminationStrategy(al, stop))
+    al
+  }
+
+  /**
+    * Read the attributes of a DICOM file that precede the overlay, curve, and pixel data, which are the
+    * ones needed for sorting and routing files.  Throw an exception if the file can not be read.
+    */
+  def readHeader(file: File): AttributeList = readUntil(file, tag => tag.getGroup >= 0x6000)
+
+  /**
+    * Read the attributes of a DICOM file up to and including the given top level tag, and stop.  Attributes in
+    * sequences that precede the tag are read in full.  Throw an exception if the file can not be read.
+    *
+    * @param file    DICOM file.
+    * @param lastTag Stop after this tag.  The tag does not have to be present.
+    */
+  def readHeaderThrough(file: File, lastTag: AttributeTag): AttributeList = {
+    val last = tagAsLong(lastTag)
+    readUntil(file, tag => tagAsLong(tag) > last)
+  }
+
+  /**
+    * Read only the given top level attributes of a DICOM file.  The file is read up to the highest of the tags,
+    * and other attributes are discarded.  Throw an exception if the file can not be read.
+    *
+    * @param file   DICOM file.
+    * @param tagSet Attributes to get.  Sequences in the set are returned with all of their content.  If empty, then
+    *               the file is not read and an empty list is returned.
+    */
+  def readHeaderTags(file: File, tagSet: Set[AttributeTag]): AttributeList = {
+    if (tagSet.isEmpty)
+      new AttributeList
+    else {
+      val al = readHeaderThrough(file, tagSet.maxBy(tagAsLong))
+      val unwanted = al.keySet.toArray.map(_.asInstanceOf[AttributeTag]).filterNot(tagSet.contains)
+      unwanted.foreach(tag => al.remove(tag))
+      al
+    }
+  }
+
+  /**
+    * Read all of the attributes of a DICOM file except the pixel data, which is read from the file only if it
+    * is requested through the returned <code>LazyDicom</code>.  Throw an exception if the file can not be read.
+    */
+  def readLazy(file: File): LazyDicom = {
+    val pixelData = tagAsLong(TagByName.PixelData)
+    new LazyDicom(file, readUntil(file, tag => tagAsLong(tag) >= pixelData))
+  }
+
   /*
   def findAll(attributeList: AttributeList, interesting: Attribute => Boolean): IndexedSeq[Attribute] = {
 
@@ -477,6 +836,25 @@ object DicomUtil {
   }
    */
 
+  /**
+    * Visit every attribute in the tree in a single walk.  The attributes in the items of each sequence are visited
+    * before the attributes of the list that contains the sequence, which is the order that <code>findAll</code> has
+    * always returned them in.  Sequence attributes are themselves visited.
+    *
+    * The tree must not be changed during the walk, but the values of the visited attributes may be.
+    *
+    * @param attributeList Top of tree.
+    * @param visit         Called for each attribute.
+    */
+  def visitAll(attributeList: AttributeList)(visit: Attribute => Unit): Unit = {
+    val attrArray = attributeList.values.toArray
+    attrArray.foreach {
+      case seq: SequenceAttribute => (0 until seq.getNumberOfItems).foreach(i => visitAll(seq.getItem(i).getAttributeList)(visit))
+      case _                      =>
+    }
+    attrArray.foreach(attr => visit(attr.asInstanceOf[Attribute]))
+  }
+
   /**
     * Get all instances of attributes that the caller deems interesting.
     *
@@ -485,18 +863,9 @@ object DicomUtil {
     * @return List of interesting attributes.
     */
   def findAll(attributeList: AttributeList, interesting: Attribute => Boolean): Seq[Attribute] = {
-    def findEm(attrList: AttributeList): Seq[Attribute] = {
-      val topList =
-        attrList.values.toArray.toList.toIndexedSeq.map(at => at.asInstanceOf[Attribute]).filter(interesting)
-
-      val seqTagList = attrList.values.toArray.filter(at => at.isInstanceOf[SequenceAttribute]).map(at => at.asInstanceOf[SequenceAttribute].getTag)
-      val childList = seqTagList.flatMap(st => seqToAttr(attrList, st))
-      val list = childList.flatMap(findEm)
-      list ++ topList
-    }
-
-    val finalList = findEm(attributeList)
-    finalList
+    val list = scala.collection.mutable.ArrayBuffer[Attribute]()
+    visitAll(attributeList)(attr => if (interesting(attr)) list += attr)
+    list
   }
 
   /**
@@ -504,7 +873,24 @@ object DicomUtil {
     */
   //noinspection ScalaWeakerAccess
   def findAllTagSet(attributeList: AttributeList, tagSet: Set[AttributeTag]): IndexedSeq[Attribute] = {
-    findAll(attributeList, attr => tagSet.contains(attr.getTag)).toIndexedSeq
+    val list = scala.collection.mutable.ArrayBuffer[Attribute]()
+    visitAll(attributeList)(attr => if (tagSet.contains(attr.getTag)) list += attr)
+    list
+  }
+
+  /**
+    * Find all instances of each of the given tags in a single walk of the tree.  This is much faster than calling
+    * <code>findAllTag</code> once per tag on large lists such as RTPLANs with many control points.
+    *
+    * @param attributeList Look in this list.
+    * @param tagSet        Look for attributes with these tags.
+    * @return For each tag, all attributes with that tag in the same order as <code>findAllTag</code>.  Every tag in the
+    *         set is in the map, with an empty list if it was not found.
+    */
+  def findAllByTag(attributeList: AttributeList, tagSet: Set[AttributeTag]): Map[AttributeTag, IndexedSeq[Attribute]] = {
+    val found = tagSet.map(tag => (tag, scala.collection.mutable.ArrayBuffer[Attribute]())).toMap
+    visitAll(attributeList)(attr => found.get(attr.getTag).foreach(list => list += attr))
+    found
   }
 
   /**
@@ -527,9 +913,12 @@ object DicomUtil {
     */
   //noinspection ScalaWeakerAccess
   def flattenAttributeList(al: AttributeList): Seq[AttributeList] = {
-    val seqList = findAll(al, _.isInstanceOf[SequenceAttribute]).map(_.asInstanceOf[SequenceAttribute])
-    val all = seqList.flatMap(sq => (0 until sq.getNumberOfItems).map(i => sq.getItem(i).getAttributeList))
-    al +: all
+    val all = scala.collection.mutable.ArrayBuffer[AttributeList](al)
+    visitAll(al) {
+      case seq: SequenceAttribute => all ++= alOfSeq(seq)
+      case _                      =>
+    }
+    all
   }
 
   private def getTransferSyntax(attributeList: AttributeList): String = {
@@ -562,31 +951,112 @@ object DicomUtil {
   }
 
   /**
-    * Write a list of attribute lists to a zipped byte array.  Each member will
-    * have "[SOP_UID].dcm" as its entry name.
+    * Write an attribute list to an output stream, preserving the TransferSyntaxUID if specified.  Unlike
+    * <code>writeAttributeList</code>, the output stream is flushed but not closed, so that it can be used
+    * for writing zip entries.
     */
-  def dicomToZippedByteArray(alList: Seq[AttributeList]): Array[Byte] = {
+  def writeAttributeListToStream(attributeList: AttributeList, outputStream: OutputStream, sourceApplication: String): Unit = {
+    val transferSyntax = getTransferSyntax(attributeList)
+    FileMetaInformation.addFileMetaInformation(attributeList, transferSyntax, sourceApplication)
+    val dout = new DicomOutputStream(outputStream, TransferSyntax.ExplicitVRLittleEndian, transferSyntax)
+    attributeList.write(dout, true)
+    dout.flush()
+  }
+
+  /**
+    * Write zip entries to the output stream in the order given.  If more than one thread is requested, then
+    * entries are encoded in parallel and written in order as they are finished.  At most
+    * <code>threadCount</code> entries beyond the one being written are in memory at a time.
+    *
+    * @param entryList   Entry names and functions that write the entry content to a stream.
+    * @param out         Zipped content is written here.  It is closed when done.
+    * @param threadCount Number of threads to use for encoding entries.
+    */
+  private def writeZipEntries(entryList: Iterator[(String, OutputStream => Unit)], out: OutputStream, threadCount: Int): Unit = {
+    managed(new ZipOutputStream(out)) acquireAndGet { zipOut =>
+      if (threadCount <= 1) {
+        entryList.foreach(entry => {
+          zipOut.putNextEntry(new ZipEntry(entry._1))
+          entry._2(zipOut)
+          zipOut.closeEntry()
+        })
+      } else {
+        val pool = Executors.newFixedThreadPool(threadCount)
+        val pending = new util.ArrayDeque[(String, Future[Array[Byte]])]()
+
+        def writeFirst(): Unit = {
+          val entry = pending.removeFirst()
+          zipOut.putNextEntry(new ZipEntry(entry._1))
+          zipOut.write(entry._2.get)
+          zipOut.closeEntry()
+        }
+
+        try {
+          entryList.foreach(entry => {
+            val encode = new Callable[Array[Byte]] {
+              override def call(): Array[Byte] = {
+                val byteArrayOutputStream = new ByteArrayOutputStream
+                entry._2(byteArrayOutputStream)
+                byteArrayOutputStream.toByteArray
+              }
+            }
+            pending.addLast((entry._1, pool.submit(encode)))
+            if (pending.size > threadCount) writeFirst()
+          })
+          while (!pending.isEmpty) writeFirst()
+        } finally {
+          pool.shutdownNow()
+        }
+      }
+    }
+  }
+
+  /**
+    * Write attribute lists as zipped content to an output stream.  Each member will have
+    * "[SOP_UID].dcm" as its entry name.  Attribute lists are taken from the iterator one at a time, so
+    * the whole set does not need to be in memory.
+    *
+    * @param alList      DICOM to write.
+    * @param out         Zipped content is written here.  It is closed when done.
+    * @param threadCount Number of threads to use for encoding DICOM.
+    */
+  def writeDicomToZipStream(alList: Iterator[AttributeList], out: OutputStream, threadCount: Int = 1): Unit = {
 
     /**
       * Special write of attribute list that does not close the stream.
       */
-    def writeAl(attributeList: AttributeList, outputStream: OutputStream): Unit = {
+    def writeAl(attributeList: AttributeList)(outputStream: OutputStream): Unit = {
       val transferSyntax = getTransferSyntax(attributeList)
       val dout = new DicomOutputStream(outputStream, TransferSyntax.ExplicitVRLittleEndian, transferSyntax)
       attributeList.write(dout, true)
+      dout.flush()
     }
 
-    def addOneAlToZip(al: AttributeList, zipOut: ZipOutputStream): Unit = {
-      val entryName = al.get(TagFromName.SOPInstanceUID).getSingleStringValueOrEmptyString + ".dcm"
-      val zipEntry = new ZipEntry(entryName)
-      zipOut.putNextEntry(zipEntry)
-      writeAl(al, zipOut)
-    }
+    val entryList = alList.map(al => (al.get(TagFromName.SOPInstanceUID).getSingleStringValueOrEmptyString + ".dcm", writeAl(al) _))
+    writeZipEntries(entryList, out, threadCount)
+  }
 
+  /**
+    * Write named attribute lists as zipped content to an output stream.  Attribute lists are taken
+    * from the iterator one at a time, so the whole set does not need to be in memory.
+    *
+    * @param alListWithNames   List of attribute+name pairs
+    * @param sourceApplication Source application in DICOM header
+    * @param out               Zipped content is written here.  It is closed when done.
+    * @param threadCount       Number of threads to use for encoding DICOM.
+    */
+  def writeNamedDicomToZipStream(alListWithNames: Iterator[(AttributeList, String)], sourceApplication: String, out: OutputStream, threadCount: Int = 1): Unit = {
+    val entryList = alListWithNames.map(alName => (alName._2, (os: OutputStream) => writeAttributeListToStream(alName._1, os, sourceApplication)))
+    writeZipEntries(entryList, out, threadCount)
+  }
+
+  /**
+    * Write a list of attribute lists to a zipped byte array.  Each member will
+    * have "[SOP_UID].dcm" as its entry name.
+    */
+  def dicomToZippedByteArray(alList: Seq[AttributeList]): Array[Byte] = {
     val byteArrayOutputStream = new ByteArrayOutputStream
-    managed(new ZipOutputStream(byteArrayOutputStream)) acquireAndGet { zipOut =>
-      alList.map(al => addOneAlToZip(al, zipOut))
-    }
+    writeDicomToZipStream(alList.iterator, byteArrayOutputStream)
     byteArrayOutputStream.toByteArray
   }
 
@@ -599,27 +1069,8 @@ object DicomUtil {
     */
   //noinspection ScalaUnusedSymbol
   def namedDicomToZippedByteArray(alListWithNames: Seq[(AttributeList, String)], sourceApplication: String): Array[Byte] = {
-
-    /**
-      * Special write of attribute list that does not close the stream.
-      */
-    def writeAl(attributeList: AttributeList, outputStream: OutputStream): Unit = {
-      val transferSyntax = getTransferSyntax(attributeList)
-      FileMetaInformation.addFileMetaInformation(attributeList, transferSyntax, sourceApplication)
-      val dout = new DicomOutputStream(outputStream, TransferSyntax.ExplicitVRLittleEndian, transferSyntax)
-      attributeList.write(dout, true)
-    }
-
-    def addOneAlToZip(al: AttributeList, name: String, zipOut: ZipOutputStream): Unit = {
-      val zipEntry = new ZipEntry(name)
-      zipOut.putNextEntry(zipEntry)
-      writeAl(al, zipOut)
-    }
-
     val byteArrayOutputStream = new ByteArrayOutputStream
-    managed(new ZipOutputStream(byteArrayOutputStream)) acquireAndGet { zipOut =>
-      alListWithNames.map(alName => addOneAlToZip(alName._1, alName._2, zipOut))
-    }
+    writeNamedDicomToZipStream(alListWithNames.iterator, sourceApplication, byteArrayOutputStream)
     byteArrayOutputStream.toByteArray
   }
 
@@ -656,9 +1107,31 @@ object DicomUtil {
     * Read a list of attribute lists from a zipped byte array.  Ignore non-DICOM content.
     */
   def zippedByteArrayToDicom(data: Array[Byte]): Seq[AttributeList] = {
-    val contentList = FileUtil.writeZipToNamedByteArrays(new ByteArrayInputStream(data)).map(_._2)
-    val dicomList = contentList.map(c => byteArrayToDicom(c)).filter(d => d.isDefined).map(d => d.get)
-    dicomList
+    zippedDicomIterator(new ByteArrayInputStream(data)).toList
+  }
+
+  /**
+    * Iterate through the attribute lists in zipped content, reading one entry at a time.  Ignore
+    * non-DICOM content.  The input stream is not closed.
+    */
+  def zippedDicomIterator(inputStream: InputStream): Iterator[AttributeList] = {
+    FileUtil.zipEntryIterator(inputStream).flatMap(nameContent => byteArrayToDicom(nameContent._2))
+  }
+
+  /**
+    * Call the given function for each attribute list in zipped content, reading one entry at a
+    * time.  Ignore non-DICOM content.  The input stream is closed when done.
+    */
+  def processZippedDicom(inputStream: InputStream)(process: AttributeList => Unit): Unit = {
+    FileUtil.processZipEntries(inputStream)((_, content) => byteArrayToDicom(content).foreach(process))
+  }
+
+  /**
+    * Call the given function for each attribute list in a zip file, reading one entry at a time.
+    * Ignore non-DICOM content.
+    */
+  def processZippedDicomFile(zipFile: File)(process: AttributeList => Unit): Unit = {
+    FileUtil.processZipFileEntries(zipFile)((_, content) => byteArrayToDicom(content).foreach(process))
   }
 
   /**
@@ -687,10 +1160,7 @@ object DicomUtil {
     */
   //noinspection ScalaUnusedSymbol
   def removeAllInTree(attributeList: AttributeList, tag: AttributeTag): Unit = {
-    attributeList.remove(tag)
-    def interesting(attr: Attribute): Boolean = attr.isInstanceOf[SequenceAttribute]
-    val seqList = DicomUtil.findAll(attributeList, interesting = interesting).map(_.asInstanceOf[SequenceAttribute])
-    seqList.flatMap(DicomUtil.alOfSeq).foreach(_.remove(tag))
+    flattenAttributeList(attributeList).foreach(_.remove(tag))
   }
 
   /**
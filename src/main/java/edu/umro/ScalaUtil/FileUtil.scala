@@ -30,9 +30,12 @@ import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
 import java.util.zip.ZipInputStream
 import java.util.zip.ZipOutputStream
 import scala.annotation.tailrec
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
 
 object FileUtil {
 
@@ -190,38 +193,81 @@ object FileUtil {
     }
   }
 
+  /**
+    * Given an input stream that defines zipped content, iterate through its entries one at a time as
+    * named byte arrays, so that only one entry is in memory at a time.  Directories in the input stream
+    * are skipped.  The input stream is not closed.
+    *
+    * @param inputStream: Input stream.
+    *
+    * @return iterator of (name,content) tuples.
+    */
+  def zipEntryIterator(inputStream: InputStream): Iterator[(String, Array[Byte])] = {
+    val zipIn = new ZipInputStream(inputStream)
+
+    @tailrec
+    def nextFileEntry(): Option[ZipEntry] = {
+      val entry = zipIn.getNextEntry
+      if ((entry != null) && entry.isDirectory) nextFileEntry() else Option(entry)
+    }
+
+    Iterator.continually(nextFileEntry()).takeWhile(_.isDefined).map(entry => {
+      val bos = new ByteArrayOutputStream
+      copyStream(zipIn, bos)
+      (entry.get.getName, bos.toByteArray)
+    })
+  }
+
+  /**
+    * Given an input stream that defines zipped content, call the given function for each entry, one at
+    * a time.  Directories in the input stream are skipped.  The input stream is closed when done.
+    *
+    * @param inputStream: Input stream.
+    *
+    * @param process: Called with the name and content of each entry.
+    */
+  def processZipEntries(inputStream: InputStream)(process: (String, Array[Byte]) => Unit): Unit = {
+    managed(inputStream) acquireAndGet { in =>
+      zipEntryIterator(in).foreach(nameContent => process(nameContent._1, nameContent._2))
+    }
+  }
+
+  /**
+    * Given a zip file, call the given function for each entry, one at a time.  This uses the zip
+    * file's central directory, which the JVM maps into memory, instead of reading the file as a
+    * stream.  Directories in the zip file are skipped.
+    *
+    * @param zipFile: Input zip file.
+    *
+    * @param process: Called with the name and content of each entry.
+    */
+  def processZipFileEntries(zipFile: File)(process: (String, Array[Byte]) => Unit): Unit = {
+    managed(new ZipFile(zipFile)) acquireAndGet { zip =>
+      zip.entries.asScala.filterNot(_.isDirectory).foreach(entry => {
+        val size = if ((entry.getSize > 0) && (entry.getSize < Int.MaxValue)) entry.getSize.toInt else 32
+        val bos = new ByteArrayOutputStream(size)
+        managed(zip.getInputStream(entry)) acquireAndGet { in => copyStream(in, bos) }
+        process(entry.getName, bos.toByteArray)
+      })
+    }
+  }
+
   /**
     * Given an input stream that defines zipped content, write it as a sequence of named
     * byte arrays.  Directories in the input stream are not listed in the returned list.
     *
+    * Note that this holds all of the content in memory.  For large content use
+    * <code>processZipEntries</code> or <code>zipEntryIterator</code>.
+    *
     * @param inputStream: Input stream.
     *
     * @return list of (name,content) tuples.
     *
     */
   def writeZipToNamedByteArrays(inputStream: InputStream): Seq[(String, Array[Byte])] = {
-
-    val out = managed(new ZipInputStream(inputStream)) acquireAndGet { zipIn =>
-      {
-        @tailrec
-        def next(list: Seq[(String, Array[Byte])]): Seq[(String, Array[Byte])] = {
-          val entry = zipIn.getNextEntry
-          if (entry != null) {
-            if (!entry.isDirectory) {
-              val bos = new ByteArrayOutputStream
-              copyStream(zipIn, bos)
-              bos.close()
-              val result = (entry.getName, bos.toByteArray)
-              next(list :+ result)
-            } else
-              next(list)
-          } else list
-        }
-        // Start processing
-        next(Seq[(String, Array[Byte])]())
-      }
-    }
-    out
+    val list = ArrayBuffer[(String, Array[Byte])]()
+    processZipEntries(inputStream)((name, content) => list += ((name, content)))
+    list.toList
   }
 
   /**
@@ -290,11 +336,17 @@ object FileUtil {
   }
 
   /**
-    * Support writing content to a zipped byte array.
+    * Support writing content to a zipped byte array or output stream.  Each entry is written to the
+    * output as it is added, so only one entry is in memory at a time.
+    *
+    * @param outputStream Zipped content is written here.  If not given, then the content is collected
+    *                     into a byte array that is returned by <code>finish</code>.
     */
-  class ToZipOutputStream() {
-    private val streamOut = new ByteArrayOutputStream()
-    private val zipOut = new ZipOutputStream(streamOut)
+  class ToZipOutputStream(outputStream: OutputStream) {
+
+    def this() = this(new ByteArrayOutputStream())
+
+    private val zipOut = new ZipOutputStream(outputStream)
 
     /**
       * Write bytes to a zipped byte array.
@@ -316,14 +368,23 @@ object FileUtil {
       * @param sourceApplication Name of software application. (arbitrary name).
       */
     def writeDicom(al: AttributeList, path: String, sourceApplication: String): Unit = {
-      val outStream = new ByteArrayOutputStream()
-      DicomUtil.writeAttributeList(al, outStream, sourceApplication)
-      write(outStream.toByteArray, path)
+      val zipEntry = new ZipEntry(path)
+      zipOut.putNextEntry(zipEntry)
+      DicomUtil.writeAttributeListToStream(al, zipOut, sourceApplication)
+      zipOut.closeEntry()
     }
 
+    /**
+      * Finish writing and close the output.
+      *
+      * @return The zipped content if it was collected into a byte array, otherwise an empty array.
+      */
     def finish(): Array[Byte] = {
       zipOut.close()
-      streamOut.toByteArray
+      outputStream match {
+        case byteArrayOutputStream: ByteArrayOutputStream => byteArrayOutputStream.toByteArray
+        case _                                            => Array[Byte]()
+      }
     }
   }
 
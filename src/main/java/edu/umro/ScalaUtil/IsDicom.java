@@ -19,10 +19,23 @@ package edu.umro.ScalaUtil;
 import edu.umro.util.Utility;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This code was lifted from the Pixelmed toolkit.  It adds the functionality of being able to
  * determine if something is a DICOM file using a stream or byte array as input.
+ * <p>
+ * For classifying many files, such as a whole tree, use <code>classify</code> and <code>classifyTree</code>, which
+ * read only the first bytes of each file into a reused buffer, and also get the transfer syntax and SOP class from
+ * the meta header.
  */
 public class IsDicom {
 
@@ -88,24 +101,7 @@ public class IsDicom {
             inputStream.close();
             inputStream = null;
 
-            if (length >= 136 && new String(b, 128, 4).equals("DICM") && (extractUnsigned16(b, 132, false) == 0x0002 || extractUnsigned16(b, 132, false) == 0x0000)) {    // do NOT insist on group length (bad example dicomvl.imagAAAa0005r.dc3); allow group 0x0000 command elements before meta information elements (001132)
-                success = true;
-            } else if (length >= 136 && new String(b, 128, 4).equals("DICM") && extractUnsigned16(b, 132, true) == 0x0002 /*&& extractUnsigned16(b,134,true) == 0x0000*/) {    // big endian metaheader is illegal but allow it (bad example dicomvl.fich1.dcm)
-                success = true;
-            } else if (length >= 8
-                    && extractUnsigned16(b, 0, false) == 0x0008
-                    && extractUnsigned16(b, 2, false) <= 0x0018 /* SOPInstanceUID */
-                    && (extractUnsigned32(b, 4, false) <= 0x0100 /* sane VL */ || (Character.isUpperCase((char) (b[4])) && Character.isUpperCase((char) (b[5]))) /* EVR */)
-            ) {
-                success = true;
-            } else if (length >= 8
-                    && extractUnsigned16(b, 0, true) == 0x0008
-                    && extractUnsigned16(b, 2, true) <= 0x0018 /* SOPInstanceUID */
-                    && (extractUnsigned32(b, 4, true) <= 0x0100 /* sane VL */ || (Character.isUpperCase((char) (b[4])) && Character.isUpperCase((char) (b[5]))) /* EVR */)
-            ) {
-                success = true;
-            }
-            // do not check for start with command group (e.g. acrnema/xpress/test.inf) (001134)
+            success = isDicomOrAcrNema(b, length);
         } catch (Exception e) {
             success = false;
             try {
@@ -118,8 +114,237 @@ public class IsDicom {
         return success;
     }
 
+    /**
+     * Apply the tests to the first bytes of the content.
+     *
+     * @param b      Start of the content.
+     * @param length Number of valid bytes in <code>b</code>.
+     * @return True if the content seems to be DICOM.
+     */
+    private static boolean isDicomOrAcrNema(byte[] b, int length) {
+        if (length >= 136 && new String(b, 128, 4).equals("DICM") && (extractUnsigned16(b, 132, false) == 0x0002 || extractUnsigned16(b, 132, false) == 0x0000)) {    // do NOT insist on group length (bad example dicomvl.imagAAAa0005r.dc3); allow group 0x0000 command elements before meta information elements (001132)
+            return true;
+        } else if (length >= 136 && new String(b, 128, 4).equals("DICM") && extractUnsigned16(b, 132, true) == 0x0002 /*&& extractUnsigned16(b,134,true) == 0x0000*/) {    // big endian metaheader is illegal but allow it (bad example dicomvl.fich1.dcm)
+            return true;
+        } else if (length >= 8
+                && extractUnsigned16(b, 0, false) == 0x0008
+                && extractUnsigned16(b, 2, false) <= 0x0018 /* SOPInstanceUID */
+                && (extractUnsigned32(b, 4, false) <= 0x0100 /* sane VL */ || (Character.isUpperCase((char) (b[4])) && Character.isUpperCase((char) (b[5]))) /* EVR */)
+        ) {
+            return true;
+        } else if (length >= 8
+                && extractUnsigned16(b, 0, true) == 0x0008
+                && extractUnsigned16(b, 2, true) <= 0x0018 /* SOPInstanceUID */
+                && (extractUnsigned32(b, 4, true) <= 0x0100 /* sane VL */ || (Character.isUpperCase((char) (b[4])) && Character.isUpperCase((char) (b[5]))) /* EVR */)
+        ) {
+            return true;
+        }
+        // do not check for start with command group (e.g. acrnema/xpress/test.inf) (001134)
+        return false;
+    }
+
     public static boolean isDicomOrAcrNema(byte[] data) {
-        return isDicomOrAcrNema(new ByteArrayInputStream(data));
+        return data != null && isDicomOrAcrNema(data, data.length);
+    }
+
+    /**
+     * Number of bytes read from the start of each file by <code>classify</code>.  This is enough for the meta header of
+     * almost all files.  If a meta header is longer, then values beyond this are not found.
+     */
+    private static final int SNIFF_SIZE = 4096;
+
+    /**
+     * Buffers for reading the start of files, one for each thread so that they are not allocated for every file.
+     */
+    private static final ThreadLocal<ByteBuffer> sniffBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(SNIFF_SIZE));
+    private static final ThreadLocal<byte[]> sniffBytes = ThreadLocal.withInitial(() -> new byte[SNIFF_SIZE]);
+
+    /**
+     * What was determined about a file by reading its first bytes.
+     */
+    public static class Sniff {
+        /** File that was examined. */
+        public final File file;
+
+        /** True if the file seems to be DICOM. */
+        public final boolean isDicom;
+
+        /** Transfer syntax from the meta header, or null if not known. */
+        public final String transferSyntaxUID;
+
+        /** SOP class from the meta header, or null if not known. */
+        public final String mediaStorageSOPClassUID;
+
+        /** SOP instance from the meta header, or null if not known. */
+        public final String mediaStorageSOPInstanceUID;
+
+        private Sniff(File file, boolean isDicom, String transferSyntaxUID, String mediaStorageSOPClassUID, String mediaStorageSOPInstanceUID) {
+            this.file = file;
+            this.isDicom = isDicom;
+            this.transferSyntaxUID = transferSyntaxUID;
+            this.mediaStorageSOPClassUID = mediaStorageSOPClassUID;
+            this.mediaStorageSOPInstanceUID = mediaStorageSOPInstanceUID;
+        }
+
+        @Override
+        public String toString() {
+            return file.getPath() + " isDicom: " + isDicom + "  transfer syntax: " + transferSyntaxUID + "  SOP class: " + mediaStorageSOPClassUID;
+        }
+    }
+
+    /** Get a UID value, removing trailing padding. */
+    private static String uidValue(byte[] b, int offset, int length) {
+        int end = offset + length;
+        while (end > offset && (b[end - 1] == 0 || b[end - 1] == ' '))
+            end--;
+        return new String(b, offset, end - offset, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean hasLongLength(byte[] b, int offset) {
+        String vr = new String(b, offset, 2, StandardCharsets.US_ASCII);
+        return vr.equals("OB") || vr.equals("OW") || vr.equals("OF") || vr.equals("SQ") || vr.equals("UT") || vr.equals("UN");
+    }
+
+    /**
+     * Get what is known about the content from its first bytes.  The meta header is explicit VR little endian, and
+     * is parsed until its end or the end of the bytes read.
+     */
+    private static Sniff sniff(File file, byte[] b, int length) {
+        if (!isDicomOrAcrNema(b, length))
+            return new Sniff(file, false, null, null, null);
+
+        String transferSyntaxUID = null;
+        String sopClassUID = null;
+        String sopInstanceUID = null;
+        if (length >= 136 && new String(b, 128, 4, StandardCharsets.US_ASCII).equals("DICM")) {
+            int offset = 132;
+            while (offset + 8 <= length
+                    && (extractUnsigned16(b, offset, false) & 0xffff) == 0x0002
+                    && Character.isUpperCase((char) b[offset + 4])
+                    && Character.isUpperCase((char) b[offset + 5])) {
+                int element = extractUnsigned16(b, offset + 2, false) & 0xffff;
+                long valueLength;
+                int valueStart;
+                if (hasLongLength(b, offset + 4)) {
+                    if (offset + 12 > length)
+                        break;
+                    valueLength = extractUnsigned32(b, offset + 8, false);
+                    valueStart = offset + 12;
+                } else {
+                    valueLength = extractUnsigned16(b, offset + 6, false) & 0xffff;
+                    valueStart = offset + 8;
+                }
+                if (valueStart + valueLength > length)
+                    break;
+                int valueLen = (int) valueLength;
+                switch (element) {
+                    case 0x0002:
+                        sopClassUID = uidValue(b, valueStart, valueLen);
+                        break;
+                    case 0x0003:
+                        sopInstanceUID = uidValue(b, valueStart, valueLen);
+                        break;
+                    case 0x0010:
+                        transferSyntaxUID = uidValue(b, valueStart, valueLen);
+                        break;
+                    default:
+                        break;
+                }
+                offset = valueStart + valueLen;
+            }
+        }
+        return new Sniff(file, true, transferSyntaxUID, sopClassUID, sopInstanceUID);
+    }
+
+    /**
+     * Determine whether a file is DICOM by reading its first bytes, and get the transfer syntax and SOP class from
+     * its meta header.  Files that can not be read are not DICOM.  This is safe to call from multiple threads.
+     *
+     * @param file File to examine.
+     * @return What was determined.
+     */
+    public static Sniff classify(File file) {
+        ByteBuffer buffer = sniffBuffer.get();
+        byte[] bytes = sniffBytes.get();
+        buffer.clear();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0)
+                    break;
+            }
+        } catch (Exception e) {
+            return new Sniff(file, false, null, null, null);
+        }
+        buffer.flip();
+        int length = buffer.remaining();
+        buffer.get(bytes, 0, length);
+        return sniff(file, bytes, length);
+    }
+
+    /**
+     * Order files as if each directory's entries were sorted by name and the tree walked depth first, which is the
+     * order that <code>FileUtil.listFiles</code> gives when crawling a tree.
+     */
+    private static int compareByName(Path a, Path b) {
+        int n = Math.min(a.getNameCount(), b.getNameCount());
+        for (int i = 0; i < n; i++) {
+            int c = a.getName(i).toString().compareTo(b.getName(i).toString());
+            if (c != 0)
+                return c;
+        }
+        return Integer.compare(a.getNameCount(), b.getNameCount());
+    }
+
+    /**
+     * Classify all of the files in a tree.  Only the first bytes of each file are read, and files are examined in
+     * parallel, so this is fast enough to filter very large trees before any are parsed.  Symbolic links are followed,
+     * and directories that can not be read are skipped.
+     *
+     * @param dir         Top of the tree.
+     * @param threadCount Number of threads used to read files.
+     * @return One entry for each file, ordered by name with each directory's files before the files of the directories
+     * that follow them by name.
+     * @throws IOException If the top of the tree can not be read.
+     */
+    public static List<Sniff> classifyTree(File dir, int threadCount) throws IOException {
+        List<Path> pathList = new ArrayList<>();
+        Files.walkFileTree(dir.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile())
+                    pathList.add(path);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        pathList.sort(IsDicom::compareByName);
+
+        Sniff[] result = new Sniff[pathList.size()];
+        int chunkCount = Math.max(1, threadCount) * 4;
+        int chunkSize = (result.length + chunkCount - 1) / chunkCount;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threadCount));
+        try {
+            List<Future<?>> futureList = new ArrayList<>();
+            for (int start = 0; start < result.length; start += chunkSize) {
+                final int from = start;
+                final int until = Math.min(result.length, start + chunkSize);
+                futureList.add(executor.submit(() -> {
+                    for (int i = from; i < until; i++)
+                        result[i] = classify(pathList.get(i).toFile());
+                }));
+            }
+            for (Future<?> future : futureList)
+                future.get();
+        } catch (Exception e) {
+            throw new IOException("Unable to classify files in " + dir.getAbsolutePath(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return Arrays.asList(result);
     }
 
     public static void main(String[] args) {
@@ -18,7 +18,6 @@ package edu.umro.ScalaUtil
 
 import java.io.File
 import edu.umro.util.Utility
-import edu.umro.util.UMROGUID
 import com.pixelmed.dicom.AttributeList
 import com.pixelmed.dicom.TagFromName
 import com.pixelmed.dicom.AttributeTag
@@ -30,7 +29,6 @@ import com.pixelmed.dicom.Attribute
 
 import java.text.SimpleDateFormat
 import java.util.Calendar
-import com.pixelmed.dicom.AttributeList.ReadTerminationStrategy
 import edu.umro.DicomDict.TagByName
 
 object Julia extends Logging {
@@ -61,16 +59,9 @@ object Julia extends Logging {
 
   private val doneSet = scala.collection.mutable.Set[String]()
 
-  private val uidMap = scala.collection.mutable.HashMap[String, String]()
+  private val uidMap = new DicomUidMap
 
-  private def getNewUid(oldUid: String): String = {
-    if (uidMap.contains(oldUid)) uidMap(oldUid)
-    else {
-      val newUid = UMROGUID.getUID
-      uidMap.put(oldUid, newUid)
-      newUid
-    }
-  }
+  private def getNewUid(oldUid: String): String = uidMap.get(oldUid)
 
   private def updateAttrUid(attr: Attribute) = {
     val oldUid = attr.getSingleStringValueOrEmptyString
@@ -193,37 +184,29 @@ object Julia extends Logging {
 
   val lastTagOfInterestAsLong = tagToLong(tagsOfInterest.maxBy(tagToLong))
 
-  private def readPartial(file: File, lastTagAsLong: Long = lastTagOfInterestAsLong): AttributeList = {
-
-    var savedAttrList = new AttributeList
-    class ReadStrategy extends ReadTerminationStrategy {
-      override def terminate(al: AttributeList, tag: AttributeTag, bytesRead: Long): Boolean = {
-        savedAttrList = al
-        tagToLong(tag) > lastTagAsLong
-      }
-    }
-
-    val readStrategy = new ReadStrategy
+  val lastTagOfInterest: AttributeTag = tagsOfInterest.maxBy(tagToLong)
 
+  private def readPartial(file: File, lastTag: AttributeTag = lastTagOfInterest): AttributeList = {
     try {
-      (new AttributeList).read(file, readStrategy)
+      DicomUtil.readHeaderThrough(file, lastTag)
     } catch {
-      case t: Throwable => ;
+      case _: Throwable => new AttributeList
     }
-    savedAttrList
   }
 
   var timeToShowProgress = System.currentTimeMillis + 1000
 
   private class DcmFl(f: File) {
 
-    val al: AttributeList = {
-      val partial = readPartial(f)
-      val isRtstruct = partial.get(TagFromName.Modality).getSingleStringValueOrEmptyString.equals("RTSTRUCT")
-      if (isRtstruct)
-        readPartial(f, tagToLong(TagByName.StructureSetROISequence))
-      else
-        partial
+    val al: AttributeList = DicomIndex.shared match {
+      case Some(index) => index.get(f).getOrElse(new AttributeList)
+      case _ =>
+        val partial = readPartial(f)
+        val isRtstruct = partial.get(TagFromName.Modality).getSingleStringValueOrEmptyString.equals("RTSTRUCT")
+        if (isRtstruct)
+          readPartial(f, TagByName.StructureSetROISequence)
+        else
+          partial
     }
 
     val file = f
@@ -269,7 +252,7 @@ object Julia extends Logging {
   }
 
   def resolution(f: File): Int = {
-    val al = readFile(f)
+    val al = DicomIndex.shared.flatMap(index => index.get(f)).getOrElse(readFile(f))
     al.get(TagFromName.Rows).getIntegerValues.head * al.get(TagFromName.Columns).getIntegerValues.head
   }
 
@@ -504,6 +487,7 @@ object Julia extends Logging {
 
       //saveOther(allDcm, outDir)
 
+      DicomIndex.saveShared()
       Trace.trace(mainDir.getName + "  Elapsed ms: " + (System.currentTimeMillis - start))
     } catch {
       case t: Throwable => {
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+import com.pixelmed.dicom.Attribute
+import com.pixelmed.dicom.AttributeList
+import com.pixelmed.dicom.OtherByteAttribute
+import com.pixelmed.dicom.OtherFloatAttribute
+import com.pixelmed.dicom.OtherWordAttribute
+import edu.umro.DicomDict.TagByName
+
+import java.io.File
+import java.nio.ByteBuffer
+
+/**
+  * DICOM that was read from a file without its pixel data, which is read from the file when it is needed.
+  * This is for tools that look at the attributes of many files but only need the pixels of some of them.
+  *
+  * Uncompressed pixel data is read directly from its offset in the file.  Other encodings are read by
+  * reading the whole file.  Attributes that follow the pixel data in the file, such as trailing padding,
+  * are not read.
+  *
+  * Use <code>DicomUtil.readLazy</code> to create.
+  *
+  * @param file          File that was read.
+  * @param attributeList All attributes that precede the pixel data.  Pixel data is added when it is loaded.
+  */
+class LazyDicom(val file: File, val attributeList: AttributeList) {
+
+  private var pixelDataLoaded = false
+
+  /**
+    * Read the pixel data into the attribute list if it has not already been done.  This is done at most once.
+    *
+    * @return The attribute list with pixel data.
+    */
+  def loadPixelData(): AttributeList =
+    synchronized {
+      if (!pixelDataLoaded) {
+        LazyDicom.readPixelData(file).foreach(attr => attributeList.put(attr))
+        pixelDataLoaded = true
+      }
+      attributeList
+    }
+
+  /**
+    * Get the pixel data, reading it from the file if necessary.
+    *
+    * @return Pixel data, or nothing if the file does not have any.
+    */
+  def pixelData: Option[Attribute] = Option(loadPixelData().get(TagByName.PixelData))
+}
+
+object LazyDicom {
+
+  /**
+    * Make a pixel data attribute from the raw bytes in the file.
+    */
+  private def toAttribute(location: PixelDataLocation): Attribute = {
+    val bytes = location.readBytes()
+    location.vr match {
+      case "OB" =>
+        val attr = new OtherByteAttribute(TagByName.PixelData)
+        attr.setValues(bytes)
+        attr
+      case "OW" =>
+        val shortArray = new Array[Short](bytes.length / 2)
+        ByteBuffer.wrap(bytes).order(location.byteOrder).asShortBuffer.get(shortArray)
+        val attr = new OtherWordAttribute(TagByName.PixelData)
+        attr.setValues(shortArray)
+        attr
+      case "OF" =>
+        val floatArray = new Array[Float](bytes.length / 4)
+        ByteBuffer.wrap(bytes).order(location.byteOrder).asFloatBuffer.get(floatArray)
+        val attr = new OtherFloatAttribute(TagByName.PixelData)
+        attr.setValues(floatArray)
+        attr
+    }
+  }
+
+  private val directVrSet = Set("OB", "OW", "OF")
+
+  private def readPixelData(file: File): Option[Attribute] = {
+    PixelDataLocation.find(file) match {
+      case Right(None)                                                => None
+      case Right(Some(location)) if directVrSet.contains(location.vr) => Some(toAttribute(location))
+      case _ =>
+        val al = new AttributeList
+        al.read(file)
+        Option(al.get(TagByName.PixelData))
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAccumulator
+import java.util.concurrent.atomic.LongAdder
+import javax.management.ObjectName
+import scala.collection.JavaConverters._
+
+/**
+  * Management interface for looking at metrics with JMX tools such as JConsole.
+  */
+trait MetricsMXBean {
+
+  /** All metrics as text, one per line. */
+  def getReport: String
+
+  /** Set all metrics back to zero. */
+  def reset(): Unit
+}
+
+/**
+  * Counters, histograms, and timers that are cheap enough to leave on in production code.
+  *
+  * Recording does not lock and does not allocate.  Counts are kept in <code>LongAdder</code>s, which spread updates
+  * from different threads over separate cells, and histograms are kept as counts in fixed buckets, so the cost of
+  * recording a value is a few atomic adds.  Histogram percentiles are accurate to within about 6 percent.
+  *
+  * Metrics are created on first use and are identified by name, so different parts of the code can share them.
+  *
+  * <pre>
+  *
+  *     private val readTimer = Metrics.timer("DicomSort.read")
+  *     private val fileCounter = Metrics.counter("DicomSort.files")
+  *
+  *     val al = readTimer.time(DicomUtil.readHeader(file))
+  *     fileCounter.increment()
+  *
+  *     Metrics.startPeriodicLog(60 * 1000)
+  *
+  * </pre>
+  */
+object Metrics extends Logging {
+
+  /**
+    * A count of events, such as files read, or a total, such as bytes written.
+    */
+  class Counter(val name: String) {
+    private val adder = new LongAdder
+
+    def increment(): Unit = adder.increment()
+
+    def add(amount: Long): Unit = adder.add(amount)
+
+    def get: Long = adder.sum
+
+    def reset(): Unit = adder.reset()
+
+    override def toString: String = name + " : " + get
+  }
+
+  /**
+    * Number of histogram sub-buckets for each power of two.  Each bucket is at most 1/8 of its lower bound wide, so
+    * reporting its middle is within about 6 percent of any value in it.
+    */
+  private val subBucketBits = 3
+  private val subBucketCount = 1 << subBucketBits
+  private val bucketCount = (64 - subBucketBits + 1) * subBucketCount
+
+  /** Get the index of the bucket for a non-negative value. */
+  private def bucketOf(value: Long): Int = {
+    if (value < subBucketCount) value.toInt
+    else {
+      val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      val sub = ((value >>> (exponent - subBucketBits)) & (subBucketCount - 1)).toInt
+      (exponent - subBucketBits + 1) * subBucketCount + sub
+    }
+  }
+
+  /** Get the middle of the range of values that fall in the given bucket. */
+  private def bucketMiddle(index: Int): Double = {
+    if (index < subBucketCount) index
+    else {
+      val shift = index / subBucketCount - 1
+      val low = (subBucketCount + (index % subBucketCount)).toDouble * Math.pow(2, shift)
+      low + Math.pow(2, shift) / 2
+    }
+  }
+
+  /**
+    * Distribution of non-negative values, such as file sizes or durations.  Negative values are recorded as 0.
+    *
+    * @param name Identifies the histogram.
+    * @param unit Unit of the recorded values, used when reporting.
+    */
+  class Histogram(val name: String, val unit: String) {
+    private val buckets = new AtomicLongArray(bucketCount)
+    private val count = new LongAdder
+    private val sum = new LongAdder
+    private val max = new LongAccumulator((a: Long, b: Long) => Math.max(a, b), 0L)
+
+    /**
+      * Record a value.
+      */
+    def record(value: Long): Unit = {
+      val v = Math.max(0, value)
+      buckets.incrementAndGet(bucketOf(v))
+      count.increment()
+      sum.add(v)
+      max.accumulate(v)
+    }
+
+    def getCount: Long = count.sum
+
+    def getMax: Long = max.get
+
+    def getMean: Double = {
+      val c = getCount
+      if (c == 0) Double.NaN else sum.sum.toDouble / c
+    }
+
+    /**
+      * Get the approximate value below which the given fraction of values fall.
+      *
+      * @param fraction From 0 to 1, e.g. 0.99 for the 99th percentile.
+      * @return Approximate percentile, or NaN if nothing has been recorded.
+      */
+    def percentile(fraction: Double): Double = {
+      val counts = (0 until bucketCount).map(buckets.get)
+      val total = counts.sum
+      if (total == 0) Double.NaN
+      else {
+        val target = Math.max(1, Math.ceil(fraction * total).toLong)
+        val index = counts.scanLeft(0L)(_ + _).indexWhere(_ >= target) - 1
+        Math.min(bucketMiddle(index), getMax)
+      }
+    }
+
+    def reset(): Unit = {
+      (0 until bucketCount).foreach(i => buckets.set(i, 0))
+      count.reset()
+      sum.reset()
+      max.reset()
+    }
+
+    /** Convert a recorded value to the unit used when reporting. */
+    protected def scale(value: Double): Double = value
+
+    override def toString: String = {
+      def fmt(d: Double) = scale(d).formatted("%.3f")
+      name + " : count: " + getCount + "  " + unit + " mean: " + fmt(getMean) + "  p50: " + fmt(percentile(0.5)) + "  p99: " + fmt(percentile(0.99)) + "  max: " +
+        fmt(getMax)
+    }
+  }
+
+  /**
+    * Histogram of elapsed times.  Times are recorded in nanoseconds and reported in milliseconds.
+    */
+  class Timer(name: String) extends Histogram(name, "ms") {
+
+    /**
+      * Evaluate the given statement and record how long it took, whether or not it threw an exception.
+      */
+    def time[T](statement: => T): T = {
+      val start = System.nanoTime
+      try {
+        statement
+      } finally {
+        record(System.nanoTime - start)
+      }
+    }
+
+    /** Record the time elapsed since the given <code>System.nanoTime</code>. */
+    def recordSince(startNano: Long): Unit = record(System.nanoTime - startNano)
+
+    override protected def scale(value: Double): Double = value / 1000000.0
+  }
+
+  private val counterMap = new ConcurrentHashMap[String, Counter]()
+  private val histogramMap = new ConcurrentHashMap[String, Histogram]()
+  private val timerMap = new ConcurrentHashMap[String, Timer]()
+
+  /** Get the counter with the given name, creating it if necessary. */
+  def counter(name: String): Counter = counterMap.computeIfAbsent(name, _ => new Counter(name))
+
+  /** Get the histogram with the given name, creating it if necessary. */
+  def histogram(name: String, unit: String = ""): Histogram = histogramMap.computeIfAbsent(name, _ => new Histogram(name, unit))
+
+  /** Get the timer with the given name, creating it if necessary. */
+  def timer(name: String): Timer = timerMap.computeIfAbsent(name, _ => new Timer(name))
+
+  /**
+    * Get all metrics as text, one per line, sorted by name.  Metrics that have never been used are included.
+    */
+  def report: String = {
+    val all = counterMap.values.asScala.map(_.toString) ++ histogramMap.values.asScala.map(_.toString) ++ timerMap.values.asScala.map(_.toString)
+    all.toSeq.sorted.mkString("\n")
+  }
+
+  /** Set all metrics back to zero. */
+  def reset(): Unit = {
+    counterMap.values.asScala.foreach(_.reset())
+    histogramMap.values.asScala.foreach(_.reset())
+    timerMap.values.asScala.foreach(_.reset())
+  }
+
+  private var scheduler: Option[ScheduledExecutorService] = None
+
+  /**
+    * Log the report at the given interval until <code>stopPeriodicLog</code> is called.  If already logging, the
+    * interval is changed.  Logging is done on a daemon thread so that it does not keep the program running.
+    *
+    * @param interval_ms Time between reports in milliseconds.
+    */
+  def startPeriodicLog(interval_ms: Long): Unit =
+    synchronized {
+      stopPeriodicLog()
+      val executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+        override def newThread(runnable: Runnable): Thread = {
+          val thread = new Thread(runnable, "Metrics")
+          thread.setDaemon(true)
+          thread
+        }
+      })
+      executor.scheduleAtFixedRate(
+        new Runnable {
+          override def run(): Unit = logger.info("Metrics:\n" + report)
+        },
+        interval_ms,
+        interval_ms,
+        TimeUnit.MILLISECONDS
+      )
+      scheduler = Some(executor)
+    }
+
+  /** Stop logging the report. */
+  def stopPeriodicLog(): Unit =
+    synchronized {
+      scheduler.foreach(_.shutdownNow())
+      scheduler = None
+    }
+
+  /**
+    * Make the metrics visible to JMX tools as <code>edu.umro.ScalaUtil:type=Metrics</code>.  Doing this more than
+    * once has no effect.
+    */
+  def registerJmx(): Unit =
+    synchronized {
+      val server = ManagementFactory.getPlatformMBeanServer
+      val objectName = new ObjectName("edu.umro.ScalaUtil:type=Metrics")
+      if (!server.isRegistered(objectName)) {
+        val bean = new MetricsMXBean {
+          override def getReport: String = report
+          override def reset(): Unit = Metrics.reset()
+        }
+        server.registerMBean(bean, objectName)
+      }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+import com.pixelmed.dicom.TransferSyntax
+
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+/**
+  * Location of the native (uncompressed) PixelData value in a DICOM file, so that it can be read directly
+  * from the file without parsing the rest of the attribute list.
+  *
+  * @param file      File containing pixel data.
+  * @param offset    Byte offset of the first pixel byte in the file.
+  * @param length    Length of pixel data in bytes.
+  * @param vr        Value representation of pixel data: OB, OW, OL, or OF.
+  * @param byteOrder Byte order of the pixel values.
+  */
+case class PixelDataLocation(file: File, offset: Long, length: Long, vr: String, byteOrder: ByteOrder) {
+
+  /** Number of bytes in each pixel value as determined by the value representation. */
+  def valueSize: Int =
+    vr match {
+      case "OB" => 1
+      case "OW" => 2
+      case _    => 4
+    }
+
+  /**
+    * Read the pixel data bytes from the file.  The bytes are in the file's byte order.
+    */
+  def readBytes(): Array[Byte] = {
+    if (length > Int.MaxValue) throw new IOException("Pixel data too large to read into memory: " + this)
+    val buffer = ByteBuffer.allocate(length.toInt)
+    val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+    try {
+      channel.position(offset)
+      while (buffer.hasRemaining) {
+        if (channel.read(buffer) < 0) throw new IOException("Unexpected end of pixel data: " + this)
+      }
+    } finally {
+      channel.close()
+    }
+    buffer.array
+  }
+
+  override def toString: String = file.getAbsolutePath + " offset: " + offset + " length: " + length + " VR: " + vr + " " + byteOrder
+}
+
+object PixelDataLocation {
+
+  /** Thrown when the file uses an encoding that is not handled here.  Callers fall back to a full read. */
+  private[ScalaUtil] class UnsupportedEncoding(msg: String) extends IOException(msg)
+
+  /** Value representations that use a 2 byte reserved field and 4 byte length in explicit VR. */
+  private val longLengthVrSet = Set("OB", "OD", "OF", "OL", "OV", "OW", "SQ", "SV", "UC", "UN", "UR", "UT", "UV")
+
+  private[ScalaUtil] val undefinedLength = 0xffffffffL
+
+  private val itemGroup = 0xfffe
+  private val item = 0xe000
+  private val itemDelimitation = 0xe00d
+  private val sequenceDelimitation = 0xe0dd
+
+  /**
+    * Sequential reader of a file channel through a reusable buffer.
+    */
+  private[ScalaUtil] class ChannelReader(channel: FileChannel, buffer: ByteBuffer) {
+
+    /** File position of the first byte in the buffer. */
+    private var bufferStart = channel.position
+    buffer.clear()
+    buffer.limit(0)
+
+    def position: Long = bufferStart + buffer.position()
+
+    def setOrder(byteOrder: ByteOrder): Unit = buffer.order(byteOrder)
+
+    /**
+      * Make sure that at least the given number of bytes are in the buffer.
+      */
+    def ensure(size: Int): Unit = {
+      if (buffer.remaining < size) {
+        bufferStart = position
+        buffer.compact()
+        while (buffer.position() < size) {
+          if (channel.read(buffer) < 0) throw new IOException("Unexpected end of file")
+        }
+        buffer.flip()
+      }
+    }
+
+    def u16: Int = { ensure(2); buffer.getShort & 0xffff }
+
+    def u32: Long = { ensure(4); buffer.getInt & 0xffffffffL }
+
+    def text(size: Int): String = {
+      ensure(size)
+      val bytes = new Array[Byte](size)
+      buffer.get(bytes)
+      new String(bytes, "ISO-8859-1")
+    }
+
+    /** True if there is at least one more byte in the file. */
+    def hasMore: Boolean = {
+      if (buffer.remaining > 0) true
+      else {
+        bufferStart = position
+        buffer.clear()
+        val count = channel.read(buffer)
+        buffer.flip()
+        count > 0
+      }
+    }
+
+    /** Go back the given number of bytes, which must have just been read. */
+    def unread(size: Int): Unit = buffer.position(buffer.position() - size)
+
+    def skip(size: Long): Unit = {
+      if (size <= buffer.remaining)
+        buffer.position(buffer.position() + size.toInt)
+      else {
+        bufferStart = position + size
+        channel.position(bufferStart)
+        buffer.clear()
+        buffer.limit(0)
+      }
+    }
+  }
+
+  /**
+    * Header of a single data element.
+    */
+  private[ScalaUtil] case class Element(group: Int, element: Int, vr: String, length: Long) {
+    def is(g: Int, e: Int): Boolean = (group == g) && (element == e)
+  }
+
+  private[ScalaUtil] def readElement(reader: ChannelReader, explicitVr: Boolean): Element = {
+    val group = reader.u16
+    val element = reader.u16
+    if (group == itemGroup)
+      Element(group, element, "", reader.u32)
+    else if (explicitVr) {
+      val vr = reader.text(2)
+      if (longLengthVrSet.contains(vr)) {
+        reader.skip(2)
+        Element(group, element, vr, reader.u32)
+      } else
+        Element(group, element, vr, reader.u16)
+    } else
+      Element(group, element, "", reader.u32)
+  }
+
+  /**
+    * Skip the items of a sequence with undefined length, including the sequence delimitation item.
+    */
+  private def skipUndefinedSequence(reader: ChannelReader, explicitVr: Boolean): Unit = {
+    var done = false
+    while (!done) {
+      val elem = readElement(reader, explicitVr)
+      elem match {
+        case _ if elem.is(itemGroup, sequenceDelimitation) => done = true
+        case _ if elem.is(itemGroup, item) && (elem.length == undefinedLength) =>
+          skipUndefinedItem(reader, explicitVr)
+        case _ if elem.is(itemGroup, item) => reader.skip(elem.length)
+        case _                             => throw new UnsupportedEncoding("Unexpected element in sequence: " + elem)
+      }
+    }
+  }
+
+  /**
+    * Skip the elements of an item with undefined length, including the item delimitation item.
+    */
+  private def skipUndefinedItem(reader: ChannelReader, explicitVr: Boolean): Unit = {
+    var done = false
+    while (!done) {
+      val elem = readElement(reader, explicitVr)
+      if (elem.is(itemGroup, itemDelimitation))
+        done = true
+      else
+        skipValue(reader, explicitVr, elem)
+    }
+  }
+
+  private[ScalaUtil] def skipValue(reader: ChannelReader, explicitVr: Boolean, elem: Element): Unit = {
+    if (elem.length == undefinedLength) {
+      if (elem.vr.equals("UN")) throw new UnsupportedEncoding("UN with undefined length")
+      skipUndefinedSequence(reader, explicitVr)
+    } else
+      reader.skip(elem.length)
+  }
+
+  /**
+    * Get the transfer syntax from the file meta information, leaving the reader at the start of the data set.
+    */
+  private def readMeta(reader: ChannelReader): String = {
+    reader.ensure(132)
+    reader.skip(128)
+    if (!reader.text(4).equals("DICM")) throw new UnsupportedEncoding("No DICOM preamble")
+    reader.setOrder(ByteOrder.LITTLE_ENDIAN)
+
+    var transferSyntax: Option[String] = None
+    var done = false
+    while (!done) {
+      val group = reader.u16
+      reader.unread(2)
+      if (group != 2)
+        done = true
+      else {
+        val elem = readElement(reader, explicitVr = true)
+        if (elem.is(2, 0x10))
+          transferSyntax = Some(reader.text(elem.length.toInt).replace('\u0000', ' ').trim)
+        else
+          reader.skip(elem.length)
+      }
+    }
+    transferSyntax match {
+      case Some(ts) => ts
+      case _        => throw new UnsupportedEncoding("No TransferSyntaxUID")
+    }
+  }
+
+  /**
+    * Find the PixelData in the top level of the data set.
+    */
+  private def scan(file: File, reader: ChannelReader): Option[PixelDataLocation] = {
+    val transferSyntax = readMeta(reader)
+
+    val (explicitVr, byteOrder) = transferSyntax match {
+      case TransferSyntax.ImplicitVRLittleEndian => (false, ByteOrder.LITTLE_ENDIAN)
+      case TransferSyntax.ExplicitVRBigEndian    => (true, ByteOrder.BIG_ENDIAN)
+      case TransferSyntax.DeflatedExplicitVRLittleEndian =>
+        throw new UnsupportedEncoding("Deflated transfer syntax")
+      // Encapsulated syntaxes are explicit little endian with undefined length pixel data, which is rejected below.
+      case _ => (true, ByteOrder.LITTLE_ENDIAN)
+    }
+    reader.setOrder(byteOrder)
+
+    var bitsAllocated = 16
+    var location: Option[PixelDataLocation] = None
+    var done = false
+
+    while (!done && reader.hasMore) {
+      val elem = readElement(reader, explicitVr)
+      elem match {
+        case _ if elem.is(0x7fe0, 0x0010) =>
+          if (elem.length == undefinedLength) throw new UnsupportedEncoding("Encapsulated pixel data")
+          val vr = if (explicitVr) elem.vr else if (bitsAllocated <= 8) "OB" else "OW"
+          location = Some(PixelDataLocation(file, reader.position, elem.length, vr, byteOrder))
+          done = true
+        case _ if elem.group > 0x7fe0 =>
+          done = true
+        case _ if elem.is(0x0028, 0x0100) && (elem.length == 2) =>
+          bitsAllocated = reader.u16
+        case _ =>
+          skipValue(reader, explicitVr, elem)
+      }
+    }
+    location
+  }
+
+  /**
+    * Find the location of the native pixel data in a DICOM file.
+    *
+    * Only files with a DICOM preamble and an uncompressed transfer syntax (implicit little, explicit little, or explicit
+    * big endian) are handled.  For others, or if there is any problem reading the file, Left is returned so that the
+    * caller can read the file the conventional way.
+    *
+    * @param file   DICOM file.
+    * @param buffer Buffer to use for reading.  Its contents and byte order are changed.
+    * @return Location of pixel data, None if the file has none, or Left if it could not be determined.
+    */
+  def find(file: File, buffer: ByteBuffer): Either[Throwable, Option[PixelDataLocation]] = {
+    try {
+      val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+      try {
+        Right(scan(file, new ChannelReader(channel, buffer)))
+      } finally {
+        channel.close()
+      }
+    } catch {
+      case t: Throwable => Left(t)
+    }
+  }
+
+  /**
+    * Find the location of the native pixel data in a DICOM file using a temporary buffer.
+    */
+  def find(file: File): Either[Throwable, Option[PixelDataLocation]] = find(file, ByteBuffer.allocate(16 * 1024))
+}
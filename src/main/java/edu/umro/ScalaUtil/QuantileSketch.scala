@@ -0,0 +1,237 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil
+
+/**
+  * Estimate quantiles of values that are too many to keep in memory, or that arrive a few at a time.  This is a
+  * merging t-digest: values are summarized as weighted centroids, with small centroids near the ends of the range so
+  * that the tails stay accurate.  Sketches built separately, as by different threads, can be merged.
+  *
+  * Until more than <code>exactLimit</code> values have been added no centroids are combined, and the quartiles are
+  * exactly the same as those from <code>Stats</code>.  After that they are estimates.
+  *
+  * NaN values are ignored.  This class is not thread safe.
+  *
+  * @param compression Controls the number of centroids kept, and so the accuracy.  100 is usually good enough.
+  * @param exactLimit  Number of values kept exactly before centroids are combined.
+  */
+class QuantileSketch(compression: Double = 100, exactLimit: Int = 1000) {
+
+  private val bufferSize = Math.max(exactLimit, (compression * 5).toInt) + 1
+
+  /** Centroids, sorted by mean. */
+  private var means = new Array[Double](0)
+  private var weights = new Array[Double](0)
+
+  /** Values added since the centroids were last updated. */
+  private val buffer = new Array[Double](bufferSize)
+  private var bufferCount = 0
+
+  private var total = 0L
+  private var min = Double.PositiveInfinity
+  private var max = Double.NegativeInfinity
+
+  /** Number of values added. */
+  def count: Long = total
+
+  /**
+    * Add a value.
+    */
+  def add(value: Double): Unit = {
+    if (!value.isNaN) {
+      buffer(bufferCount) = value
+      bufferCount = bufferCount + 1
+      total = total + 1
+      if (value < min) min = value
+      if (value > max) max = value
+      if (bufferCount == buffer.length) flush()
+    }
+  }
+
+  /**
+    * Add all of the given values.
+    */
+  def add(values: Array[Double]): Unit = {
+    var i = 0
+    while (i < values.length) {
+      add(values(i))
+      i = i + 1
+    }
+  }
+
+  /**
+    * Add everything in another sketch to this one.  The other sketch is not changed.
+    */
+  def merge(other: QuantileSketch): Unit = {
+    other.flush()
+    flush()
+    if (other.means.nonEmpty) {
+      combine(other.means, other.weights, other.means.length)
+      total = total + other.total
+      min = Math.min(min, other.min)
+      max = Math.max(max, other.max)
+    }
+  }
+
+  /**
+    * Merge the buffered values into the centroids.
+    */
+  private def flush(): Unit = {
+    if (bufferCount > 0) {
+      java.util.Arrays.sort(buffer, 0, bufferCount)
+      combine(buffer, Array.fill(bufferCount)(1.0), bufferCount)
+      bufferCount = 0
+    }
+  }
+
+  /**
+    * Merge the given centroids, which must be sorted by mean, with the existing ones, and then compress if there are
+    * more values than are kept exactly.
+    */
+  private def combine(inMeans: Array[Double], inWeights: Array[Double], inCount: Int): Unit = {
+    val size = means.length + inCount
+    val mergedMeans = new Array[Double](size)
+    val mergedWeights = new Array[Double](size)
+
+    var a = 0
+    var b = 0
+    var m = 0
+    while (m < size) {
+      if ((b >= inCount) || ((a < means.length) && (means(a) <= inMeans(b)))) {
+        mergedMeans(m) = means(a)
+        mergedWeights(m) = weights(a)
+        a = a + 1
+      } else {
+        mergedMeans(m) = inMeans(b)
+        mergedWeights(m) = inWeights(b)
+        b = b + 1
+      }
+      m = m + 1
+    }
+
+    if (mergedWeights.sum > exactLimit) compress(mergedMeans, mergedWeights)
+    else {
+      means = mergedMeans
+      weights = mergedWeights
+    }
+  }
+
+  /**
+    * Scale function that limits the size of centroids, so that they are small near the ends and large in the middle.
+    */
+  private def scale(q: Double): Double = compression / (2 * Math.PI) * Math.asin(2 * q - 1)
+
+  /**
+    * Combine adjacent centroids as long as each stays within one unit of the scale function.
+    */
+  private def compress(inMeans: Array[Double], inWeights: Array[Double]): Unit = {
+    val totalWeight = inWeights.sum
+    val outMeans = new Array[Double](inMeans.length)
+    val outWeights = new Array[Double](inMeans.length)
+
+    var out = 0
+    outMeans(0) = inMeans(0)
+    outWeights(0) = inWeights(0)
+    var weightSoFar = 0.0 // weight of all centroids before the current output centroid
+    var kLeft = scale(0)
+
+    var i = 1
+    while (i < inMeans.length) {
+      val proposed = outWeights(out) + inWeights(i)
+      if ((scale((weightSoFar + proposed) / totalWeight) - kLeft) <= 1) {
+        outMeans(out) = outMeans(out) + (inMeans(i) - outMeans(out)) * inWeights(i) / proposed
+        outWeights(out) = proposed
+      } else {
+        weightSoFar = weightSoFar + outWeights(out)
+        kLeft = scale(weightSoFar / totalWeight)
+        out = out + 1
+        outMeans(out) = inMeans(i)
+        outWeights(out) = inWeights(i)
+      }
+      i = i + 1
+    }
+
+    means = java.util.Arrays.copyOf(outMeans, out + 1)
+    weights = java.util.Arrays.copyOf(outWeights, out + 1)
+  }
+
+  /** True if no centroids have been combined, so each one is a single value. */
+  private def isExact: Boolean = means.length == total
+
+  /**
+    * Estimate the value below which the given fraction of the values fall.
+    *
+    * @param q Fraction from 0 to 1.
+    * @return Estimated quantile, or NaN if there are no values.
+    */
+  def quantile(q: Double): Double = {
+    flush()
+    val n = means.length
+    if (n == 0) Double.NaN
+    else if (n == 1) means(0)
+    else if (isExact) {
+      // linear interpolation between the nearest ranks, which for the quartiles is the same as Stats
+      val position = q * (n - 1)
+      val i = Math.min(position.toInt, n - 2)
+      val fraction = position - i
+      if (fraction == 0) means(i) else (means(i + 1) - means(i)) * fraction + means(i)
+    } else {
+      val target = q * total
+      // the center of each centroid is at the middle of its weight
+      var center = weights(0) / 2
+      if (target <= center)
+        min + (means(0) - min) * target / center
+      else {
+        var i = 0
+        var result = Double.NaN
+        while (result.isNaN && (i < (n - 1))) {
+          val nextCenter = center + (weights(i) + weights(i + 1)) / 2
+          if (target <= nextCenter)
+            result = means(i) + (means(i + 1) - means(i)) * (target - center) / (nextCenter - center)
+          center = nextCenter
+          i = i + 1
+        }
+        if (result.isNaN) {
+          val remaining = total - center
+          if (remaining <= 0) max
+          else means(n - 1) + (max - means(n - 1)) * (target - center) / remaining
+        } else
+          result
+      }
+    }
+  }
+
+  /**
+    * Get the quartiles.  These are exact, using the same rules as <code>Stats.quartiles</code>, until more than
+    * <code>exactLimit</code> values have been added.
+    */
+  def quartiles: Stats.Quartiles = {
+    flush()
+    if (isExact)
+      Stats.quartilesOfSorted(means.length, i => means(i))
+    else
+      Stats.Quartiles(quantile(.25), quantile(.5), quantile(.75))
+  }
+
+  def quartile1: Double = quartiles.q1
+
+  def median: Double = quartiles.median
+
+  def quartile3: Double = quartiles.q3
+
+  def iqr: Double = quartiles.iqr
+}
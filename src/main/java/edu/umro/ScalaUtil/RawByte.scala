@@ -16,16 +16,46 @@
 
 package edu.umro.ScalaUtil
 
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.security.InvalidParameterException
-import java.io.BufferedInputStream
-import java.io.ByteArrayInputStream
-import java.io.DataInputStream
+import java.util.stream.IntStream
 
 /**
  * Utilities for converting raw bytes to higher order values.
+ *
+ * The <code>Seq</code> versions are convenient for small amounts of data.  For large amounts, such as image frames,
+ * use the <code>Array</code> and <code>ByteBuffer</code> versions, which work on primitive arrays, can write to a
+ * caller supplied array (including the input, to convert in place), and split large arrays across processors.
  */
 object RawByte {
 
+  /** Arrays at least this large are processed in parallel. */
+  private val parallelThreshold = 1024 * 1024
+
+  /**
+   * Do the given work on ranges of the given size, in parallel if the size is large.  Each range starts on a
+   * multiple of <code>unit</code> bytes so that groups of bytes that are processed together are not split.
+   *
+   * @param size Total number of bytes.
+   * @param unit Size of each group of bytes.
+   * @param work Given the start and end (exclusive) of a range.
+   */
+  private def inRanges(size: Int, unit: Int)(work: (Int, Int) => Unit): Unit = {
+    if (size < parallelThreshold)
+      work(0, size)
+    else {
+      val chunkCount = Runtime.getRuntime.availableProcessors * 4
+      val chunkSize = (((size / chunkCount) + unit - 1) / unit) * unit
+      IntStream.range(0, (size + chunkSize - 1) / chunkSize).parallel.forEach(c => work(c * chunkSize, Math.min(size, (c + 1) * chunkSize)))
+    }
+  }
+
+  private def checkSizes(name: String, in: Array[Byte], outSize: Int, unit: Int): Unit = {
+    if ((in.length % unit) != 0) throw new InvalidParameterException(name + ": Size of input bytes must be a multiple of " + unit)
+    if (outSize != in.length) throw new InvalidParameterException(name + ": Size of output must be the same as the input")
+  }
+
   private def revBits(in: Int): Int = {
     val bits = (0 until 8).map(i => (in >> i) & 1)
     bits.foldLeft(0)((s, b) => (s << 1) + b)
@@ -34,6 +64,8 @@ object RawByte {
   /** Table of all possible byte values and their value when the bits are reversed. */
   private lazy val revBitTable = (0 until 256).map(i => revBits(i))
 
+  private lazy val revBitArray = revBitTable.map(_.toByte).toArray
+
   /**
    * Reverse the bits of a byte.
    */
@@ -42,7 +74,29 @@ object RawByte {
   /**
    * Reverse the bits of each byte.
    */
-  def revBits(in: Seq[Byte]): Seq[Byte] = in.map(b => revBits(b))
+  def revBits(in: Seq[Byte]): Seq[Byte] = {
+    val array = in.toArray
+    revBits(array, array)
+    array.toSeq
+  }
+
+  /**
+   * Reverse the bits of each byte.
+   *
+   * @param in  Bytes to reverse.
+   * @param out Where the results are put.  May be the same as <code>in</code>.
+   */
+  def revBits(in: Array[Byte], out: Array[Byte]): Unit = {
+    checkSizes("revBits", in, out.length, 1)
+    val table = revBitArray
+    inRanges(in.length, 1)((from, until) => {
+      var i = from
+      while (i < until) {
+        out(i) = table(in(i) & 255)
+        i = i + 1
+      }
+    })
+  }
 
   def byteToBitString(b: Byte): String = {
     val bits = (0 until 8).foldLeft("")((t, i) => ((b >> i) & 1) + t)
@@ -54,7 +108,28 @@ object RawByte {
    */
   def swapBytePairs(in: Seq[Byte]): Seq[Byte] = {
     if ((in.size % 2) != 0) throw new InvalidParameterException("swapBytePairs: Size of input bytes must be a multiple of 2")
-    (0 until in.size).map(i => if ((i % 2) == 0) in(i + 1) else in(i - 1))
+    val array = in.toArray
+    swapBytePairs(array, array)
+    array.toSeq
+  }
+
+  /**
+   * Change the ordering of each set of 2 bytes.
+   *
+   * @param in  Data to be operated on.  The size must be a multiple of 2.
+   * @param out Where the results are put.  May be the same as <code>in</code>.
+   */
+  def swapBytePairs(in: Array[Byte], out: Array[Byte]): Unit = {
+    checkSizes("swapBytePairs", in, out.length, 2)
+    inRanges(in.length, 2)((from, until) => {
+      var i = from
+      while (i < until) {
+        val b = in(i)
+        out(i) = in(i + 1)
+        out(i + 1) = b
+        i = i + 2
+      }
+    })
   }
 
   /**
@@ -74,25 +149,112 @@ object RawByte {
     if (ordering.size != 4) throw new InvalidParameterException("swapBytes4: Size of ordering list must be exactly 4")
 
     val out = Array.ofDim[Byte](in.size)
-
-    def swap(fi: Int): Unit = {
-      def valof(i: Int): Byte = in(fi + i)
-      (0 until 4).map(i => out(fi + ordering(i)) = valof(i))
-    }
-
-    (0 until (in.size / 4)).map(fi => swap(fi * 4))
+    swapBytes4(in.toArray, out, ordering)
     out.toSeq
   }
 
   /**
-   * Convert a sequence of bytes to Floats.
+   * Change the ordering of each set of 4 bytes.
+   *
+   * @param in       Data to be operated on.  The size must be a multiple of 4.
+   * @param out      Where the results are put.  May be the same as <code>in</code>.
+   * @param ordering New position of each of the 4 bytes.  See <code>swapBytes4(Seq[Byte], Seq[Int])</code>.
+   */
+  def swapBytes4(in: Array[Byte], out: Array[Byte], ordering: Seq[Int]): Unit = {
+    checkSizes("swapBytes4", in, out.length, 4)
+    if (ordering.size != 4) throw new InvalidParameterException("swapBytes4: Size of ordering list must be exactly 4")
+    val o0 = ordering(0)
+    val o1 = ordering(1)
+    val o2 = ordering(2)
+    val o3 = ordering(3)
+    inRanges(in.length, 4)((from, until) => {
+      var i = from
+      while (i < until) {
+        // copy first so that converting in place works
+        val b0 = in(i)
+        val b1 = in(i + 1)
+        val b2 = in(i + 2)
+        val b3 = in(i + 3)
+        out(i + o0) = b0
+        out(i + o1) = b1
+        out(i + o2) = b2
+        out(i + o3) = b3
+        i = i + 4
+      }
+    })
+  }
+
+  /**
+   * Convert a sequence of big endian bytes to Floats.
    */
   def bytesToFloat(in: Seq[Byte]): IndexedSeq[Float] = {
     if ((in.size % 4) != 0) throw new InvalidParameterException("bytesToFloat: Size of input bytes must be a multiple of 4")
-    val bis = new BufferedInputStream(new ByteArrayInputStream(in.toArray));
-    val dis = new DataInputStream(bis)
-    val data = (0 until (in.size / 4)).map(i => dis.readFloat)
-    data
+    bytesToFloat(in.toArray, ByteOrder.BIG_ENDIAN)
+  }
+
+  /**
+   * Convert bytes to Floats.
+   *
+   * @param in    Data to convert.  The size must be a multiple of 4.
+   * @param order Byte order of the data.
+   * @return One Float for each 4 bytes.
+   */
+  def bytesToFloat(in: Array[Byte], order: ByteOrder): Array[Float] = {
+    if ((in.length % 4) != 0) throw new InvalidParameterException("bytesToFloat: Size of input bytes must be a multiple of 4")
+    val out = new Array[Float](in.length / 4)
+    inRanges(in.length, 4)((from, until) => ByteBuffer.wrap(in, from, until - from).order(order).asFloatBuffer.get(out, from / 4, (until - from) / 4))
+    out
+  }
+
+  /**
+   * Convert the remaining bytes of a buffer to Floats, using the buffer's byte order.  The position of the buffer is
+   * not changed.
+   *
+   * @param in  Data to convert.  The number of bytes remaining must be 4 times the size of the output.
+   * @param out Where the results are put.
+   */
+  def bytesToFloat(in: ByteBuffer, out: Array[Float]): Unit = {
+    if (in.remaining != out.length * 4) throw new InvalidParameterException("bytesToFloat: Bytes remaining must be 4 times the size of the output")
+    in.duplicate.order(in.order).asFloatBuffer.get(out)
+  }
+
+  /**
+   * Convert bytes to Shorts, as for 16 bit pixel data.
+   *
+   * @param in    Data to convert.  The size must be a multiple of 2.
+   * @param order Byte order of the data.
+   * @return One Short for each 2 bytes.
+   */
+  def bytesToShort(in: Array[Byte], order: ByteOrder): Array[Short] = {
+    if ((in.length % 2) != 0) throw new InvalidParameterException("bytesToShort: Size of input bytes must be a multiple of 2")
+    val out = new Array[Short](in.length / 2)
+    inRanges(in.length, 2)((from, until) => ByteBuffer.wrap(in, from, until - from).order(order).asShortBuffer.get(out, from / 2, (until - from) / 2))
+    out
+  }
+
+  /**
+   * Convert the remaining bytes of a buffer to Shorts, using the buffer's byte order.  The position of the buffer is
+   * not changed.
+   *
+   * @param in  Data to convert.  The number of bytes remaining must be 2 times the size of the output.
+   * @param out Where the results are put.
+   */
+  def bytesToShort(in: ByteBuffer, out: Array[Short]): Unit = {
+    if (in.remaining != out.length * 2) throw new InvalidParameterException("bytesToShort: Bytes remaining must be 2 times the size of the output")
+    in.duplicate.order(in.order).asShortBuffer.get(out)
+  }
+
+  /**
+   * Convert Floats to bytes.
+   *
+   * @param in    Data to convert.
+   * @param order Byte order of the result.
+   * @return Four bytes for each Float.
+   */
+  def floatToBytes(in: Array[Float], order: ByteOrder): Array[Byte] = {
+    val out = new Array[Byte](in.length * 4)
+    inRanges(out.length, 4)((from, until) => ByteBuffer.wrap(out, from, until - from).order(order).asFloatBuffer.put(in, from / 4, (until - from) / 4))
+    out
   }
 
   /**
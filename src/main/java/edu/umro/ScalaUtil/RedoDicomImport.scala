@@ -41,14 +41,12 @@ object RedoDicomImport extends Logging {
   private def sopOf(al: AttributeList) = new String(al.get(TagFromName.SOPInstanceUID).getSingleStringValueOrEmptyString)
 
   private def readFile(file: File) = {
-    val al = new AttributeList
     //Trace.trace("reading file: " + file.getAbsolutePath)
-    al.read(file)
-    al
+    DicomUtil.readHeaderThrough(file, TagFromName.SOPInstanceUID)
   }
 
   private case class DF(file: File) {
-    val sop = sopOf(readFile(file))
+    val sop = sopOf(DicomIndex.shared.flatMap(index => index.get(file)).getOrElse(readFile(file)))
   }
 
   /**
@@ -81,6 +79,7 @@ object RedoDicomImport extends Logging {
         }
       })
 
+      DicomIndex.saveShared()
       Trace.trace("Elapsed ms: " + (System.currentTimeMillis - start))
     } catch {
       case t: Throwable => {
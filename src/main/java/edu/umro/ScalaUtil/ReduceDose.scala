@@ -62,13 +62,16 @@ object ReduceDose extends Logging {
 
       val al = readFile(inFile).get
 
+      // only values are changed, so one index serves for all tags
+      val tagIndex = new DicomTagIndex(al)
+
       def putAll(tag: AttributeTag, value: String): Unit = {
         def put(attr: Attribute): Unit = {
           attr.removeValues()
           attr.addValue(value)
         }
 
-        DicomUtil.findAllTag(al, tag).foreach(at => put(at))
+        tagIndex(tag).foreach(at => put(at))
       }
 
       def putScale(tag: AttributeTag, factor: Double): Unit = {
@@ -78,7 +81,7 @@ object ReduceDose extends Logging {
           attr.addValue(factor * old)
         }
 
-        DicomUtil.findAllTag(al, tag).foreach(at => put(at))
+        tagIndex(tag).foreach(at => put(at))
       }
 
       putAll(TagByName.SOPInstanceUID, UMROGUID.getUID)
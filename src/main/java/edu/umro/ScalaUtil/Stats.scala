@@ -5,58 +5,218 @@ package edu.umro.ScalaUtil
   */
 object Stats {
 
+  /**
+    * The three quartiles of a list of values.
+    *
+    * @param q1     First quartile.
+    * @param median Median (second quartile).
+    * @param q3     Third quartile.
+    */
+  case class Quartiles(q1: Double, median: Double, q3: Double) {
+
+    /** Interquartile range. */
+    def iqr: Double = q3 - q1
+  }
+
+  /**
+    * Interpolate between two consecutive sorted values.  A fraction of 0 means the low value exactly.
+    */
+  private def interpolate(low: Double, high: Double, fraction: Double): Double = {
+    if (fraction == 0) low
+    else (high - low) * fraction + low
+  }
+
+  /**
+    * Index of the lower of the two sorted values that the first quartile is interpolated between, and how far
+    * to go toward the next one.
+    */
+  private def q1Position(size: Int): (Int, Double) = {
+    val i = size / 4
+    size % 4 match {
+      case 0 => (i - 1, .75)
+      case 1 => (i, 0.0)
+      case 2 => (i, .25)
+      case 3 => (i, .5)
+    }
+  }
+
+  /**
+    * Index of the lower of the two sorted values that the third quartile is interpolated between, and how far
+    * to go toward the next one.
+    */
+  private def q3Position(size: Int): (Int, Double) = {
+    val i = (size * 3) / 4
+    size % 4 match {
+      case 0 => (i - 1, .25)
+      case 1 => (i, 0.0)
+      case 2 => (i - 1, .75)
+      case 3 => (i - 1, .5)
+    }
+  }
+
+  /**
+    * Calculate the quartiles given a way to get the value at a given position in the sorted list.  This holds the
+    * interpolation rules for all of the quartile functions.
+    *
+    * @param size   Number of values.
+    * @param sorted Gets a value by its position in the sorted list.
+    */
+  private[ScalaUtil] def quartilesOfSorted(size: Int, sorted: Int => Double): Quartiles = {
+    if (size == 0)
+      Quartiles(Double.NaN, Double.NaN, Double.NaN)
+    else {
+      def at(position: (Int, Double)): Double = {
+        val (i, fraction) = position
+        if (fraction == 0) sorted(i) else interpolate(sorted(i), sorted(i + 1), fraction)
+      }
+      val median =
+        if ((size % 2) == 0) {
+          val s2 = size / 2
+          (sorted(s2 - 1) + sorted(s2)) / 2
+        } else sorted(size / 2)
+      Quartiles(at(q1Position(size)), median, at(q3Position(size)))
+    }
+  }
+
+  /**
+    * Order in which values are sorted.  This is the same as sorting a <code>Seq[Double]</code>, so NaN is greater
+    * than everything and -0.0 is less than 0.0.
+    */
+  private def lessThan(a: Double, b: Double): Boolean = java.lang.Double.compare(a, b) < 0
+
+  /**
+    * Rearrange part of an array so that the value at position <code>k</code> is the one that would be there if
+    * that part were sorted, all values before it are less than or equal to it, and all values after it are greater
+    * than or equal to it.  This takes linear time on average instead of the n log n needed to sort.
+    *
+    * @param array Values to rearrange.
+    * @param from  First position of the part to rearrange.
+    * @param until One past the last position of the part to rearrange.
+    * @param k     Position of interest.
+    */
+  private def select(array: Array[Double], from: Int, until: Int, k: Int): Unit = {
+
+    def swap(i: Int, j: Int): Unit = {
+      val t = array(i)
+      array(i) = array(j)
+      array(j) = t
+    }
+
+    var lo = from
+    var hi = until - 1
+    while (hi > lo) {
+      // order the first, middle, and last so that the middle is a reasonable pivot and the ends stop the scans
+      val mid = (lo + hi) >>> 1
+      if (lessThan(array(mid), array(lo))) swap(lo, mid)
+      if (lessThan(array(hi), array(lo))) swap(lo, hi)
+      if (lessThan(array(hi), array(mid))) swap(mid, hi)
+      val pivot = array(mid)
+
+      var i = lo
+      var j = hi
+      while (i <= j) {
+        while (lessThan(array(i), pivot)) i = i + 1
+        while (lessThan(pivot, array(j))) j = j - 1
+        if (i <= j) {
+          swap(i, j)
+          i = i + 1
+          j = j - 1
+        }
+      }
+
+      // everything in lo..j is <= pivot, everything in i..hi is >= pivot, and anything between is equal to it
+      if (k <= j) hi = j
+      else if (k >= i) lo = i
+      else {
+        lo = k
+        hi = k
+      }
+    }
+  }
+
+  /**
+    * Calculate all three quartiles without sorting, using selection to find only the values needed.  The results
+    * are the same as <code>quartile1</code>, <code>median</code>, and <code>quartile3</code>.
+    *
+    * @param values Unordered values.  This is not modified.
+    * @return Quartiles, all NaN if there are no values.
+    */
+  def quartiles(values: Array[Double]): Quartiles = {
+    val size = values.length
+    if (size == 0)
+      Quartiles(Double.NaN, Double.NaN, Double.NaN)
+    else {
+      val array = values.clone
+
+      val (q1, f1) = q1Position(size)
+      val (q3, f3) = q3Position(size)
+      val needed = Seq(q1, q1 + (if (f1 == 0) 0 else 1), (size - 1) / 2, size / 2, q3, q3 + (if (f3 == 0) 0 else 1)).distinct.sorted
+
+      // Each selection only has to look at the values after the previous one, because they are all greater than or equal.
+      var from = 0
+      needed.foreach(k => {
+        select(array, from, size, k)
+        from = k + 1
+      })
+
+      quartilesOfSorted(size, i => array(i))
+    }
+  }
+
   /**
     * Calculate the first quartile of a list of values.
-    * @param list Unordered list of values.
+    * @param values Unordered values.  This is not modified.
     * @return First quartile.
     */
   //noinspection ScalaWeakerAccess
-  def quartile1(list: Seq[Double]): Double = {
-    val sorted = list.sorted
-    val size = list.size
-
-    def q1: Double = {
-      val i = size / 4
-      size % 4 match {
-        case 0 =>
-          (sorted(i) - sorted(i - 1)) * .75 + sorted(i - 1)
-        case 1 =>
-          sorted(i)
-        case 2 =>
-          (sorted(i + 1) - sorted(i)) * .25 + sorted(i)
-        case 3 =>
-          (sorted(i + 1) - sorted(i)) * .5 + sorted(i)
-      }
+  def quartile1(values: Array[Double]): Double = quartiles(values).q1
+
+  /**
+    * Calculate the third quartile of a list of values.
+    * @param values Unordered values.  This is not modified.
+    * @return Third quartile.
+    */
+  //noinspection ScalaWeakerAccess
+  def quartile3(values: Array[Double]): Double = quartiles(values).q3
+
+  /**
+    * Calculate the median ('middle') value of a list.
+    * @param values Unordered values.  This is not modified.
+    * @return Median value.
+    */
+  //noinspection ScalaWeakerAccess
+  def median(values: Array[Double]): Double = quartiles(values).median
+
+  /**
+    * Calculate the interquartile range of list of numbers.  See <code>iqr(Seq[Double])</code>.
+    * @param values Unordered values.  This is not modified.
+    * @return Interquartile range.
+    */
+  //noinspection ScalaWeakerAccess
+  def iqr(values: Array[Double]): Double = {
+    values.length match {
+      case 0 => Double.NaN // handle special case of empty list
+      case 1 => 0.0 // handle special case of list with size 1
+      case _ => quartiles(values).iqr
     }
-    q1
   }
 
+  /**
+    * Calculate the first quartile of a list of values.
+    * @param list Unordered list of values.
+    * @return First quartile, or NaN if the list is empty.
+    */
+  //noinspection ScalaWeakerAccess
+  def quartile1(list: Seq[Double]): Double = quartile1(list.toArray)
+
   /**
     * Calculate the third quartile of a list of values.
     *
     * @param list Unordered list of values.
-    * @return Third quartile.
+    * @return Third quartile, or NaN if the list is empty.
     */
   //noinspection ScalaWeakerAccess
-  def quartile3(list: Seq[Double]): Double = {
-    val sorted = list.sorted
-    val size = list.size
-
-    def q3: Double = {
-      val i = (size * 3) / 4
-      size % 4 match {
-        case 0 =>
-          (sorted(i) - sorted(i - 1)) * .25 + sorted(i - 1)
-        case 1 =>
-          sorted(i)
-        case 2 =>
-          (sorted(i) - sorted(i - 1)) * .75 + sorted(i - 1)
-        case 3 =>
-          (sorted(i) - sorted(i - 1)) * .5 + sorted(i - 1)
-      }
-    }
-    q3
-  }
+  def quartile3(list: Seq[Double]): Double = quartile3(list.toArray)
 
   /**
     * Calculate the median ('middle') value of a list.
@@ -67,18 +227,7 @@ object Stats {
     * @return Median value.
     */
   //noinspection ScalaWeakerAccess
-  def median(list: Seq[Double]): Double = {
-    val sorted = list.sorted
-    val size = sorted.size
-    val m = size match {
-      case 0 => Double.NaN
-      case _ if (size % 2) == 0 =>
-        val s2 = size / 2
-        (sorted(s2 - 1) + sorted(s2)) / 2
-      case _ => sorted(size / 2)
-    }
-    m
-  }
+  def median(list: Seq[Double]): Double = median(list.toArray)
 
   /**
     * Calculate the interquartile range of list of numbers.
@@ -98,46 +247,7 @@ object Stats {
     * @return Interquartile range.
     */
   //noinspection ScalaWeakerAccess
-  def iqr(list: Seq[Double]): Double = {
-    val sorted = list.sorted
-    val size = list.size
-
-    def q1: Double = {
-      val i = size / 4
-      size % 4 match {
-        case 0 =>
-          (sorted(i) - sorted(i - 1)) * .75 + sorted(i - 1)
-        case 1 =>
-          sorted(i)
-        case 2 =>
-          (sorted(i + 1) - sorted(i)) * .25 + sorted(i)
-        case 3 =>
-          (sorted(i + 1) - sorted(i)) * .5 + sorted(i)
-      }
-    }
-
-    def q3: Double = {
-      val i = (size * 3) / 4
-      size % 4 match {
-        case 0 =>
-          (sorted(i) - sorted(i - 1)) * .25 + sorted(i - 1)
-        case 1 =>
-          sorted(i)
-        case 2 =>
-          (sorted(i) - sorted(i - 1)) * .75 + sorted(i - 1)
-        case 3 =>
-          (sorted(i) - sorted(i - 1)) * .5 + sorted(i - 1)
-      }
-    }
-
-    val iqr = size match {
-      case 0 => Double.NaN // handle special case of empty list
-      case 1 => 0.0 // handle special case of list with size 1
-      case _ => quartile3(list) - quartile1(list)
-    }
-    // println(s"q1: $q1    q3: $q3   iqr: $iqr")
-    iqr
-  }
+  def iqr(list: Seq[Double]): Double = iqr(list.toArray)
 
   /**
     * For testing only.
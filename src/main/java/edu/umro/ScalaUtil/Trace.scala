@@ -25,6 +25,8 @@ import java.net.URI
 import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import javax.imageio.ImageIO
 import javax.swing.JFrame
 import javax.swing.JPanel
@@ -32,16 +34,19 @@ import javax.swing.WindowConstants
 
 /**
   * For debugging code.  Print source line and optionally, parameters.
+  *
+  * This gets a stack trace and prints on every call, so it is too slow to leave on in production code.  Use
+  * <code>Metrics</code> for that instead.
   */
 object Trace {
 
   private val dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS")
 
   /** Time of last trace message. */
-  private var time = System.currentTimeMillis
+  private val lastTime = new AtomicLong(System.currentTimeMillis)
 
   /** If true, do tracing.  If false, do not trace.  Default is true. */
-  private var active = true
+  @volatile private var active = true
 
   /**
     * Turn tracing on.
@@ -73,10 +78,9 @@ object Trace {
     // val threadName = Thread.currentThread.getName
     val now = System.currentTimeMillis
     val elapsedText = {
-      val e = (now - time) / 1000.0
+      val e = (now - lastTime.getAndSet(now)) / 1000.0
       "%6.3f".format(e)
     }
-    time = now
     // sometimes the thread is useful, but mostly it is just noise
     //"Trace " + dateFormat.format(new Date(now)) + " | " + threadName + " | " + elapsedText + " | " + se.toString
     "Trace " + dateFormat.format(new Date(now)) + " | " + elapsedText + " | " + se.toString
@@ -97,20 +101,17 @@ object Trace {
   }
 
   /** Provide an id for each timing so that the start and finish can be matched up in a log file. */
-  private var timeId = 0
+  private val timeId = new AtomicInteger(0)
 
   /**
     * Get a unique id to reference a statement being timed.
     * @return A unique ID.
     */
-  private def getTimeId: Int =
-    timeId.synchronized {
-      timeId = timeId + 1
-      timeId
-    }
+  private def getTimeId: Int = timeId.incrementAndGet()
 
   /**
-    * Provide timing and tracing information for a given statement.
+    * Provide timing and tracing information for a given statement.  To time code that is left in production, use
+    * <code>Metrics.timer</code> instead.
     *
     * @param arg0 The statement to be evaluated
     * @tparam T0 Type of value that statement returns.
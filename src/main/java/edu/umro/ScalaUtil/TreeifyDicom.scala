@@ -48,7 +48,7 @@ object TreeifyDicom {
 
     def moveTo(seriesDir: File, dicomObj: DicomObj, instanceIndex: Int, outDir: File) = {
       val destFile = new File(seriesDir, Modality + "_" + (instanceIndex + 1).formatted("%03d") + "_" + dateText + ".dcm")
-      file.renameTo(destFile)
+      if (file.renameTo(destFile)) DicomIndex.shared.foreach(_.rename(file, destFile))
       print(".")
     }
   }
@@ -72,8 +72,10 @@ object TreeifyDicom {
 
   private def readFile(dicomFile: File) = {
     try {
-      val al = new AttributeList
-      al.read(dicomFile)
+      val al = DicomIndex.shared match {
+        case Some(index) => index.get(dicomFile).get
+        case _ => DicomUtil.readHeader(dicomFile)
+      }
       def getAttr(tag: AttributeTag) = new String(al.get(tag).getSingleStringValueOrEmptyString)
 
       Some(new DicomObj(getAttr(TagFromName.PatientID), getAttr(TagFromName.StudyInstanceUID), getAttr(TagFromName.SeriesInstanceUID), getAttr(TagFromName.Modality), dicomFile, getDateTime(al)))
@@ -127,6 +129,7 @@ object TreeifyDicom {
       val patientList = dicomFileList.groupBy(_.PatientID).map(kv => kv._2).toSeq
 
       patientList.map(patient => movePatient(patient, outDir, regWithCBCT))
+      DicomIndex.saveShared()
       println("\nDone.  Elapsed ms: " + (System.currentTimeMillis - start))
     } catch {
       case t: Throwable =>
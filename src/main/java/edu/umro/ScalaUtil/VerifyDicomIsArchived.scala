@@ -20,15 +20,282 @@ import com.pixelmed.dicom.AttributeList
 import com.pixelmed.dicom.TagFromName
 import com.pixelmed.dicom.AttributeTag
 import com.pixelmed.dicom.AttributeFactory
+import edu.umro.ScalaUtil.dicomCFind.DicomCFindBase
+import edu.umro.ScalaUtil.dicomCFind.DicomCFindInstancesForSeries
+import edu.umro.ScalaUtil.dicomCFind.DicomCFindSeriesForPatient
+
+import java.io.File
+import java.io.FileWriter
+import java.io.PrintWriter
+import java.nio.file.Files
 import java.util.Date
 import java.text.SimpleDateFormat
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import scala.collection.JavaConverters._
 
 /**
- * Get list of scans from DICOM device in Patient / Study / Series hierarchy.
+ * Verify that local DICOM files have been archived in a PACS by comparing the series in the files with the series in
+ * the PACS.  A series is missing if the PACS does not have it, and mismatched if the PACS has a different number of
+ * instances than the local files.
+ *
+ * Patients are compared in parallel.  After each patient is done, its results are appended to the report and its
+ * PatientID is appended to the checkpoint file.  If the run is interrupted, running it again with the same report and
+ * checkpoint files skips the patients that were already done.  Delete both files to start over.
+ *
+ * Patients that could not be checked because of an error are not added to the checkpoint, so they are tried again.
+ *
+ * The report has one row for each series that is missing, mismatched, or could not be checked, and one row for each
+ * patient giving the number of series and the time it took.  It is written as CSV, or as JSON (one object per line)
+ * if the report file name ends with <code>.json</code>.
+ *
+ * @param callingAETitle AE title of this system.
+ * @param calledPacs     PACS that should have the files.
+ * @param threadCount    Number of patients compared at the same time.
+ * @param reportFile     Report of results.
+ * @param checkpointFile List of patients that are done.
  */
+class VerifyDicomIsArchived(callingAETitle: String, calledPacs: PACS, threadCount: Int, reportFile: File, checkpointFile: File) extends Logging {
+
+  import VerifyDicomIsArchived._
+
+  private val seriesFinder = new DicomCFindSeriesForPatient(callingAETitle, calledPacs, Seq(TagFromName.PatientID, TagFromName.SeriesInstanceUID))
+  private val instanceFinder = new DicomCFindInstancesForSeries(callingAETitle, calledPacs, Seq(TagFromName.SeriesInstanceUID, TagFromName.SOPInstanceUID))
+
+  private val isJson = reportFile.getName.toLowerCase.endsWith(".json")
+
+  /**
+    * Compare the local series of one patient with the PACS.
+    */
+  private def verifyPatient(PatientID: String, localList: Seq[LocalSeries]): PatientResult = {
+    val start = System.currentTimeMillis
+    try {
+      val pacsSeriesSet = seriesFinder.findConcurrent(makeQuery(Seq((TagFromName.PatientID, PatientID)))).map(al => gt(al, TagFromName.SeriesInstanceUID)).toSet
+
+      def verifySeries(local: LocalSeries): SeriesResult = {
+        if (pacsSeriesSet.contains(local.SeriesInstanceUID)) {
+          val pacsCount = instanceFinder.findConcurrent(makeQuery(Seq((TagFromName.SeriesInstanceUID, local.SeriesInstanceUID)))).size
+          val status = if (pacsCount == local.instanceCount) Status.ARCHIVED else Status.MISMATCH
+          SeriesResult(local, Some(pacsCount), status)
+        } else
+          SeriesResult(local, None, Status.MISSING)
+      }
+
+      val seriesResultList = localList.map(verifySeries)
+      PatientResult(PatientID, seriesResultList, Some(pacsSeriesSet.size), System.currentTimeMillis - start)
+    } catch {
+      case t: Throwable =>
+        logger.warn("Unable to verify patient " + PatientID + " : " + fmtEx(t))
+        PatientResult(PatientID, localList.map(local => SeriesResult(local, None, Status.ERROR)), None, System.currentTimeMillis - start)
+    }
+  }
+
+  /**
+    * Format a row of the report.  Numbers are not quoted in JSON.
+    */
+  private def formatRow(valueList: Seq[Any]): String = {
+    if (isJson) {
+      def toJson(value: Any): String =
+        value match {
+          case n: Int  => n.toString
+          case n: Long => n.toString
+          case v       => "\"" + v.toString.flatMap(c => if ((c == '"') || (c == '\\')) "\\" + c else if (c < ' ') "\\" + "u%04x".format(c.toInt) else c.toString) + "\""
+        }
+      reportColumnList.zip(valueList).map(cv => "\"" + cv._1 + "\":" + toJson(cv._2)).mkString("{", ",", "}")
+    } else
+      valueList.map(v => csv(v.toString)).mkString(",")
+  }
+
+  private def reportRowList(result: PatientResult): Seq[String] = {
+    val seriesRowList = result.seriesResultList
+      .filterNot(_.status == Status.ARCHIVED)
+      .map(sr => {
+        val local = sr.local
+        formatRow(Seq("series", local.PatientID, local.SeriesInstanceUID, local.Modality, local.SeriesDescription, local.instanceCount, sr.pacsCount.map(_.toString).getOrElse(""), sr.status.toString, ""))
+      })
+    val status = if (result.seriesResultList.forall(_.status == Status.ARCHIVED)) Status.ARCHIVED else Status.INCOMPLETE
+    val patientRow =
+      formatRow(Seq("patient", result.PatientID, "", "", "", result.seriesResultList.size, result.pacsSeriesCount.map(_.toString).getOrElse(""), status.toString, result.elapsed_ms))
+    seriesRowList :+ patientRow
+  }
+
+  /**
+    * Compare the series in the given local files and directories with the PACS.  Patients listed in the checkpoint
+    * file are skipped.
+    *
+    * @param fileList Local DICOM files and directories.
+    * @return Results for the patients that were compared in this run.
+    */
+  def verify(fileList: Seq[File]): Seq[PatientResult] = {
+    val doneSet = readCheckpoint(checkpointFile)
+    val patientList = findLocalSeries(fileList, threadCount).groupBy(_.PatientID).toSeq.sortBy(_._1).filterNot(p => doneSet.contains(p._1))
+    logger.info("Patients already verified: " + doneSet.size + "    patients to verify: " + patientList.size)
+
+    val writeHeader = !isJson && (!reportFile.exists || (reportFile.length == 0))
+    val report = new PrintWriter(new FileWriter(reportFile, true))
+    val checkpoint = new PrintWriter(new FileWriter(checkpointFile, true))
+    if (writeHeader) {
+      report.println(reportColumnList.mkString(","))
+      report.flush()
+    }
+
+    /**
+      * Write the results of a patient, and then mark it as done so that a resumed run skips it.  Patients that could
+      * not be checked are not marked so that they are tried again.
+      */
+    def record(result: PatientResult): Unit =
+      report.synchronized {
+        reportRowList(result).foreach(report.println)
+        report.flush()
+        if (result.pacsSeriesCount.isDefined) {
+          checkpoint.println(result.PatientID)
+          checkpoint.flush()
+        }
+        logger.info("Verified patient " + result.PatientID + "  series: " + result.seriesResultList.size + "  elapsed ms: " + result.elapsed_ms)
+      }
+
+    val executor = Executors.newFixedThreadPool(Math.max(1, threadCount))
+    try {
+      val futureList = patientList.map(patient =>
+        executor.submit(new Callable[PatientResult] {
+          override def call(): PatientResult = {
+            val result = verifyPatient(patient._1, patient._2)
+            record(result)
+            result
+          }
+        })
+      )
+      futureList.map(_.get)
+    } finally {
+      executor.shutdown()
+      report.close()
+      checkpoint.close()
+      DicomCFindBase.releasePool()
+    }
+  }
+}
 
 object VerifyDicomIsArchived extends Logging {
 
+  /**
+    * Outcome of comparing a series.
+    */
+  object Status extends Enumeration {
+    val ARCHIVED, MISSING, MISMATCH, ERROR, INCOMPLETE = Value
+  }
+
+  /**
+    * A series found in local files.
+    *
+    * @param instanceCount Number of distinct SOPInstanceUIDs in the local files.
+    */
+  case class LocalSeries(PatientID: String, SeriesInstanceUID: String, Modality: String, SeriesDescription: String, instanceCount: Int) {}
+
+  /**
+    * Result of comparing one local series with the PACS.
+    *
+    * @param pacsCount Number of instances in the PACS, or nothing if the series is not there or could not be checked.
+    */
+  case class SeriesResult(local: LocalSeries, pacsCount: Option[Int], status: Status.Value) {}
+
+  /**
+    * Result of comparing all of the local series of one patient with the PACS.
+    *
+    * @param pacsSeriesCount Number of series for the patient in the PACS, or nothing if it could not be checked.
+    * @param elapsed_ms      Time taken to compare the patient.
+    */
+  case class PatientResult(PatientID: String, seriesResultList: Seq[SeriesResult], pacsSeriesCount: Option[Int], elapsed_ms: Long) {}
+
+  private val reportColumnList = Seq("Type", "PatientID", "SeriesInstanceUID", "Modality", "SeriesDescription", "LocalCount", "PacsCount", "Status", "Elapsed_ms")
+
+  /**
+    * Quote a field for CSV output if it needs it.
+    */
+  private def csv(text: String): String = {
+    if (text.exists(c => (c == ',') || (c == '"') || (c == '\n'))) "\"" + text.replace("\"", "\"\"") + "\""
+    else text
+  }
+
+  private def gt(al: AttributeList, tag: AttributeTag): String = {
+    val at = al.get(tag)
+    if (at == null) ""
+    else at.getSingleStringValueOrEmptyString.trim.replace('\u0000', ' ')
+  }
+
+  private def readCheckpoint(checkpointFile: File): Set[String] = {
+    if (checkpointFile.exists)
+      Files.readAllLines(checkpointFile.toPath).asScala.map(_.trim).filter(_.nonEmpty).toSet
+    else
+      Set[String]()
+  }
+
+  private val localTagSet = Set(TagFromName.PatientID, TagFromName.SeriesInstanceUID, TagFromName.SOPInstanceUID, TagFromName.Modality, TagFromName.SeriesDescription)
+
+  /**
+    * Read the attributes needed to identify the series of a file, using the shared index if there is one.
+    */
+  private def readLocal(file: File): Option[AttributeList] = {
+    try {
+      DicomIndex.shared match {
+        case Some(index) => index.get(file)
+        case _ =>
+          val al = DicomUtil.readHeaderTags(file, localTagSet)
+          if (al.get(TagFromName.SeriesInstanceUID) == null) None else Some(al)
+      }
+    } catch {
+      case _: Throwable => None
+    }
+  }
+
+  /**
+    * Find the series in the given local files and directories.  Files are read by multiple threads, and only the
+    * attributes needed to identify the series are read.  Files that are not DICOM are ignored.
+    *
+    * @param fileList    Local DICOM files and directories.
+    * @param threadCount Number of threads to read files with.
+    * @return One entry per series.
+    */
+  def findLocalSeries(fileList: Seq[File], threadCount: Int): Seq[LocalSeries] = {
+    // first file found for each series, and all of the instances in each series
+    val seriesMap = scala.collection.mutable.HashMap[String, (LocalSeries, scala.collection.mutable.HashSet[String])]()
+
+    def add(al: AttributeList): Unit = {
+      val SeriesInstanceUID = gt(al, TagFromName.SeriesInstanceUID)
+      seriesMap.synchronized {
+        val entry = seriesMap.getOrElseUpdate(
+          SeriesInstanceUID,
+          (LocalSeries(gt(al, TagFromName.PatientID), SeriesInstanceUID, gt(al, TagFromName.Modality), gt(al, TagFromName.SeriesDescription), 0), scala.collection.mutable.HashSet[String]())
+        )
+        entry._2 += gt(al, TagFromName.SOPInstanceUID)
+      }
+    }
+
+    val count = Math.max(1, threadCount)
+    val pool = new ThreadPoolExecutor(count, count, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue[Runnable](count * 4), new ThreadPoolExecutor.CallerRunsPolicy)
+
+    def process(file: File): Unit = {
+      if (file.isDirectory)
+        FileUtil.listFiles(file).foreach(process)
+      else
+        pool.execute(new Runnable {
+          override def run(): Unit = readLocal(file).foreach(add)
+        })
+    }
+
+    try {
+      fileList.foreach(process)
+    } finally {
+      pool.shutdown()
+      pool.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
+    DicomIndex.saveShared()
+
+    seriesMap.values.map(entry => entry._1.copy(instanceCount = entry._2.size)).toSeq
+  }
+
   //val calledPacs = new PACS("VMSDBD", "10.30.65.100", 105)
   val calledPacs = new PACS("ROBRCTSYNGO", "10.20.230.82", 104)
 
@@ -179,7 +446,10 @@ object VerifyDicomIsArchived extends Logging {
     studyList.map(study => makeStudyReport(study._2))
   }
 
-  def main(args: Array[String]): Unit = {
+  /**
+    * List the contents of the PACS.
+    */
+  private def listPacs(): Unit = {
     println("Starting...")
     val start = System.currentTimeMillis
     val seriesList = getSeriesList
@@ -193,4 +463,34 @@ object VerifyDicomIsArchived extends Logging {
     println("Done.   Elapsed ms: ")
   }
 
+  /**
+    * Usage:
+    *
+    *     VerifyDicomIsArchived [-threads=N] [-report=report.csv] [-checkpoint=file] [-pacs=AETITLE:host:port] [-aetitle=AETITLE] myFolder myFile.dcm ...
+    *
+    * If no files or folders are given, then list the contents of the PACS.
+    */
+  def main(args: Array[String]): Unit = {
+    def arg(name: String): Option[String] = args.find(_.startsWith("-" + name + "=")).map(_.substring(name.length + 2))
+
+    val fileList = args.filterNot(_.startsWith("-")).map(a => new File(a)).toSeq
+    if (fileList.isEmpty)
+      listPacs()
+    else {
+      val start = System.currentTimeMillis
+      val threadCount = arg("threads").map(_.toInt).getOrElse(8)
+      val reportFile = new File(arg("report").getOrElse("VerifyDicomIsArchived.csv"))
+      val checkpointFile = new File(arg("checkpoint").getOrElse(reportFile.getPath + ".checkpoint"))
+      val pacs = arg("pacs").map(p => p.split(":")).map(p => new PACS(p(0), p(1), p(2).toInt)).getOrElse(calledPacs)
+      val verifier = new VerifyDicomIsArchived(arg("aetitle").getOrElse("IRRER"), pacs, threadCount, reportFile, checkpointFile)
+      val resultList = verifier.verify(fileList)
+      val seriesResultList = resultList.flatMap(_.seriesResultList)
+      def countOf(status: Status.Value) = seriesResultList.count(_.status == status)
+      println(
+        "Done.  Patients: " + resultList.size + "    series: " + seriesResultList.size + "    missing: " + countOf(Status.MISSING) +
+          "    mismatched: " + countOf(Status.MISMATCH) + "    errors: " + countOf(Status.ERROR) + "    Elapsed ms: " + (System.currentTimeMillis - start)
+      )
+    }
+  }
+
 }
@@ -31,7 +31,14 @@ import edu.umro.util.Utility
 
 import java.io.File
 import java.io.FileOutputStream
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
 import java.util.Date
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import javax.imageio.ImageIO
 import scala.collection.mutable.ArrayBuffer
 
@@ -41,7 +48,7 @@ import scala.collection.mutable.ArrayBuffer
 object XRayAngioFixer extends Logging {
 
   private val logBuffer = ArrayBuffer[String]();
-  private def log(msg: String) = {
+  private def log(msg: String) = logBuffer.synchronized {
     logBuffer += msg
     println(msg)
   }
@@ -52,17 +59,27 @@ object XRayAngioFixer extends Logging {
   private val logFileName = "log.txt"
   private val doctypePrefix = "<!DOCTYPE html>\n"
 
+  /** In batch mode, the list of input files already processed, kept in the report directory. */
+  private val manifestFileName = "processed.txt"
+
+  /** In batch mode, the HTML for each image in the index, kept in the report directory. */
+  private val entriesFileName = "entries.html"
+
   private val usageMessage = {
     """
 Usage:
 
-  XRayAngioFixer [DICOM Folder]
+  XRayAngioFixer [-batch] [-threads=N] [DICOM Folder]
 
 You can drag a folder from the Windows desktop and drop it on
 this program.
 
 Results will be written to a new folder under the original folder.
 Note that this means that you must be able to write to this folder.
+
+With -batch, previous results are kept and only files that are new
+or have changed since the last run are processed, using N threads
+(default is the number of processors).
 """
   }
 
@@ -71,12 +88,16 @@ Note that this means that you must be able to write to this folder.
     lf
   }
 
-  private def writeLogFile(dir: File) = {
+  private def writeLogFile(dir: File, append: Boolean) = {
     try {
       val lf = logFile(dir)
       println("Writing log file to " + lf.getAbsolutePath)
-      lf.delete
-      Utility.writeFile(lf, logBuffer.mkString("", "\n", "\n").getBytes)
+      if (append)
+        Files.write(lf.toPath, logBuffer.mkString("", "\n", "\n").getBytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+      else {
+        lf.delete
+        Utility.writeFile(lf, logBuffer.mkString("", "\n", "\n").getBytes)
+      }
     } catch {
       case t: Throwable => None
     }
@@ -88,13 +109,13 @@ Note that this means that you must be able to write to this folder.
     System.exit(1)
   }
 
-  private def readFile(file: File): Option[AttributeList] = {
+  /**
+   * Read the file without its pixel data, which is only read if it is needed.
+   */
+  private def readFile(file: File): Option[LazyDicom] = {
     try {
-      val al = new AttributeList
-      // al.setDecompressPixelData(true)
       log("reading file: " + file.getAbsolutePath)
-      al.read(file)
-      Some(al)
+      Some(DicomUtil.readLazy(file))
     } catch {
       case t: Throwable =>
         println(fmtEx(t))
@@ -102,6 +123,16 @@ Note that this means that you must be able to write to this folder.
     }
   }
 
+  private def loadPixelData(lazyDicom: LazyDicom): Option[AttributeList] = {
+    try {
+      Some(lazyDicom.loadPixelData())
+    } catch {
+      case t: Throwable =>
+        log("Ignoring file.  Unable to read pixel data : " + lazyDicom.file.getAbsolutePath + " : " + fmtEx(t))
+        None
+    }
+  }
+
   private def usage(msg: String) = {
     log(msg)
     println(usageMessage)
@@ -114,13 +145,13 @@ Note that this means that you must be able to write to this folder.
   }
 
   private def fileIsOk(file: File): Option[AttributeList] = {
-    val al = readFile(file)
+    val lazyDicom = readFile(file)
 
     file match {
       case _ if (!file.canRead) => { log("Ignoring file.  No read permission or not a regular file : " + file.getAbsolutePath); None }
-      case _ if (al.isEmpty) => { log("Ignoring file.  Does not appear to be DICOM : " + file.getAbsolutePath); None }
-      case _ if (!isXRayAngio(al.get)) => { log("Ignoring file.  Is not X-Ray Angiographic Image : " + file.getAbsolutePath); None }
-      case _ => al
+      case _ if (lazyDicom.isEmpty) => { log("Ignoring file.  Does not appear to be DICOM : " + file.getAbsolutePath); None }
+      case _ if (!isXRayAngio(lazyDicom.get.attributeList)) => { log("Ignoring file.  Is not X-Ray Angiographic Image : " + file.getAbsolutePath); None }
+      case _ => loadPixelData(lazyDicom.get)
     }
   }
 
@@ -228,15 +259,20 @@ Note that this means that you must be able to write to this folder.
 
   }
 
+  /**
+    * Name of a report file made for the given DICOM file, replacing its .dcm suffix if it has one.
+    */
+  private def reportFileName(dicomFile: File, suffix: String): String = {
+    val old = dicomFile.getName
+    if (old.toLowerCase().endsWith(".dcm"))
+      old.replaceAll("....$", suffix)
+    else
+      old + suffix
+  }
+
   private def makeImage(htmlDir: File, fd: FileDicom) = {
     try {
-      val fileName = {
-        val old = fd.file.getName
-        if (old.toLowerCase().endsWith(".dcm"))
-          old.replaceAll("....$", ".png")
-        else
-          old + ".png"
-      }
+      val fileName = reportFileName(fd.file, ".png")
       val pngFile = new File(htmlDir, fileName)
       val image = ConsumerFormatImageMaker.makeEightBitImage(fd.al)
       pngFile.delete
@@ -258,12 +294,7 @@ Note that this means that you must be able to write to this folder.
   private def makeDicomHtml(htmlDir: File, fd: FileDicom) = {
     val dicomFileName = fd.file.getName
     try {
-      val htmlFileName = {
-        if (dicomFileName.toLowerCase().endsWith(".dcm"))
-          dicomFileName.replaceAll("....$", ".html")
-        else
-          dicomFileName + ".html"
-      }
+      val htmlFileName = reportFileName(fd.file, ".html")
       val htmlFile = new File(htmlDir, htmlFileName)
       htmlFile.delete
 
@@ -301,19 +332,28 @@ Note that this means that you must be able to write to this folder.
     }
   }
 
-  def makeHtml(outputDir: File, reportDir: File) = {
+  private def fileToHtml(fileName: String) = {
+    val htmlName = fileName.replaceAll(".png$", ".html")
+    <a href={ htmlName }>
+      <img src={ fileName } height="100"/>
+    </a>
+  }
 
-    val numCreated = outputDir.listFiles.size
+  /**
+    * Write the index page.
+    *
+    * @param outputDir Contains fixed DICOM files.
+    * @param reportDir Where the index is written.
+    * @param entries   HTML for the images.  If not given, then all images in the report directory are listed.
+    * @param fileCount Number of files created.  If not given, then the files in the output directory are counted.
+    */
+  def makeHtml(outputDir: File, reportDir: File, entries: Option[String] = None, fileCount: Option[Int] = None) = {
 
-    def fileToHtml(fileName: String) = {
-      val htmlName = fileName.replaceAll(".png$", ".html")
-      <a href={ htmlName }>
-        <img src={ fileName } height="100"/>
-      </a>
-    }
+    val entriesTag = "@@@@ENTRIES@@@@"
 
     val imageHtml = {
-      reportDir.list.filter(fn => fn.endsWith(".png")).map(fn => fileToHtml(fn))
+      if (entries.isDefined) Seq(scala.xml.Text(entriesTag))
+      else reportDir.list.filter(fn => fn.endsWith(".png")).map(fn => fileToHtml(fn)).toSeq
     }
 
     val content = {
@@ -328,7 +368,7 @@ Note that this means that you must be able to write to this folder.
             <p>DICOM Dir: <a href={ "file:///" + outputDir.getAbsolutePath }>{ outputDir.getAbsolutePath }</a></p>
             <p>Generated: { new Date }</p>
             <p>User: { OpSys.getUser }</p>
-            <p> Number of files created: { outputDir.listFiles.size }</p>
+            <p> Number of files created: { fileCount.getOrElse(outputDir.listFiles.size) }</p>
             <p><a href={ logFileName }>Log file</a></p>
             <p>Click on images to view</p>
             { imageHtml }
@@ -337,7 +377,7 @@ Note that this means that you must be able to write to this folder.
       </html>
     }
 
-    val text = doctypePrefix + PrettyXML.xmlToText(content)
+    val text = doctypePrefix + PrettyXML.xmlToText(content).replace(entriesTag, entries.getOrElse(""))
 
     val indexHtmlFile = new File(reportDir, htmlFileName)
 
@@ -350,6 +390,155 @@ Note that this means that you must be able to write to this folder.
     all
   }
 
+  // ---------------------------------------------------------------------------------------------------
+
+  // Batch mode
+
+  /**
+    * An input file that was processed in a previous batch run.
+    *
+    * @param path         Absolute path of input file.
+    * @param length       Size of the file when it was processed.
+    * @param lastModified Modification time of the file when it was processed.
+    * @param fixed        True if it was fixed, false if it was ignored, as for files that are not X-Ray Angio.
+    */
+  private case class Processed(path: String, length: Long, lastModified: Long, fixed: Boolean) {
+    def toLine: String = Seq(path, length, lastModified, fixed).mkString("\t")
+
+    /** True if the file has been changed since it was processed. */
+    def isChanged(file: File): Boolean = (file.length != length) || (file.lastModified != lastModified)
+  }
+
+  /**
+    * Read the list of files already processed.  If a file is listed more than once, the last one is used.
+    */
+  private def readManifest(reportDir: File): Map[String, Processed] = {
+    val file = new File(reportDir, manifestFileName)
+    if (file.canRead) {
+      val lineList = new String(Files.readAllBytes(file.toPath), StandardCharsets.UTF_8).split("\n")
+      lineList
+        .map(_.split("\t"))
+        .filter(_.length == 4)
+        .flatMap(f =>
+          try {
+            Some(Processed(f(0), f(1).toLong, f(2).toLong, f(3).toBoolean))
+          } catch {
+            case _: Throwable => None
+          }
+        )
+        .map(p => (p.path, p))
+        .toMap
+    } else
+      Map()
+  }
+
+  /**
+    * Add a line to a file in the report directory.  Lines are added by multiple threads, so this is synchronized.
+    */
+  private def appendLine(reportDir: File, fileName: String, line: String): Unit =
+    logBuffer.synchronized {
+      Files.write(new File(reportDir, fileName).toPath, (line + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+    }
+
+  /**
+    * Make a pool of threads with a bounded queue.  When the queue is full the submitting thread does the work itself,
+    * which limits the number of files held in memory.
+    */
+  private def makePool(threadCount: Int): ThreadPoolExecutor =
+    new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue[Runnable](threadCount * 2), new ThreadPoolExecutor.CallerRunsPolicy)
+
+  private def awaitPool(pool: ThreadPoolExecutor): Unit = {
+    pool.shutdown()
+    pool.awaitTermination(Long.MaxValue, TimeUnit.DAYS)
+  }
+
+  /**
+    * Fix one file and write it.  The preview image and HTML are made on the render pool, and when they are done the
+    * file is added to the index and the manifest.
+    *
+    * @param previous   Result from the previous run, if the file was processed before.
+    * @param renderPool Makes preview images and HTML.
+    * @param fixedDelta Change in the number of fixed files, counting files that were not fixed before and now are.
+    */
+  private def batchProcess(f: File, outDir: File, reportDir: File, previous: Option[Processed], renderPool: ThreadPoolExecutor, fixedDelta: AtomicInteger): Unit = {
+    // get these before reading so that a change made while reading will be seen next time
+    val length = f.length
+    val lastModified = f.lastModified
+    makeFileDicom(f) match {
+      case Some(fd) =>
+        fixDicom(fd)
+        writeDicom(outDir, fd)
+        if (!previous.exists(_.fixed)) fixedDelta.incrementAndGet()
+        renderPool.execute(new Runnable {
+          override def run(): Unit = {
+            makeImage(reportDir, fd)
+            makeDicomHtml(reportDir, fd)
+            // a changed file is already in the index
+            if (!previous.exists(_.fixed))
+              appendLine(reportDir, entriesFileName, PrettyXML.xmlToText(fileToHtml(reportFileName(fd.file, ".png"))).replace('\n', ' '))
+            appendLine(reportDir, manifestFileName, Processed(f.getAbsolutePath, length, lastModified, fixed = true).toLine)
+          }
+        })
+      case _ =>
+        if (previous.exists(_.fixed)) fixedDelta.decrementAndGet()
+        appendLine(reportDir, manifestFileName, Processed(f.getAbsolutePath, length, lastModified, fixed = false).toLine)
+    }
+  }
+
+  /**
+    * Process only the files in the directory that are new or have changed since the last run, keeping the previous
+    * results.  Files are fixed in parallel, and preview images are made in the background while other files are
+    * fixed.  The index page is made from the saved entries and the manifest instead of by scanning the report and
+    * output directories, so the time for each run depends on the number of new files, not the number of files in
+    * the directory.
+    *
+    * @param dir         Directory containing DICOM files.
+    * @param threadCount Number of files fixed at the same time.
+    */
+  private def batchFixDir(dir: File, threadCount: Int): Unit = {
+    try {
+      log("Processing directory in batch mode with " + threadCount + " threads: " + dir.getAbsolutePath)
+      if (dir.canRead && dir.canWrite && dir.isDirectory) {
+        val outDir = new File(dir, outputDirName)
+        val reportDir = new File(dir, htmlFileDirName)
+        outDir.mkdirs
+        reportDir.mkdirs
+
+        val manifest = readManifest(reportDir)
+        val excluded = Set(outDir.getAbsolutePath, reportDir.getAbsolutePath)
+        val allFiles = dir.listFiles.toSeq.filterNot(f => excluded.contains(f.getAbsolutePath)).flatMap(f => if (f.isDirectory) findAllChildFiles(f) else Seq(f))
+        val fileList = allFiles.filter(f => manifest.get(f.getAbsolutePath).forall(_.isChanged(f))).sortBy(f => f.lastModified)
+        log("Number of files: " + allFiles.size + "    new or changed: " + fileList.size)
+        val fixedDelta = new AtomicInteger(0)
+
+        if (fileList.nonEmpty) {
+          val workPool = makePool(threadCount)
+          val renderPool = makePool(Math.max(1, threadCount / 2))
+          fileList.foreach(f =>
+            workPool.execute(new Runnable {
+              override def run(): Unit = batchProcess(f, outDir, reportDir, manifest.get(f.getAbsolutePath), renderPool, fixedDelta)
+            })
+          )
+          awaitPool(workPool)
+          awaitPool(renderPool)
+        }
+
+        val entriesFile = new File(reportDir, entriesFileName)
+        val entries = if (entriesFile.canRead) new String(Files.readAllBytes(entriesFile.toPath), StandardCharsets.UTF_8) else ""
+        // count from the manifest instead of listing the output directory, which grows with every run
+        val fixedCount = manifest.values.count(_.fixed) + fixedDelta.get
+        makeHtml(outDir, reportDir, Some(entries), Some(fixedCount))
+      } else {
+        log("Ignoring because it is not a folder or no permission to read or write: " + dir.getAbsolutePath)
+      }
+    } catch {
+      case t: Throwable => {
+        log("Unexpected error in batchFixDir: " + t.getMessage)
+        failure(t)
+      }
+    }
+  }
+
   private def deleteOldFiles(dirList: Seq[File]) = {
 
     val timeout = System.currentTimeMillis + (10 * 1000)
@@ -410,13 +599,21 @@ Note that this means that you must be able to write to this folder.
       println("Starting " + args.mkString(" "))
       if (args.size == 0) usage("No parameters given")
 
-      val dirName = args.mkString(" ")
+      def isOption(arg: String) = arg.equals("-batch") || arg.startsWith("-threads=")
+      val batch = args.contains("-batch")
+      val threadCount = args.find(_.startsWith("-threads=")).map(_.replaceAll(".*=", "").trim.toInt).getOrElse(Runtime.getRuntime.availableProcessors)
+
+      val dirName = args.filterNot(isOption).mkString(" ")
       //if (args.size > 1) usage("Only one folder may be processed at a time.")
+      if (dirName.isEmpty) usage("No folder given")
 
       val inDir = new File(dirName)
-      fixDir(inDir)
+      if (batch)
+        batchFixDir(inDir, Math.max(1, threadCount))
+      else
+        fixDir(inDir)
 
-      writeLogFile(inDir)
+      writeLogFile(inDir, append = batch)
 
       println("Elapsed ms: " + (System.currentTimeMillis - start))
       System.exit(0)
@@ -23,12 +23,32 @@ import com.pixelmed.dicom.TagFromName
 import com.pixelmed.network.Association
 import com.pixelmed.network.FindSOPClassSCU
 import com.pixelmed.network.IdentifierHandler
+import edu.umro.ScalaUtil.AssociationPool
 import edu.umro.ScalaUtil.Logging
+import edu.umro.ScalaUtil.Metrics
 import edu.umro.ScalaUtil.PACS
 
 import java.io.Closeable
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import scala.collection.mutable.ArrayBuffer
 
-abstract class DicomCFindBase(callingAETitle: String, calledPacs: PACS, retrieveList: Seq[AttributeTag]) extends Logging with Closeable {
+/**
+  * Base for C-FIND queries at a given query level.
+  *
+  * Results can be gotten all at once (<code>find</code>), delivered one at a time as they arrive
+  * (<code>findStream</code>, <code>findIterator</code>), or for many queries at the same time over pooled
+  * associations (<code>findBatch</code>).
+  *
+  * @param callingAETitle AE title of this system.
+  * @param calledPacs     PACS being queried.
+  * @param retrieveList   Attributes to be returned.
+  * @param cache          If given, the results of <code>find</code> and <code>findBatch</code> are cached.
+  */
+abstract class DicomCFindBase(callingAETitle: String, calledPacs: PACS, retrieveList: Seq[AttributeTag], cache: Option[DicomCFindCache] = None) extends Logging with Closeable {
 
   protected val queryRetrieveInformationModel: String
   protected val queryRetrieveLevel: String
@@ -43,26 +63,53 @@ abstract class DicomCFindBase(callingAETitle: String, calledPacs: PACS, retrieve
   /**
     * Handle the incoming C-FIND results.
     * @param limit If defined, stop when this many items are received.
+    * @param process Called with each item as it is received.
+    * @param abort Stops the C-FIND.
+    * @param cancelled If true after an item is processed, the C-FIND is stopped.
     */
-  private class IdentHandler(limit: Option[Int]) extends IdentifierHandler {
-    private val list = scala.collection.mutable.ArrayBuffer[AttributeList]()
+  private class IdentHandler(limit: Option[Int], process: AttributeList => Unit, abort: () => Unit, cancelled: () => Boolean = () => false) extends IdentifierHandler {
+    private var count = 0
+    private var limitExceeded = false
+    private var wasCancelled = false
 
     override def doSomethingWithIdentifier(attributeList: AttributeList): Unit = {
       //logger.trace("Got attributes: " + attributeList.toString().replace('\u0000', ' '));  // log null chars as blanks
-      if (limit.isEmpty || (limit.isDefined && (list.size < limit.get))) {
-        list += attributeList
-      } else {
+      if (wasCancelled) {
+        // already stopped, ignore anything received before the abort took effect
+      } else if (limit.isEmpty || (limit.isDefined && (count < limit.get))) {
+        count = count + 1
+        DicomCFindBase.resultCounter.increment()
+        process(attributeList)
+        if (cancelled()) {
+          wasCancelled = true
+          logger.info("C-FIND cancelled by consumer.  Shutting down connection.")
+          abort()
+        }
+      } else if (!limitExceeded) {
+        limitExceeded = true
         val msg = "C-FIND limit of " + limit.get + " items exceeded.  Shutting down connection."
         logger.warn(msg)
         // only way to stop it is to close the association
-        close()
+        abort()
       }
     }
 
-    /**
-      * Get the items received.  This is valid whether the limit was exceeded.
-      */
-    def get: Seq[AttributeList] = list
+    /** Number of items received. */
+    def getCount: Int = count
+
+    /** True if the limit was exceeded, in which case the results are incomplete. */
+    def isLimitExceeded: Boolean = limitExceeded
+
+    /** True if the C-FIND was stopped before it was done, either by the limit or by being cancelled. */
+    def isStopped: Boolean = limitExceeded || wasCancelled
+  }
+
+  /**
+    * Perform a C-FIND on the given association, recording how long it took.
+    */
+  private def cFind(assoc: Association, query: AttributeList, identHandler: IdentHandler): Unit = {
+    DicomCFindBase.findCounter.increment()
+    DicomCFindBase.findTimer.time(new FindSOPClassSCU(assoc, queryRetrieveInformationModel, query, identHandler))
   }
 
   private def tagListToAttributeList(): AttributeList = {
@@ -71,6 +118,44 @@ abstract class DicomCFindBase(callingAETitle: String, calledPacs: PACS, retrieve
     al
   }
 
+  /**
+    * Make the query from the caller's qualifiers, the attributes to retrieve, and the query level.
+    */
+  private def makeQuery(qualifierList: AttributeList): AttributeList = {
+    // use a copy so as not to modify caller's copy
+    val newQuery = tagListToAttributeList()
+    qualifierList.values().forEach(attr => newQuery.put(attr))
+
+    // ensure that the query level is given
+    val queryLevelAt = AttributeFactory.newAttribute(TagFromName.QueryRetrieveLevel)
+    queryLevelAt.addValue(queryRetrieveLevel)
+    newQuery.put(queryLevelAt)
+    newQuery
+  }
+
+  private def cacheKey(query: AttributeList, limit: Option[Int]): String = {
+    Seq(calledPacs.toString, callingAETitle, queryRetrieveInformationModel, limit.toString, query.toString.replace('\u0000', ' ')).mkString("  ||||  ")
+  }
+
+  /**
+    * Get results as they arrive, passing each to the given function.  Nothing is kept in memory, so this is
+    * suitable for queries with very large numbers of results.
+    *
+    * If the limit parameter is specified and the limit is exceeded, then the association is closed.
+    *
+    * @param qualifierList Query parameters.
+    * @param limit Stop if this many results received.
+    * @param process Called with each result in the order received.
+    * @return Number of results.
+    */
+  def findStream(qualifierList: AttributeList, limit: Option[Int] = None)(process: AttributeList => Unit): Int = {
+    val identHandler = new IdentHandler(limit, process, () => close())
+    if (association.isEmpty)
+      association = Some(makeAssociation())
+    cFind(association.get, makeQuery(qualifierList), identHandler)
+    identHandler.getCount
+  }
+
   /**
     * Get the list of images for a given series.
     *
@@ -85,27 +170,176 @@ abstract class DicomCFindBase(callingAETitle: String, calledPacs: PACS, retrieve
       qualifierList: AttributeList,
       limit: Option[Int] = None
   ): Seq[AttributeList] = {
-    val affectedSOPClass: String = queryRetrieveInformationModel
+    val key = cache.map(_ => cacheKey(makeQuery(qualifierList), limit))
+    cache.flatMap(_.get(key.get)) match {
+      case Some(resultList) =>
+        DicomCFindBase.cacheHitCounter.increment()
+        resultList
+      case _ =>
+        val list = ArrayBuffer[AttributeList]()
+        val identHandler = new IdentHandler(limit, al => list += al, () => close())
+        if (association.isEmpty)
+          association = Some(makeAssociation())
+        cFind(association.get, makeQuery(qualifierList), identHandler)
+        val resultList = list.toList
+        if (!identHandler.isLimitExceeded) cache.foreach(_.put(key.get, resultList))
+        resultList
+    }
+  }
 
-    // use a copy so as not to modify caller's copy
-    val newQuery = tagListToAttributeList()
-    qualifierList.values().forEach(attr => newQuery.put(attr))
+  /**
+    * Perform a C-FIND on an association from the shared pool.  This may be done by multiple threads at the same time.
+    * If the C-FIND is stopped before it is done, then the association is aborted and not returned to the pool.
+    */
+  private def findPooled(query: AttributeList, limit: Option[Int], process: AttributeList => Unit, cancelled: () => Boolean = () => false): IdentHandler = {
+    val pool = DicomCFindBase.associationPool
+    val key = pool.makeKey(calledPacs, callingAETitle, queryRetrieveInformationModel)
+    val pooledAssociation = pool.take(key, makeAssociation())
+    val identHandler = new IdentHandler(limit, process, () => pooledAssociation.abort(), cancelled)
+    try {
+      cFind(pooledAssociation, query, identHandler)
+      if (identHandler.isStopped) pool.discard(pooledAssociation)
+      else pool.give(key, pooledAssociation)
+      identHandler
+    } catch {
+      // aborting the association to stop at the limit or on cancel may cause an exception, which is expected
+      case _: Throwable if identHandler.isStopped => identHandler
+      case t: Throwable =>
+        pool.discard(pooledAssociation)
+        throw t
+    }
+  }
 
-    // ensure that the query level is given
-    val queryLevelAt = AttributeFactory.newAttribute(TagFromName.QueryRetrieveLevel)
-    queryLevelAt.addValue(queryRetrieveLevel)
-    newQuery.put(queryLevelAt)
+  /**
+    * Get results as they arrive through an iterator.  The C-FIND is run in the background on a pooled association, and
+    * stops when <code>queueSize</code> results are waiting to be consumed.  If the C-FIND fails, then the iterator
+    * throws the exception.
+    *
+    * The caller must either consume all of the results or close the iterator.  Closing it before the end cancels the
+    * C-FIND, which aborts its association and discards it from the pool, so a consumer that stops early does not
+    * leave the background thread waiting forever with the association.
+    *
+    * @param qualifierList Query parameters.
+    * @param queueSize Maximum number of results received but not yet consumed.
+    * @return Results in the order received.
+    */
+  def findIterator(qualifierList: AttributeList, queueSize: Int = 256): Iterator[AttributeList] with Closeable = {
+    val queue = new ArrayBlockingQueue[Either[Throwable, AttributeList]](queueSize)
+    val end: Either[Throwable, AttributeList] = Left(new RuntimeException("end of C-FIND results"))
+    val query = makeQuery(qualifierList)
+    val cancelled = new AtomicBoolean(false)
 
-    val resultList: Seq[AttributeList] = {
-      val identHandler = new IdentHandler(limit)
-      if (association.isEmpty)
-        association = Some(makeAssociation())
-      new FindSOPClassSCU(association.get, affectedSOPClass, newQuery, identHandler)
-      val list = identHandler.get
-      list
+    /** Wait for room in the queue, giving up if the consumer has closed the iterator.  Return true if queued. */
+    def put(item: Either[Throwable, AttributeList]): Boolean = {
+      while (!cancelled.get && !queue.offer(item, DicomCFindBase.offerTimeout_ms, TimeUnit.MILLISECONDS)) {}
+      !cancelled.get
     }
 
-    resultList
+    val thread = new Thread(new Runnable {
+      override def run(): Unit = {
+        try {
+          findPooled(query, None, al => put(Right(al)), () => cancelled.get)
+          put(end)
+        } catch {
+          case t: Throwable => put(Left(t))
+        }
+      }
+    })
+    thread.setDaemon(true)
+    thread.start()
+
+    new Iterator[AttributeList] with Closeable {
+      private var nextItem: Option[Either[Throwable, AttributeList]] = None
+      private var done = false
+
+      override def hasNext: Boolean = {
+        if (!done && nextItem.isEmpty) {
+          val item = queue.take()
+          if (item eq end) done = true else nextItem = Some(item)
+        }
+        nextItem.isDefined
+      }
+
+      override def next(): AttributeList = {
+        if (!hasNext) throw new NoSuchElementException("No more C-FIND results")
+        val item = nextItem.get
+        nextItem = None
+        item match {
+          case Right(al) => al
+          case Left(t) =>
+            done = true
+            throw t
+        }
+      }
+
+      /** Stop the C-FIND if it is still in progress, and discard any results not yet consumed. */
+      override def close(): Unit = {
+        done = true
+        nextItem = None
+        if (!cancelled.getAndSet(true)) {
+          queue.clear()
+          queue.offer(end) // wake a consumer that is waiting in another thread
+        }
+      }
+    }
+  }
+
+  /**
+    * Perform a C-FIND on an association from the shared pool, using the cache if there is one.  Unlike
+    * <code>find</code>, this may be called by multiple threads at the same time.
+    *
+    * @param qualifierList Query parameters.
+    * @param limit If given, the maximum number of results.
+    * @return List of results.
+    */
+  def findConcurrent(qualifierList: AttributeList, limit: Option[Int] = None): Seq[AttributeList] = {
+    val query = makeQuery(qualifierList)
+    val key = cacheKey(query, limit)
+    cache.flatMap(_.get(key)) match {
+      case Some(resultList) =>
+        DicomCFindBase.cacheHitCounter.increment()
+        resultList
+      case _ =>
+        val list = ArrayBuffer[AttributeList]()
+        val identHandler = findPooled(query, limit, al => list += al)
+        val resultList = list.toList
+        if (!identHandler.isLimitExceeded) cache.foreach(_.put(key, resultList))
+        resultList
+    }
+  }
+
+  /**
+    * Perform multiple C-FINDs at the same time over pooled associations.  This is much faster than performing
+    * them one at a time when there are many small queries, such as one per patient or series.
+    *
+    * @param qualifierListList Query parameters for each C-FIND.
+    * @param threadCount Maximum number of C-FINDs in progress at the same time.
+    * @param limit If given, the maximum number of results for each C-FIND.
+    * @return The results for each C-FIND, in the same order as the queries.  A C-FIND that fails gives an empty list.
+    */
+  def findBatch(qualifierListList: Seq[AttributeList], threadCount: Int, limit: Option[Int] = None): Seq[Seq[AttributeList]] = {
+    val executor = Executors.newFixedThreadPool(Math.max(1, threadCount))
+
+    def findOne(qualifierList: AttributeList): Seq[AttributeList] = {
+      try {
+        findConcurrent(qualifierList, limit)
+      } catch {
+        case t: Throwable =>
+          logger.warn("C-FIND failed: " + fmtEx(t))
+          Seq[AttributeList]()
+      }
+    }
+
+    try {
+      val futureList = qualifierListList.map(qualifierList =>
+        executor.submit(new Callable[Seq[AttributeList]] {
+          override def call(): Seq[AttributeList] = findOne(qualifierList)
+        })
+      )
+      futureList.map(_.get)
+    } finally {
+      executor.shutdown()
+    }
   }
 
   /**
@@ -125,3 +359,22 @@ abstract class DicomCFindBase(callingAETitle: String, calledPacs: PACS, retrieve
   }
 
 }
+
+object DicomCFindBase {
+
+  /** Idle associations shared by all C-FINDs that use <code>findIterator</code> or <code>findBatch</code>. */
+  private val associationPool = new AssociationPool(8)
+
+  /** How long the <code>findIterator</code> background thread waits for room in the queue before checking if it has been closed. */
+  private val offerTimeout_ms = 100L
+
+  private val findTimer = Metrics.timer("DicomCFind.find")
+  private val findCounter = Metrics.counter("DicomCFind.queries")
+  private val resultCounter = Metrics.counter("DicomCFind.results")
+  private val cacheHitCounter = Metrics.counter("DicomCFind.cacheHits")
+
+  /**
+    * Release the pooled associations.  This should be done when the caller is done with batch C-FINDs.
+    */
+  def releasePool(): Unit = associationPool.releaseAll()
+}
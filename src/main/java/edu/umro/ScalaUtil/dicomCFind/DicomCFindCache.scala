@@ -0,0 +1,72 @@
+/*
+ * Copyright 2024 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.dicomCFind
+
+import com.pixelmed.dicom.AttributeList
+
+import java.util
+
+/**
+  * Cache of C-FIND results so that repeating a query, such as getting the list of series for a patient, does not
+  * go back to the PACS.  Results expire after a fixed time so that changes in the PACS are eventually seen.
+  *
+  * The same result lists are returned to every caller, so they must not be modified.  The cache is safe to use from
+  * multiple threads.
+  *
+  * @param ttl_ms     Time in milliseconds that results are kept.
+  * @param maxEntries Maximum number of queries kept.  When exceeded the least recently used is removed.
+  */
+class DicomCFindCache(ttl_ms: Long, maxEntries: Int = 10 * 1000) {
+
+  private case class Entry(expiration: Long, resultList: Seq[AttributeList])
+
+  private val cache = new util.LinkedHashMap[String, Entry](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: util.Map.Entry[String, Entry]): Boolean = size > maxEntries
+  }
+
+  /**
+    * Get the cached results of a query.
+    *
+    * @param key Identifies the query.
+    * @return Results, or nothing if not cached or expired.
+    */
+  def get(key: String): Option[Seq[AttributeList]] =
+    cache.synchronized {
+      val entry = cache.get(key)
+      if (entry == null) None
+      else if (entry.expiration < System.currentTimeMillis) {
+        cache.remove(key)
+        None
+      } else
+        Some(entry.resultList)
+    }
+
+  /**
+    * Save the results of a query.
+    */
+  def put(key: String, resultList: Seq[AttributeList]): Unit =
+    cache.synchronized {
+      cache.put(key, Entry(System.currentTimeMillis + ttl_ms, resultList))
+    }
+
+  /**
+    * Remove all entries.
+    */
+  def clear(): Unit = cache.synchronized(cache.clear())
+
+  def size: Int = cache.synchronized(cache.size)
+}
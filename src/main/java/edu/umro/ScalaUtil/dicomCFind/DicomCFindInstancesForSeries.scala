@@ -29,8 +29,8 @@ import edu.umro.ScalaUtil.PACS
   * List all instances (e.g. slices or images) for a given series.
   */
 
-class DicomCFindInstancesForSeries(callingAETitle: String, calledPacs: PACS, retrieveList: Seq[AttributeTag] = DicomCFindInstancesForSeries.defaultRetrieveList)
-    extends DicomCFindBase(callingAETitle, calledPacs, retrieveList) {
+class DicomCFindInstancesForSeries(callingAETitle: String, calledPacs: PACS, retrieveList: Seq[AttributeTag] = DicomCFindInstancesForSeries.defaultRetrieveList, cache: Option[DicomCFindCache] = None)
+    extends DicomCFindBase(callingAETitle, calledPacs, retrieveList, cache) {
 
   override protected val queryRetrieveInformationModel: String = SOPClass.StudyRootQueryRetrieveInformationModelFind
   override protected val queryRetrieveLevel: String = "IMAGE"
@@ -29,8 +29,8 @@ import edu.umro.ScalaUtil.PACS
   * List patients that match a pattern.
   */
 
-class DicomCFindPatientList(callingAETitle: String, calledPacs: PACS, retrieveList: Seq[AttributeTag] = DicomCFindPatientList.defaultRetrieveList)
-    extends DicomCFindBase(callingAETitle, calledPacs, retrieveList) {
+class DicomCFindPatientList(callingAETitle: String, calledPacs: PACS, retrieveList: Seq[AttributeTag] = DicomCFindPatientList.defaultRetrieveList, cache: Option[DicomCFindCache] = None)
+    extends DicomCFindBase(callingAETitle, calledPacs, retrieveList, cache) {
 
   override protected val queryRetrieveInformationModel: String = SOPClass.PatientRootQueryRetrieveInformationModelFind
   override protected val queryRetrieveLevel: String = "PATIENT"
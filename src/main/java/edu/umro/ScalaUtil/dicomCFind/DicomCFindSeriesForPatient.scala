@@ -29,8 +29,8 @@ import edu.umro.ScalaUtil.PACS
   * List series for a patient.
   */
 
-class DicomCFindSeriesForPatient(callingAETitle: String, calledPacs: PACS, retrieveList: Seq[AttributeTag] = DicomCFindSeriesForPatient.defaultRetrieveList)
-    extends DicomCFindBase(callingAETitle, calledPacs, retrieveList) {
+class DicomCFindSeriesForPatient(callingAETitle: String, calledPacs: PACS, retrieveList: Seq[AttributeTag] = DicomCFindSeriesForPatient.defaultRetrieveList, cache: Option[DicomCFindCache] = None)
+    extends DicomCFindBase(callingAETitle, calledPacs, retrieveList, cache) {
 
   override protected val queryRetrieveInformationModel: String = SOPClass.StudyRootQueryRetrieveInformationModelFind
   override protected val queryRetrieveLevel: String = "SERIES"
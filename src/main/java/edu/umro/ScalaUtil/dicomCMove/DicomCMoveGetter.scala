@@ -25,10 +25,13 @@ import com.pixelmed.dicom.TagFromName
 import com.pixelmed.network.Association
 import com.pixelmed.network.MoveSOPClassSCU
 import edu.umro.DicomDict.TagByName
+import edu.umro.ScalaUtil.AssociationPool
 import edu.umro.ScalaUtil.DicomCLI.DicomCliUtil
 import edu.umro.ScalaUtil.FileUtil
 import edu.umro.ScalaUtil.Logging
+import edu.umro.ScalaUtil.Metrics
 import edu.umro.ScalaUtil.PACS
+import edu.umro.ScalaUtil.dicomCFind.DicomCFindSeriesForPatient
 import org.apache.commons.cli.CommandLine
 import org.apache.commons.cli.Option
 
@@ -36,6 +39,10 @@ import java.io.Closeable
 import java.io.File
 import java.text.SimpleDateFormat
 import java.util.Date
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
 import scala.annotation.tailrec
 
 /**
@@ -93,7 +100,6 @@ class DicomCMoveGetter(srcPacs: PACS, dicomCMoveReceiver: DicomCMoveReceiver) ex
     *
     * @return New subdirectory.
     */
-  @tailrec
   private def makeUniqueSubDir(specification: AttributeList): File = {
 
     val dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH-mm-ss.SSS")
@@ -126,16 +132,24 @@ class DicomCMoveGetter(srcPacs: PACS, dicomCMoveReceiver: DicomCMoveReceiver) ex
       fullName
     }
 
-    val dir = new File(dicomCMoveReceiver.mainDir, name)
-
-    if (dir.exists()) {
-      Thread.sleep(100)
-      makeUniqueSubDir(specification)
-    } else {
-      dir.mkdirs()
-      dir
+    // Add a suffix if another C-MOVE already has the name.  Creating the directory is atomic, so this is safe across threads.
+    @tailrec
+    def make(index: Int): File = {
+      val dir = new File(dicomCMoveReceiver.mainDir, if (index == 0) name else name + "_" + index)
+      if (dir.mkdirs()) dir
+      else if (dir.exists) make(index + 1)
+      else throw new RuntimeException("Unable to create directory " + dir.getAbsolutePath)
     }
 
+    make(0)
+  }
+
+  /**
+    * Wait for the receiver to finish storing and processing the files of a completed C-MOVE.
+    */
+  private def awaitReceived(subDir: File): Unit = {
+    if (!dicomCMoveReceiver.awaitReceived(subDir, DicomCMoveGetter.receiveTimeout_ms))
+      logger.warn("Timed out waiting for received files to be processed in " + subDir.getAbsolutePath)
   }
 
   /**
@@ -171,14 +185,17 @@ class DicomCMoveGetter(srcPacs: PACS, dicomCMoveReceiver: DicomCMoveReceiver) ex
       if (association.isEmpty)
         association = Some(makeAssociation)
 
-      val moveSOPClassSCU = new MoveSOPClassSCU(association.get, dicomCMoveReceiver.thisPacs.aeTitle, affectedSOPClass, specification)
+      val moveSOPClassSCU = DicomCMoveGetter.moveTimer.time(new MoveSOPClassSCU(association.get, dicomCMoveReceiver.thisPacs.aeTitle, affectedSOPClass, specification))
 
       val status = moveSOPClassSCU.getStatus
       logger.info("Completed C-MOVE.  status: " + status + "  hex: " + status.formatted("%x"))
+      awaitReceived(subDir)
+      DicomCMoveGetter.recordResult(None)
       CMoveResult(None, subDir)
     } catch {
       case e: Exception =>
         val msg = s"CMove error: ${fmtEx(e)}"
+        DicomCMoveGetter.recordResult(Some(msg))
         CMoveResult(Some(msg), subDir)
     }
   }
@@ -250,6 +267,146 @@ class DicomCMoveGetter(srcPacs: PACS, dicomCMoveReceiver: DicomCMoveReceiver) ex
     result
   }
 
+  /**
+    * Perform one C-MOVE on a pooled association, retrying with a new association on failure.
+    *
+    * @param uid           UID that the C-MOVE is for.  Received files with this SOPInstanceUID or SeriesInstanceUID are put in their own directory.
+    * @param specification Indicates which instance or series.
+    * @param stagingDir    Directory where the receiver puts files before they are routed.  Files of this C-MOVE that are
+    *                      still there when it completes are moved to its directory.
+    * @param retryCount    Number of times to retry after a failure.
+    */
+  private def pooledCMove(uid: String, specification: AttributeList, stagingDir: File, retryCount: Int): CMoveResult = {
+    val subDir = makeUniqueSubDir(specification)
+    dicomCMoveReceiver.addRoute(uid, subDir)
+    val thisAETitle = dicomCMoveReceiver.thisPacs.aeTitle
+
+    @tailrec
+    def attempt(remaining: Int): scala.Option[String] = {
+      val association = DicomCMoveGetter.takeAssociation(srcPacs, thisAETitle)
+      val error =
+        try {
+          val moveSOPClassSCU =
+            DicomCMoveGetter.moveTimer.time(new MoveSOPClassSCU(association, thisAETitle, SOPClass.PatientRootQueryRetrieveInformationModelMove, specification))
+          val status = moveSOPClassSCU.getStatus
+          logger.info("Completed C-MOVE of " + uid + "  status: " + status + "  hex: " + status.formatted("%x"))
+          DicomCMoveGetter.returnAssociation(srcPacs, thisAETitle, association)
+          None
+        } catch {
+          case e: Exception =>
+            DicomCMoveGetter.discardAssociation(association)
+            Some(s"CMove error: ${fmtEx(e)}")
+        }
+      if (error.isDefined && (remaining > 0)) {
+        logger.warn("Retrying C-MOVE of " + uid + " after " + error.get)
+        attempt(remaining - 1)
+      } else
+        error
+    }
+
+    try {
+      val error = attempt(retryCount)
+      // Stop routing on arrival before the last look at the staging directory so that no file can be missed.
+      dicomCMoveReceiver.removeRoute(uid)
+      dicomCMoveReceiver.routeAll(stagingDir, uid, subDir)
+      awaitReceived(subDir)
+      DicomCMoveGetter.recordResult(error)
+      CMoveResult(error, subDir)
+    } finally {
+      dicomCMoveReceiver.removeRoute(uid)
+    }
+  }
+
+  /**
+    * Perform the given C-MOVEs concurrently.  While these are in progress no other C-MOVEs should be
+    * done with the same receiver.
+    *
+    * Files are received into a staging directory and routed from there.  When the last C-MOVE is done, and before its
+    * result is available, the receiver goes back to the subdirectory it was using before and the staging directory is
+    * deleted if it is empty.
+    *
+    * @param uidSpecList UID and specification for each C-MOVE.
+    * @param threadCount Maximum number of C-MOVEs in progress at the same time.  This is also the maximum number of associations used.
+    * @param retryCount  Number of times to retry each C-MOVE after a failure.
+    * @return One result for each C-MOVE, in the same order as the list.
+    */
+  private def cMoveConcurrently(uidSpecList: Seq[(String, AttributeList)], threadCount: Int, retryCount: Int): Seq[Future[CMoveResult]] = {
+    val stagingSpec = makeSpecification(Seq(TagValue(TagFromName.QueryRetrieveLevel, "STAGING")))
+    val stagingDir = makeUniqueSubDir(stagingSpec)
+    val previousSubDir = dicomCMoveReceiver.beginStaging(stagingDir)
+    if (uidSpecList.isEmpty) dicomCMoveReceiver.endStaging(stagingDir, previousSubDir)
+
+    val remaining = new AtomicInteger(uidSpecList.size)
+    val executor = Executors.newFixedThreadPool(Math.max(1, threadCount))
+    val futureList = uidSpecList.map(uidSpec =>
+      executor.submit(new Callable[CMoveResult] {
+        override def call(): CMoveResult = {
+          try {
+            pooledCMove(uidSpec._1, uidSpec._2, stagingDir, retryCount)
+          } finally {
+            if (remaining.decrementAndGet() == 0) dicomCMoveReceiver.endStaging(stagingDir, previousSubDir)
+          }
+        }
+      })
+    )
+    // let queued C-MOVEs finish, then release the threads
+    executor.shutdown()
+    futureList
+  }
+
+  /**
+    * Get several series at the same time using multiple associations to the source PACS.
+    *
+    * @param seriesInstanceUIDList Series to be gotten.
+    * @param threadCount           Maximum number of series being gotten at the same time.
+    * @param retryCount            Number of times to retry a series after a failure.
+    * @return One result for each series, in the same order as the list.  Each is put in its own directory.
+    */
+  def getSeriesConcurrently(seriesInstanceUIDList: Seq[String], threadCount: Int, retryCount: Int = 2): Seq[Future[CMoveResult]] = {
+    val uidSpecList = seriesInstanceUIDList.map(uid =>
+      (uid, makeSpecification(Seq(TagValue(TagFromName.QueryRetrieveLevel, "SERIES"), TagValue(TagFromName.SeriesInstanceUID, uid))))
+    )
+    cMoveConcurrently(uidSpecList, threadCount, retryCount)
+  }
+
+  /**
+    * Get several instances at the same time using multiple associations to the source PACS.
+    *
+    * @param sopInstanceUIDList Instances to be gotten.
+    * @param threadCount        Maximum number of instances being gotten at the same time.
+    * @param retryCount         Number of times to retry an instance after a failure.
+    * @return One result for each instance, in the same order as the list.  Each is put in its own directory.
+    */
+  def getInstancesConcurrently(sopInstanceUIDList: Seq[String], threadCount: Int, retryCount: Int = 2): Seq[Future[CMoveResult]] = {
+    val uidSpecList = sopInstanceUIDList.map(uid =>
+      (uid, makeSpecification(Seq(TagValue(TagFromName.QueryRetrieveLevel, "IMAGE"), TagValue(TagFromName.SOPInstanceUID, uid))))
+    )
+    cMoveConcurrently(uidSpecList, threadCount, retryCount)
+  }
+
+  /**
+    * Get all series for the given patient at the same time using multiple associations to the source PACS.  The
+    * series are found with a C-FIND.
+    *
+    * @param PatientID   Patient whose series are to be gotten.
+    * @param threadCount Maximum number of series being gotten at the same time.
+    * @param Modality    If given, only get series of this modality.
+    * @param retryCount  Number of times to retry a series after a failure.
+    * @return One result for each series.  Each is put in its own directory.
+    */
+  def getPatientConcurrently(PatientID: String, threadCount: Int, Modality: scala.Option[String] = None, retryCount: Int = 2): Seq[Future[CMoveResult]] = {
+    val cFind = new DicomCFindSeriesForPatient(dicomCMoveReceiver.thisPacs.aeTitle, srcPacs)
+    val seriesList =
+      try {
+        cFind.findSeriesForPatient(PatientID, Modality)
+      } finally {
+        cFind.close()
+      }
+    val seriesUidList = seriesList.flatMap(al => scala.Option(al.get(TagFromName.SeriesInstanceUID))).map(_.getSingleStringValueOrEmptyString.trim).distinct
+    logger.info("Getting " + seriesUidList.size + " series for patient " + PatientID + " with up to " + threadCount + " concurrent C-MOVEs")
+    getSeriesConcurrently(seriesUidList, threadCount, retryCount)
+  }
+
   /**
    * If the association is open, then close it.
    */
@@ -271,25 +428,55 @@ class DicomCMoveGetter(srcPacs: PACS, dicomCMoveReceiver: DicomCMoveReceiver) ex
 
 object DicomCMoveGetter extends Logging {
 
-  /*
-  private case class AssociationItem(key: String, association: Association) {}
+  /** Maximum time to wait for received files to be processed after a C-MOVE completes. */
+  private val receiveTimeout_ms: Long = 10 * 60 * 1000
 
-  private val associationPool = scala.collection.mutable.HashMap[String, AssociationItem]()
+  /**
+    * Idle associations that can be reused for C-MOVEs.
+    */
+  private val associationPool = new AssociationPool(8)
 
-  private def takeAssociation(srcPacs: PACS, thisPacsAETitle: String): AssociationItem = associationPool.synchronized {
+  private def makeKey(srcPacs: PACS, thisPacsAETitle: String) =
+    associationPool.makeKey(srcPacs, thisPacsAETitle, SOPClass.PatientRootQueryRetrieveInformationModelMove)
 
-    def makeKey() = Seq(srcPacs.host, srcPacs.aeTitle, srcPacs.port.toString, thisPacsAETitle).mkString("  ||||  ")
+  /**
+    * Get an idle association from the pool, or make a new one if there are none.
+    */
+  private def takeAssociation(srcPacs: PACS, thisPacsAETitle: String): Association = {
+    associationPool.take(
+      makeKey(srcPacs, thisPacsAETitle),
+      MoveSOPClassSCU.getSuitableAssociation(srcPacs.host, srcPacs.port, srcPacs.aeTitle, thisPacsAETitle, SOPClass.PatientRootQueryRetrieveInformationModelMove)
+    )
+  }
 
-    val key = makeKey()
-    if (associationPool.contains(key)) {
-      associationPool.remove(key).get
-    }
-    else {
-      val a = MoveSOPClassSCU.getSuitableAssociation(srcPacs.host, srcPacs.port, srcPacs.aeTitle, thisPacsAETitle, SOPClass.PatientRootQueryRetrieveInformationModelMove)
-      AssociationItem(key, a)
-    }
+  /**
+    * Put an association that worked back into the pool so that it can be reused.
+    */
+  private def returnAssociation(srcPacs: PACS, thisPacsAETitle: String, association: Association): Unit =
+    associationPool.give(makeKey(srcPacs, thisPacsAETitle), association)
+
+  /**
+    * Abort an association that has failed.
+    */
+  private def discardAssociation(association: Association): Unit = associationPool.discard(association)
+
+  /**
+    * Release all pooled associations.  This should be done when the caller is done with concurrent C-MOVEs.
+    */
+  def releasePool(): Unit = associationPool.releaseAll()
+
+  private val moveTimer = Metrics.timer("DicomCMove.move")
+  private val moveCounter = Metrics.counter("DicomCMove.moves")
+  private val failedCounter = Metrics.counter("DicomCMove.failures")
+
+  /**
+    * Record the outcome of a C-MOVE.  The number and size of the files received are counted by the receiver as each
+    * one is stored.
+    */
+  private def recordResult(error: scala.Option[String]): Unit = {
+    moveCounter.increment()
+    if (error.isDefined) failedCounter.increment()
   }
-  */
 
   // ---------------------------------------------------------------------------------------------------
 
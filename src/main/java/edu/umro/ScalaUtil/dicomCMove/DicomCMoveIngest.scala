@@ -0,0 +1,160 @@
+/*
+ * Copyright 2024 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.dicomCMove
+
+import edu.umro.ScalaUtil.DicomIndex
+import edu.umro.ScalaUtil.DicomPixelDigest
+import edu.umro.ScalaUtil.Logging
+
+import java.io.Closeable
+import java.io.File
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+  * Something to be done with each received DICOM file, such as indexing it, computing its digest, or adding it to a
+  * file tree.  Handlers are called from multiple threads at the same time, so they must be thread safe.
+  */
+trait DicomCMoveIngestHandler {
+
+  /**
+    * Process one received file.
+    *
+    * @param file DICOM file in its final location.
+    */
+  def handle(file: File): Unit
+}
+
+object DicomCMoveIngestHandler {
+
+  /**
+    * Make a handler from a function.
+    */
+  def apply(process: File => Unit): DicomCMoveIngestHandler =
+    new DicomCMoveIngestHandler {
+      override def handle(file: File): Unit = process(file)
+    }
+
+  /**
+    * Add each received file to the given header index.
+    */
+  def index(dicomIndex: DicomIndex): DicomCMoveIngestHandler = DicomCMoveIngestHandler(file => dicomIndex.get(file))
+
+  /**
+    * Compute the pixel digest of each received file and pass it to the given function.  Files without pixel data are ignored.
+    */
+  def digest(algorithm: DicomPixelDigest.Algorithm.Value)(report: (File, String) => Unit): DicomCMoveIngestHandler =
+    DicomCMoveIngestHandler(file => DicomPixelDigest.digest(file, algorithm).foreach(d => report(file, d)))
+}
+
+/**
+  * Process received DICOM files on a pool of worker threads so that the receiver can accept the next file as soon as the
+  * current one is stored.  The queue is bounded, and when it is full the receiving thread does the work itself, which
+  * slows down the sender instead of using unbounded memory.
+  *
+  * Counts are kept per directory so that the caller can wait until all files received into a directory, as by one
+  * C-MOVE, have been processed.
+  *
+  * @param handlerList Handlers called in order for each file.  An exception in one handler is logged and does not
+  *                    prevent the others from being called.
+  * @param threadCount Number of worker threads.
+  * @param queueSize   Maximum number of files waiting to be processed.
+  */
+class DicomCMoveIngest(handlerList: Seq[DicomCMoveIngestHandler], threadCount: Int = 4, queueSize: Int = 256) extends Logging with Closeable {
+
+  private val executor = new ThreadPoolExecutor(
+    threadCount,
+    threadCount,
+    0L,
+    TimeUnit.MILLISECONDS,
+    new ArrayBlockingQueue[Runnable](queueSize),
+    new ThreadPoolExecutor.CallerRunsPolicy
+  )
+
+  private val receivedCount = new AtomicLong(0)
+  private val processedCount = new AtomicLong(0)
+  private val failedCount = new AtomicLong(0)
+
+  /** Number of files submitted but not yet processed, kept per directory. */
+  private val pending = new PendingCounts
+
+  /** Number of files that have been submitted for processing. */
+  def getReceivedCount: Long = receivedCount.get
+
+  /** Number of files that have been processed by all handlers. */
+  def getProcessedCount: Long = processedCount.get
+
+  /** Number of times a handler has thrown an exception. */
+  def getFailedCount: Long = failedCount.get
+
+  /**
+    * Get the number of files received into the given directory that have not yet been processed.
+    */
+  def getPendingCount(dir: File): Long = pending.get(dir)
+
+  private def process(file: File, counter: AtomicLong): Unit = {
+    try {
+      handlerList.foreach(handler =>
+        try {
+          handler.handle(file)
+        } catch {
+          case t: Throwable =>
+            failedCount.incrementAndGet()
+            logger.warn("Handler failed for received file " + file.getAbsolutePath + " : " + fmtEx(t))
+        }
+      )
+      processedCount.incrementAndGet()
+    } finally {
+      pending.decrement(counter)
+    }
+  }
+
+  /**
+    * Queue a received file for processing.
+    *
+    * @param file Received file in its final location.
+    */
+  def submit(file: File): Unit = {
+    receivedCount.incrementAndGet()
+    val counter = pending.increment(file.getParentFile)
+    executor.execute(new Runnable {
+      override def run(): Unit = process(file, counter)
+    })
+  }
+
+  /**
+    * Wait until all files received into the given directory have been processed.  When they have, the directory is
+    * no longer tracked, so this should be called once per directory after its C-MOVE is complete.
+    *
+    * @param dir        Directory that files were received into.
+    * @param timeout_ms Maximum time to wait in milliseconds.
+    * @return True if all files were processed, false if the timeout expired first.
+    */
+  def awaitDir(dir: File, timeout_ms: Long): Boolean = pending.await(dir, timeout_ms)
+
+  /**
+    * Process all queued files and stop the worker threads.
+    */
+  override def close(): Unit = {
+    executor.shutdown()
+    if (!executor.awaitTermination(10, TimeUnit.MINUTES))
+      logger.warn("Timed out waiting for received DICOM files to be processed.")
+    logger.info("Received DICOM ingest closed.  received: " + getReceivedCount + "  processed: " + getProcessedCount + "  handler failures: " + getFailedCount)
+  }
+}
@@ -19,16 +19,25 @@ package edu.umro.ScalaUtil.dicomCMove
 import com.pixelmed.network.ReceivedObjectHandler
 import edu.umro.ScalaUtil.Logging
 
-class DicomCMoveReceivedObjectHandler extends ReceivedObjectHandler with Logging {
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
 
-  private var count: Int = 0
+/**
+  * Handle each DICOM file as it is received.
+  *
+  * @param onReceived Called with each file after it has been stored.
+  */
+class DicomCMoveReceivedObjectHandler(onReceived: File => Unit = _ => ()) extends ReceivedObjectHandler with Logging {
 
-  def getCount: Int = count
+  private val count = new AtomicInteger(0)
 
-  def resetCount: Unit = { count = 0 }
+  def getCount: Int = count.get
+
+  def resetCount: Unit = count.set(0)
 
   override def sendReceivedObjectIndication(fileName: String, transferSyntax: String, callingAETitle: String): Unit = {
-    count = count + 1
-    logger.info(s"Received DICOM file number $getCount from $callingAETitle    DICOM file: $fileName")
+    val number = count.incrementAndGet()
+    logger.info(s"Received DICOM file number $number from $callingAETitle    DICOM file: $fileName")
+    onReceived(new File(fileName))
   }
 }
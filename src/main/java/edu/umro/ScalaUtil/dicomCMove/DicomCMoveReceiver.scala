@@ -17,23 +17,213 @@
 package edu.umro.ScalaUtil.dicomCMove
 
 import com.pixelmed.dicom.StoredFilePathStrategy
+import com.pixelmed.dicom.TagFromName
 import com.pixelmed.network.StorageSOPClassSCPDispatcher
+import edu.umro.ScalaUtil.DicomUtil
+import edu.umro.ScalaUtil.FileUtil
 import edu.umro.ScalaUtil.Logging
+import edu.umro.ScalaUtil.Metrics
 import edu.umro.ScalaUtil.PACS
 
 import java.io.Closeable
 import java.io.File
+import java.util.concurrent.ConcurrentHashMap
 
 /**
   * Support for receiving incoming DICOM files and storing them in files.
+  *
+  * @param mainDir  All received files are put under this directory.
+  * @param thisPacs This receiver.
+  * @param ingest   If given, each received file is submitted to it for further processing after it is stored.
   */
-case class DicomCMoveReceiver(mainDir: File, thisPacs: PACS) extends Logging with Closeable {
+case class DicomCMoveReceiver(mainDir: File, thisPacs: PACS, ingest: Option[DicomCMoveIngest] = None) extends Logging with Closeable {
 
-  private val receivedObjectHandler = new DicomCMoveReceivedObjectHandler
+  private val receivedObjectHandler = new DicomCMoveReceivedObjectHandler(received)
 
   /** Name of subdirectory to put incoming DICOM files in. */
+  @volatile
   private var subDirFile: Option[File] = None
 
+  private val objectCounter = Metrics.counter("DicomCMove.objects")
+  private val byteCounter = Metrics.counter("DicomCMove.bytes")
+
+  /** Number of received files whose notification is being handled, kept per directory. */
+  private val pending = new PendingCounts
+
+  /**
+    * Get the number of files that have been received.
+    */
+  def getReceivedCount: Int = receivedObjectHandler.getCount
+
+  /**
+    * Destination directories of files being received by concurrent C-MOVEs, keyed by the
+    * SOPInstanceUID or SeriesInstanceUID that was requested.
+    */
+  private val routeMap = new ConcurrentHashMap[String, File]()
+
+  /**
+    * Send files with the given SOPInstanceUID or SeriesInstanceUID to the given directory instead of the current
+    * subdirectory.  This allows several C-MOVEs to be in progress at the same time.
+    *
+    * @param uid SOPInstanceUID or SeriesInstanceUID.
+    * @param dir Directory to receive files.  Must be a directory under the main directory.
+    */
+  def addRoute(uid: String, dir: File): Unit = {
+    dir.mkdirs()
+    routeMap.put(uid, dir)
+  }
+
+  /**
+    * Stop routing files for the given UID.
+    */
+  def removeRoute(uid: String): Unit = routeMap.remove(uid)
+
+  private val routeTagSet = Set(TagFromName.SOPInstanceUID, TagFromName.SeriesInstanceUID)
+
+  /** Staging directories, whose files are only processed after they have been routed. */
+  private val stagingSet = ConcurrentHashMap.newKeySet[String]()
+
+  /** Held while moving a received file so that it is moved only once when it is routed on arrival and by routeAll. */
+  private val moveLock = new Object
+
+  private def submit(file: File): Unit = ingest.foreach(_.submit(file))
+
+  /**
+    * Get the SOPInstanceUID and SeriesInstanceUID of a received file.
+    */
+  private def uidsOf(file: File): Seq[String] = {
+    val al = DicomUtil.readHeaderTags(file, routeTagSet)
+    routeTagSet.toSeq.flatMap(tag => Option(al.get(tag))).map(_.getSingleStringValueOrEmptyString.trim)
+  }
+
+  /**
+    * Get the directory of the route that the given received file belongs to, if any.
+    */
+  private def routeOf(file: File): Option[File] = uidsOf(file).flatMap(uid => Option(routeMap.get(uid))).headOption
+
+  /**
+    * Move a received file to the given directory and submit it for processing.  While this is being done the file is
+    * counted as pending in the new directory, so that waiting for that directory includes it.  If the file has
+    * already been moved then nothing is done.
+    */
+  private def moveAndSubmit(file: File, dir: File): Unit = {
+    val counter = pending.increment(dir)
+    try {
+      val newFile = new File(dir, file.getName)
+      val moved = moveLock.synchronized {
+        if (!file.exists) false
+        else if (file.renameTo(newFile)) true
+        else {
+          logger.warn("Unable to move received file " + file.getAbsolutePath + " to " + newFile.getAbsolutePath)
+          false
+        }
+      }
+      if (moved) submit(newFile)
+    } finally {
+      pending.decrement(counter)
+    }
+  }
+
+  /**
+    * Called for each file as it is received.  If there are routes and the file matches one of them, then it is moved to
+    * that route's directory.  Files in a staging directory that do not match are left for <code>routeAll</code>.
+    */
+  private def received(file: File): Unit = {
+    objectCounter.increment()
+    byteCounter.add(file.length)
+    val counter = pending.increment(file.getParentFile)
+    try {
+      val staged = stagingSet.contains(file.getParentFile.getAbsolutePath)
+      if (routeMap.isEmpty && (!staged)) submit(file)
+      else
+        routeOf(file) match {
+          case Some(dir)   => moveAndSubmit(file, dir)
+          case _ if staged =>
+          case _           => submit(file)
+        }
+    } catch {
+      // ignore files that have already been moved by routeAll
+      case t: Throwable if file.exists =>
+        logger.warn("Unable to route received file " + file.getAbsolutePath + " : " + fmtEx(t))
+      case _: Throwable =>
+    } finally {
+      pending.decrement(counter)
+    }
+  }
+
+  /**
+    * Move the files in the staging directory that belong to the given UID to the given directory.  This is done after a
+    * C-MOVE completes and its route has been removed, to catch files that arrived before their route was established
+    * or that were not routed on arrival.  Because the route has already been removed, no file for it can be left in the
+    * staging directory after this.
+    *
+    * @param stagingDir Directory where files were received.
+    * @param uid        SOPInstanceUID or SeriesInstanceUID of the C-MOVE.
+    * @param dir        Directory for the C-MOVE's files.
+    */
+  def routeAll(stagingDir: File, uid: String, dir: File): Unit = {
+    FileUtil
+      .listFiles(stagingDir)
+      .filter(_.isFile)
+      .foreach(file =>
+        try {
+          if (uidsOf(file).contains(uid)) moveAndSubmit(file, dir)
+        } catch {
+          case t: Throwable if file.exists =>
+            logger.warn("Unable to route received file " + file.getAbsolutePath + " : " + fmtEx(t))
+          case _: Throwable =>
+        }
+      )
+  }
+
+  /**
+    * Receive files into the given staging directory, from which they are routed, until <code>endStaging</code> is
+    * called.
+    *
+    * @param stagingDir Directory to receive files.  Must be a directory under the main directory.
+    * @return The subdirectory that was in use, to be passed to <code>endStaging</code>.
+    */
+  private[dicomCMove] def beginStaging(stagingDir: File): Option[File] = {
+    val previous = subDirFile
+    stagingSet.add(stagingDir.getAbsolutePath)
+    setSubDir(stagingDir)
+    previous
+  }
+
+  /**
+    * Go back to receiving files into the subdirectory that was in use before <code>beginStaging</code>, and delete the
+    * staging directory if it is empty.
+    *
+    * @param stagingDir Directory given to <code>beginStaging</code>.
+    * @param previous   Value returned by <code>beginStaging</code>.
+    */
+  private[dicomCMove] def endStaging(stagingDir: File, previous: Option[File]): Unit = {
+    subDirFile = previous
+    stagingSet.remove(stagingDir.getAbsolutePath)
+    val leftOver = FileUtil.listFiles(stagingDir)
+    if (leftOver.isEmpty)
+      stagingDir.delete()
+    else
+      logger.warn(leftOver.size + " received files did not belong to any C-MOVE and were left in " + stagingDir.getAbsolutePath)
+  }
+
+  /**
+    * Wait until all files that have been received into the given directory have been stored and processed.
+    * This is called after a C-MOVE completes, when the sender has sent all of the files, so that the caller
+    * does not see a partially processed directory.  Only files for the given directory are waited for, so files
+    * that other C-MOVEs are receiving at the same time do not delay it.
+    *
+    * @param dir        Directory that files were received into.
+    * @param timeout_ms Maximum time to wait in milliseconds.
+    * @return True if everything was processed, false if the timeout expired first.
+    */
+  def awaitReceived(dir: File, timeout_ms: Long): Boolean = {
+    val timeout = System.currentTimeMillis + timeout_ms
+    val received = pending.await(dir, timeout_ms)
+    val remaining = Math.max(0, timeout - System.currentTimeMillis)
+    received && ingest.forall(_.awaitDir(dir, remaining))
+  }
+
   /**
     * Getter for current subdirectory.
     * @return current subdirectory.
@@ -105,10 +295,8 @@ case class DicomCMoveReceiver(mainDir: File, thisPacs: PACS) extends Logging wit
 
     val timeout = System.currentTimeMillis() + waitTime_sec * 1000
     while ((!scpDispatcher.isReady) && (System.currentTimeMillis() < timeout)) {
-      logger.info("Waiting for SCPDispatcher for DICOM receiver to start ...")
-      Thread.sleep(200) // wait for thread to start.
+      Thread.sleep(10) // the dispatcher does not provide a notification, so poll until it is ready.
     }
-    Thread.sleep(200) // make sure it is ready
     if (scpDispatcher.isReady) {
       logger.info("SCPDispatcher for DICOM receiver is ready.")
     } else {
@@ -125,10 +313,13 @@ case class DicomCMoveReceiver(mainDir: File, thisPacs: PACS) extends Logging wit
     try {
       logger.info(s"Shutting down DICOM receiver for $thisPacs")
       scpDispatcher.shutdown()
-      Thread.sleep(1000)
-      logger.info(s"Shutting down DICOM receiver thread for $thisPacs")
-      dispatcherThread.interrupt()
-      Thread.sleep(1000)
+      dispatcherThread.join(1000)
+      if (dispatcherThread.isAlive) {
+        logger.info(s"Shutting down DICOM receiver thread for $thisPacs")
+        dispatcherThread.interrupt()
+        dispatcherThread.join(1000)
+      }
+      ingest.foreach(_.close())
       val status = if (dispatcherThread.isAlive) "failed" else "succeeded"
       logger.info(s"Shutdown of receiver for $thisPacs : $status")
     } catch {
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2024 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umro.ScalaUtil.dicomCMove
+
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+  * Number of files being worked on, kept per directory, so that a caller can wait for the files of one C-MOVE
+  * without also waiting for files that other C-MOVEs are receiving at the same time.
+  *
+  * A directory's entry is removed when it has been waited for and its count is zero, so entries do not accumulate
+  * in a long running receiver.
+  */
+private[dicomCMove] class PendingCounts {
+
+  private val countMap = new ConcurrentHashMap[String, AtomicLong]()
+
+  /**
+    * Count one more file for the directory.  This is done inside <code>compute</code> so that it can not be lost to
+    * the entry being removed at the same time.
+    *
+    * @return Counter to pass to <code>decrement</code> when the file is done.
+    */
+  def increment(dir: File): AtomicLong =
+    countMap.compute(
+      dir.getAbsolutePath,
+      (_: String, old: AtomicLong) => {
+        val counter = if (old == null) new AtomicLong(0) else old
+        counter.incrementAndGet()
+        counter
+      }
+    )
+
+  /**
+    * Count one less file, waking anyone waiting for the directory.
+    */
+  def decrement(counter: AtomicLong): Unit =
+    counter.synchronized {
+      counter.decrementAndGet()
+      counter.notifyAll()
+    }
+
+  /**
+    * Get the number of files that are not done for the directory.
+    */
+  def get(dir: File): Long = {
+    val counter = countMap.get(dir.getAbsolutePath)
+    if (counter == null) 0 else counter.get
+  }
+
+  /**
+    * Wait until there are no files that are not done for the directory, then remove its entry.
+    *
+    * @param dir        Directory to wait for.
+    * @param timeout_ms Maximum time to wait in milliseconds.
+    * @return True if all files were done, false if the timeout expired first.
+    */
+  def await(dir: File, timeout_ms: Long): Boolean = {
+    val key = dir.getAbsolutePath
+    val counter = countMap.get(key)
+    if (counter == null) true
+    else {
+      val timeout = System.currentTimeMillis + timeout_ms
+      counter.synchronized {
+        while ((counter.get > 0) && (System.currentTimeMillis < timeout))
+          counter.wait(Math.max(1, timeout - System.currentTimeMillis))
+      }
+      val done = counter.get == 0
+      if (done) countMap.computeIfPresent(key, (_: String, c: AtomicLong) => if (c.get == 0) null else c)
+      done
+    }
+  }
+}
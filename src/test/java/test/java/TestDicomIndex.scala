@@ -0,0 +1,62 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package aqa.test
+
+import com.pixelmed.dicom.AttributeList
+import edu.umro.DicomDict.TagByName
+import edu.umro.ScalaUtil.DicomIndex
+import edu.umro.ScalaUtil.DicomUtil
+import org.scalatest.FlatSpec
+import org.scalatest.Matchers
+
+import java.io.File
+
+/**
+  * Test that files read through the DICOM index keep the attributes that the tools using it need.
+  */
+class TestDicomIndex extends FlatSpec with Matchers {
+
+  /** RTIMAGE that references its plan. */
+  private val rtimageFile = new File("src/test/resources/MakeDict/distinct02.dcm")
+
+  private def refPlanOf(al: AttributeList): String =
+    DicomUtil.seqToAttr(al, TagByName.ReferencedRTPlanSequence).head.get(TagByName.ReferencedSOPInstanceUID).getSingleStringValueOrEmptyString
+
+  "DicomIndex" should "keep the referenced plan of an RTIMAGE" in {
+    val full = new AttributeList
+    full.read(rtimageFile)
+    val expected = refPlanOf(full)
+    expected.trim.isEmpty should be(false)
+
+    val indexFile = File.createTempFile("TestDicomIndex", ".bin")
+    indexFile.delete
+    try {
+      val index = new DicomIndex(indexFile)
+      val indexed = index.get(rtimageFile).get
+      indexed.get(TagByName.Modality).getSingleStringValueOrEmptyString.trim should be("RTIMAGE")
+      refPlanOf(indexed) should be(expected)
+      index.save()
+
+      // read again from the saved index without reading the file
+      val reloaded = new DicomIndex(indexFile)
+      reloaded.size should be(1)
+      refPlanOf(reloaded.get(rtimageFile).get) should be(expected)
+    } finally {
+      indexFile.delete
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package aqa.test
+
+import com.pixelmed.dicom.AttributeList
+import com.pixelmed.dicom.AttributeTag
+import com.pixelmed.dicom.SequenceAttribute
+import com.pixelmed.dicom.UniqueIdentifierAttribute
+import edu.umro.DicomDict.TagByName
+import edu.umro.ScalaUtil.DicomUidMap
+import edu.umro.ScalaUtil.DicomUidRemapper
+import edu.umro.ScalaUtil.DicomUtil
+import org.scalatest.FlatSpec
+import org.scalatest.Matchers
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+  * Test that remapping UIDs changes instance UIDs but not SOP class UIDs, including private ones.
+  */
+class TestDicomUidRemapper extends FlatSpec with Matchers {
+
+  /** Private (Varian) SOP class UID, which does not start with the DICOM standard prefix. */
+  private val privateSopClass = "1.2.246.352.70.1.70"
+
+  private def uid(al: AttributeList, tag: AttributeTag, value: String): Unit = {
+    val attr = new UniqueIdentifierAttribute(tag)
+    attr.addValue(value)
+    al.put(attr)
+  }
+
+  "remap" should "keep private SOP class UIDs" in {
+    val al = new AttributeList
+    uid(al, TagByName.MediaStorageSOPClassUID, privateSopClass)
+    uid(al, TagByName.SOPClassUID, privateSopClass)
+    uid(al, TagByName.SOPInstanceUID, "1.2.246.352.71.3.1")
+    uid(al, TagByName.FrameOfReferenceUID, "1.2.246.352.71.4.1")
+
+    val item = new AttributeList
+    uid(item, TagByName.ReferencedSOPClassUID, privateSopClass)
+    uid(item, TagByName.ReferencedSOPInstanceUID, "1.2.246.352.71.3.2")
+    val seq = new SequenceAttribute(TagByName.ReferencedImageSequence)
+    seq.addItem(item)
+    al.put(seq)
+
+    val next = new AtomicInteger(0)
+    val uidMap = new DicomUidMap(() => "1.2.3.4." + next.incrementAndGet())
+    val count = new DicomUidRemapper(uidMap).remap(al)
+
+    count should be(3)
+    al.get(TagByName.SOPClassUID).getSingleStringValueOrEmptyString should be(privateSopClass)
+    al.get(TagByName.MediaStorageSOPClassUID).getSingleStringValueOrEmptyString should be(privateSopClass)
+    al.get(TagByName.SOPInstanceUID).getSingleStringValueOrEmptyString should be(uidMap.get("1.2.246.352.71.3.1"))
+    al.get(TagByName.FrameOfReferenceUID).getSingleStringValueOrEmptyString should be(uidMap.get("1.2.246.352.71.4.1"))
+
+    val refItem = DicomUtil.seqToAttr(al, TagByName.ReferencedImageSequence).head
+    refItem.get(TagByName.ReferencedSOPClassUID).getSingleStringValueOrEmptyString should be(privateSopClass)
+    refItem.get(TagByName.ReferencedSOPInstanceUID).getSingleStringValueOrEmptyString should be(uidMap.get("1.2.246.352.71.3.2"))
+    uidMap.getExisting(privateSopClass) should be(None)
+  }
+
+  "remap" should "keep coding scheme and related SOP class UIDs" in {
+    val snomed = "2.16.840.1.113883.6.96"
+    val al = new AttributeList
+    uid(al, TagByName.SOPClassUID, privateSopClass)
+    uid(al, TagByName.SOPInstanceUID, "1.2.246.352.71.3.3")
+    uid(al, TagByName.RelatedGeneralSOPClassUID, privateSopClass)
+    uid(al, TagByName.OriginalSpecializedSOPClassUID, privateSopClass)
+    uid(al, TagByName.PrivateInformationCreatorUID, "1.2.246.352.72.1")
+
+    val code = new AttributeList
+    uid(code, TagByName.CodingSchemeUID, snomed)
+    val seq = new SequenceAttribute(TagByName.ConceptNameCodeSequence)
+    seq.addItem(code)
+    al.put(seq)
+
+    val next = new AtomicInteger(0)
+    val uidMap = new DicomUidMap(() => "1.2.3.4." + next.incrementAndGet())
+    val count = new DicomUidRemapper(uidMap).remap(al)
+
+    count should be(1)
+    al.get(TagByName.SOPInstanceUID).getSingleStringValueOrEmptyString should be(uidMap.get("1.2.246.352.71.3.3"))
+    al.get(TagByName.RelatedGeneralSOPClassUID).getSingleStringValueOrEmptyString should be(privateSopClass)
+    al.get(TagByName.OriginalSpecializedSOPClassUID).getSingleStringValueOrEmptyString should be(privateSopClass)
+    al.get(TagByName.PrivateInformationCreatorUID).getSingleStringValueOrEmptyString should be("1.2.246.352.72.1")
+    DicomUtil.seqToAttr(al, TagByName.ConceptNameCodeSequence).head.get(TagByName.CodingSchemeUID).getSingleStringValueOrEmptyString should be(snomed)
+    uidMap.size should be(1)
+  }
+}
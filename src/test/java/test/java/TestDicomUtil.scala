@@ -19,7 +19,11 @@ package test.java;
 
 import com.pixelmed.dicom.AttributeList
 import com.pixelmed.dicom.AttributeTag
+import com.pixelmed.dicom.OtherByteAttributeMultipleCompressedFrames
+import com.pixelmed.dicom.OtherWordAttribute
 import com.pixelmed.dicom.TagFromName
+import com.pixelmed.dicom.TransferSyntax
+import com.pixelmed.dicom.UniqueIdentifierAttribute
 import edu.umro.DicomDict.TagByName
 import edu.umro.ScalaUtil.DicomUtil
 import edu.umro.ScalaUtil.FileUtil
@@ -107,4 +111,51 @@ class TestDicomUtil extends FlatSpec with Matchers {
     alSeq.size should be(countOfDicomFiles)
 
   }
+
+  "deepCopy" should "make an independent copy" in {
+    val image = new AttributeList
+    image.read(new File("""src\test\resources\vessel_a.dcm"""))
+
+    Seq(source, image).foreach(al => {
+      val copy = DicomUtil.deepCopy(al)
+      copy.toString should be(al.toString)
+    })
+
+    def valuesOf(al: AttributeList): AnyRef =
+      al.get(TagByName.PixelData) match {
+        case ow: OtherWordAttribute => ow.getShortValues
+        case attr                   => attr.getByteValues
+      }
+
+    valuesOf(DicomUtil.deepCopy(image)) should not be theSameInstanceAs(valuesOf(image))
+    valuesOf(DicomUtil.deepCopy(image, DicomUtil.BulkDataMode.Share)) should be theSameInstanceAs valuesOf(image)
+
+    val header = DicomUtil.deepCopy(image, skipPixelData = true)
+    header.get(TagByName.PixelData) should be(null)
+    header.get(TagFromName.SOPInstanceUID).getSingleStringValueOrEmptyString should be(image.get(TagFromName.SOPInstanceUID).getSingleStringValueOrEmptyString)
+  }
+
+  "deepCopy" should "keep compressed pixel data compressed" in {
+    val image = new AttributeList
+    val ts = new UniqueIdentifierAttribute(TagFromName.TransferSyntaxUID)
+    ts.addValue(TransferSyntax.JPEGBaseline)
+    image.put(ts)
+    val sop = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID)
+    sop.addValue("1.2.3.4.5")
+    image.put(sop)
+    val frames = Array(Array[Byte](-1, -40, 1, 2, 3, -1, -39, 0), Array[Byte](-1, -40, 4, 5, 6, -1, -39, 0))
+    image.put(new OtherByteAttributeMultipleCompressedFrames(TagByName.PixelData, frames))
+
+    def framesOf(al: AttributeList): Array[Array[Byte]] = al.get(TagByName.PixelData).asInstanceOf[OtherByteAttributeMultipleCompressedFrames].getFrames
+
+    val copy = DicomUtil.deepCopy(image)
+    framesOf(copy) should not be theSameInstanceAs(frames)
+    framesOf(copy).map(_.toSeq).toSeq should be(frames.map(_.toSeq).toSeq)
+
+    framesOf(DicomUtil.deepCopy(image, DicomUtil.BulkDataMode.Share)) should be theSameInstanceAs frames
+
+    val header = DicomUtil.deepCopy(image, skipPixelData = true)
+    header.get(TagByName.PixelData) should be(null)
+    header.get(TagFromName.SOPInstanceUID).getSingleStringValueOrEmptyString should be("1.2.3.4.5")
+  }
 }
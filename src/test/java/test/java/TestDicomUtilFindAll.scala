@@ -18,7 +18,9 @@ package test.java
 
 import com.pixelmed.dicom.Attribute
 import com.pixelmed.dicom.AttributeList
+import com.pixelmed.dicom.SequenceAttribute
 import edu.umro.DicomDict.TagByName
+import edu.umro.ScalaUtil.DicomTagIndex
 import edu.umro.ScalaUtil.DicomUtil
 import org.scalatest.FlatSpec
 import org.scalatest.Matchers
@@ -52,4 +54,62 @@ class TestDicomUtilFindAll extends FlatSpec with Matchers {
     }
 
   }
+
+  /**
+    * The recursive implementation of <code>findAll</code> from before it was rebuilt on <code>visitAll</code>, kept
+    * here as the reference for the order of results.
+    */
+  private def findAllRecursive(attributeList: AttributeList, interesting: Attribute => Boolean): Seq[Attribute] = {
+    def findEm(attrList: AttributeList): Seq[Attribute] = {
+      val topList =
+        attrList.values.toArray.toList.toIndexedSeq.map(at => at.asInstanceOf[Attribute]).filter(interesting)
+
+      val seqTagList = attrList.values.toArray.filter(at => at.isInstanceOf[SequenceAttribute]).map(at => at.asInstanceOf[SequenceAttribute].getTag)
+      val childList = seqTagList.flatMap(st => DicomUtil.seqToAttr(attrList, st))
+      val list = childList.flatMap(findEm)
+      list ++ topList
+    }
+
+    findEm(attributeList)
+  }
+
+  /** The implementation of <code>flattenAttributeList</code> from before it was rebuilt on <code>visitAll</code>. */
+  private def flattenRecursive(al: AttributeList): Seq[AttributeList] = {
+    val seqList = findAllRecursive(al, _.isInstanceOf[SequenceAttribute]).map(_.asInstanceOf[SequenceAttribute])
+    val all = seqList.flatMap(sq => (0 until sq.getNumberOfItems).map(i => sq.getItem(i).getAttributeList))
+    al +: all
+  }
+
+  /** True if both lists contain the same instances in the same order. */
+  private def sameInstances[T <: AnyRef](a: Seq[T], b: Seq[T]): Boolean = (a.size == b.size) && a.zip(b).forall(ab => ab._1 eq ab._2)
+
+  "findAllByTag" should "find the same attributes in the same order as the recursive findAll" in {
+
+    val dicom = new File("src/test/resources/rtplan.dcm")
+    val al = new AttributeList
+    al.read(dicom)
+
+    // top level, one level down, and two levels down (control points of each beam)
+    val tagSet = Set(TagByName.PatientID, TagByName.BeamNumber, TagByName.BeamMeterset, TagByName.GantryAngle, TagByName.ControlPointIndex)
+    val byTag = DicomUtil.findAllByTag(al, tagSet)
+    val tagIndex = new DicomTagIndex(al)
+
+    tagSet.foreach(tag => {
+      val expected = findAllRecursive(al, attr => attr.getTag.equals(tag))
+      expected.nonEmpty should be(true)
+      sameInstances(DicomUtil.findAll(al, attr => attr.getTag.equals(tag)), expected) should be(true)
+      sameInstances(DicomUtil.findAllTag(al, tag), expected) should be(true)
+      sameInstances(byTag(tag), expected) should be(true)
+      sameInstances(tagIndex(tag), expected) should be(true)
+    })
+
+    // the control points are nested in the beams, so the order of results crosses sequence levels
+    findAllRecursive(al, attr => attr.getTag.equals(TagByName.ControlPointIndex)).size should be > DicomUtil.seqToAttr(al, TagByName.BeamSequence).size
+
+    val everything = findAllRecursive(al, _ => true)
+    sameInstances(DicomUtil.findAll(al, _ => true), everything) should be(true)
+
+    sameInstances(DicomUtil.flattenAttributeList(al), flattenRecursive(al)) should be(true)
+    sameInstances(tagIndex.flatten, flattenRecursive(al)) should be(true)
+  }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package aqa.test
+
+import edu.umro.ScalaUtil.QuantileSketch
+import edu.umro.ScalaUtil.Stats
+import org.scalatest.FlatSpec
+import org.scalatest.Matchers
+
+/**
+  * Test the quartile functions against sorting.
+  */
+class TestStats extends FlatSpec with Matchers {
+
+  /** Quartiles the way they were calculated before, by sorting. */
+  private def bySorting(values: Seq[Double]): (Double, Double, Double) = {
+    val sorted = values.sorted
+    val size = sorted.size
+
+    val q1 = {
+      val i = size / 4
+      size % 4 match {
+        case 0 => (sorted(i) - sorted(i - 1)) * .75 + sorted(i - 1)
+        case 1 => sorted(i)
+        case 2 => (sorted(i + 1) - sorted(i)) * .25 + sorted(i)
+        case 3 => (sorted(i + 1) - sorted(i)) * .5 + sorted(i)
+      }
+    }
+
+    val median = if ((size % 2) == 0) (sorted(size / 2 - 1) + sorted(size / 2)) / 2 else sorted(size / 2)
+
+    val q3 = {
+      val i = (size * 3) / 4
+      size % 4 match {
+        case 0 => (sorted(i) - sorted(i - 1)) * .25 + sorted(i - 1)
+        case 1 => sorted(i)
+        case 2 => (sorted(i) - sorted(i - 1)) * .75 + sorted(i - 1)
+        case 3 => (sorted(i) - sorted(i - 1)) * .5 + sorted(i - 1)
+      }
+    }
+    (q1, median, q3)
+  }
+
+  "quartiles" should "be the same as sorting" in {
+    val random = new scala.util.Random(5)
+    for (size <- 1 to 40) {
+      // include duplicates, which are the hard case for selection
+      val values = (0 until size).map(_ => random.nextInt(10) + random.nextDouble.round.toDouble)
+      val quartiles = Stats.quartiles(values.toArray)
+      (quartiles.q1, quartiles.median, quartiles.q3) should be(bySorting(values))
+      Stats.iqr(values) should be(bySorting(values)._3 - bySorting(values)._1)
+
+      val sketch = new QuantileSketch
+      sketch.add(values.toArray)
+      sketch.quartiles should be(quartiles)
+    }
+    Stats.median(Array[Double]()).isNaN should be(true)
+  }
+
+  "quantile sketch" should "estimate quartiles of many values" in {
+    val random = new scala.util.Random(7)
+    val values = (0 until 200 * 1000).map(_ => random.nextGaussian * 10)
+    val exact = Stats.quartiles(values.toArray)
+
+    val left = new QuantileSketch
+    val right = new QuantileSketch
+    values.take(values.size / 2).foreach(v => left.add(v))
+    values.drop(values.size / 2).foreach(v => right.add(v))
+    left.merge(right)
+
+    left.count should be(values.size.toLong)
+    left.median should be(exact.median +- 0.2)
+    left.iqr should be(exact.iqr +- 0.4)
+  }
+}